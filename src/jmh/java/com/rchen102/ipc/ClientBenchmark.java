@@ -0,0 +1,78 @@
+package com.rchen102.ipc;
+
+import com.rchen102.conf.CommonConfigurationKeysPublic;
+import com.rchen102.conf.Configuration;
+import com.rchen102.io.ObjectWritable;
+import com.rchen102.io.Writable;
+import com.rchen102.net.NetUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 通过 {@link Client} 对本地 stub 服务端发起调用（loopback），
+ * 多个线程共享同一个 Client 和同一个连接
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ClientBenchmark {
+    /** 是否使用 NIO 传输 */
+    @Param({"false", "true"})
+    public boolean nio;
+
+    /** 是否直接从接收缓冲区解析响应 */
+    @Param({"false", "true"})
+    public boolean zeroCopy;
+
+    /** 每个 ConnectionId 的连接数 */
+    @Param({"1", "4"})
+    public int stripes;
+
+    private LoopbackServer server;
+    private Client client;
+    private Client.ConnectionId remoteId;
+    private Writable param;
+
+    @Setup
+    public void setup() throws IOException {
+        server = new LoopbackServer();
+        server.start();
+
+        Configuration conf = new Configuration();
+        conf.setBoolean(CommonConfigurationKeysPublic.IPC_CLIENT_NIO_ENABLED_KEY, nio);
+        conf.setBoolean(CommonConfigurationKeysPublic.IPC_CLIENT_RESPONSE_ZEROCOPY_KEY, zeroCopy);
+        conf.setInt(CommonConfigurationKeysPublic.IPC_CLIENT_CONNECTION_STRIPES_KEY, stripes);
+        client = new Client(ObjectWritable.class, conf, NetUtils.getDefaultSocketFactory(conf));
+        remoteId = new Client.ConnectionId(server.getAddress(), ClientBenchmark.class, 0, conf);
+        param = new ObjectWritable(long.class, 1L);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.stop();
+        server.shutdown();
+    }
+
+    @Benchmark
+    public Writable call() throws IOException {
+        return client.call(RPC.RpcKind.RPC_SERIALIZABLE, param, remoteId);
+    }
+}
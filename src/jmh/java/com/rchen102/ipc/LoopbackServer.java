@@ -0,0 +1,97 @@
+package com.rchen102.ipc;
+
+import com.rchen102.ipc.protobuf.RpcHeaderProtos.RpcResponseHeaderProto;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * 基准测试使用的 stub 服务端，每个连接使用一个线程处理
+ * 读取请求头后，将请求中剩余的字节原样作为响应返回，因此请求和响应的类型需要一致
+ */
+class LoopbackServer extends Thread {
+    private final ServerSocket serverSocket;
+
+    LoopbackServer() throws IOException {
+        serverSocket = new ServerSocket(0);
+        setDaemon(true);
+    }
+
+    InetSocketAddress getAddress() {
+        return new InetSocketAddress("localhost", serverSocket.getLocalPort());
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread handler = new Thread() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                };
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+
+            // 连接头："mrpc" + version + service class + auth protocol
+            byte[] connectionHeader = new byte[7];
+            in.readFully(connectionHeader);
+
+            ByteArrayOutputStream bo = new ByteArrayOutputStream();
+            DataOutputStream response = new DataOutputStream(bo);
+            while (true) {
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                ByteArrayInputStream request = new ByteArrayInputStream(data);
+                RpcRequestHeader header = RpcRequestHeader.readFrom(new DataInputStream(request));
+                if (header.getCallId() == RpcConstants.CONNECTION_CONTEXT_CALL_ID) {
+                    continue;
+                }
+
+                bo.reset();
+                RpcResponseHeaderProto.newBuilder()
+                        .setCallId(header.getCallId())
+                        .setStatus(RpcResponseHeaderProto.RpcStatusProto.SUCCESS)
+                        .build().writeDelimitedTo(response);
+                int payloadOffset = data.length - request.available();
+                response.write(data, payloadOffset, data.length - payloadOffset);
+
+                out.writeInt(bo.size());
+                bo.writeTo(out);
+                // 没有更多请求时再 flush，批量写出响应
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            // 客户端关闭连接
+        }
+    }
+
+    void shutdown() throws IOException {
+        serverSocket.close();
+    }
+}
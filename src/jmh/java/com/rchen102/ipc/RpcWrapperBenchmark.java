@@ -0,0 +1,114 @@
+package com.rchen102.ipc;
+
+import com.google.protobuf.Message;
+import com.rchen102.io.ByteArrayPool;
+import com.rchen102.io.DataOutputBuffer;
+import com.rchen102.ipc.protobuf.ProtobufRpcEngineProtos.RequestHeaderProto;
+import com.rchen102.protocol.proto.ClientManisDbProtocolProtos.GetTableCountRequestProto;
+import com.rchen102.protocol.proto.ClientManisDbProtocolProtos.GetTableCountResponseProto;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ProtobufRpcEngine 请求、响应 wrapper 的序列化与反序列化
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RpcWrapperBenchmark {
+    private ProtobufRpcEngine.RpcRequestWrapper request;
+    private byte[] requestBytes;
+    private ProtobufRpcEngine.RpcResponseWrapper response;
+    private byte[] responseBytes;
+    private Message responsePrototype;
+    private ByteArrayPool pool;
+    private DataOutputBuffer buffer;
+
+    @Setup
+    public void setup() throws IOException {
+        // 协议名和版本在连接上下文中绑定，请求头只携带方法下标
+        RequestHeaderProto header = RequestHeaderProto.newBuilder()
+                .setMethodId(0)
+                .build();
+        GetTableCountRequestProto req = GetTableCountRequestProto.newBuilder()
+                .setDbName("db1").setTbName("tb1").build();
+        request = new ProtobufRpcEngine.RpcRequestWrapper(header, req);
+        GetTableCountResponseProto res = GetTableCountResponseProto.newBuilder()
+                .setResult(100).build();
+        response = new ProtobufRpcEngine.RpcResponseWrapper(res);
+        responsePrototype = GetTableCountResponseProto.getDefaultInstance();
+        pool = new ByteArrayPool(16, 64 * 1024);
+        buffer = new DataOutputBuffer(256);
+
+        request.write(buffer);
+        requestBytes = copy(buffer);
+        buffer.reset();
+        response.write(buffer);
+        responseBytes = copy(buffer);
+    }
+
+    private static byte[] copy(DataOutputBuffer buffer) {
+        byte[] bytes = new byte[buffer.getLength()];
+        System.arraycopy(buffer.getData(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    @Benchmark
+    public DataOutputBuffer writeRequest() throws IOException {
+        buffer.reset();
+        request.write(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public ProtobufRpcEngine.RpcRequestWrapper readRequest() throws IOException {
+        ProtobufRpcEngine.RpcRequestWrapper read = new ProtobufRpcEngine.RpcRequestWrapper();
+        read.readFields(new DataInputStream(new ByteArrayInputStream(requestBytes)));
+        return read;
+    }
+
+    @Benchmark
+    public DataOutputBuffer writeResponse() throws IOException {
+        buffer.reset();
+        response.write(buffer);
+        return buffer;
+    }
+
+    /**
+     * 先拷贝到 theResponseRead，再解析
+     */
+    @Benchmark
+    public Message readResponse() throws IOException {
+        ProtobufRpcEngine.RpcResponseWrapper read = new ProtobufRpcEngine.RpcResponseWrapper();
+        read.readFields(new DataInputStream(new ByteArrayInputStream(responseBytes)));
+        return read.getResponse(responsePrototype);
+    }
+
+    /**
+     * 直接从接收缓冲区解析
+     */
+    @Benchmark
+    public Message readResponseZeroCopy() throws IOException {
+        byte[] frame = pool.acquire(responseBytes.length);
+        System.arraycopy(responseBytes, 0, frame, 0, responseBytes.length);
+        ProtobufRpcEngine.RpcResponseWrapper read = new ProtobufRpcEngine.RpcResponseWrapper();
+        read.setResponseBuffer(frame, 0, responseBytes.length, pool);
+        return read.getResponse(responsePrototype);
+    }
+}
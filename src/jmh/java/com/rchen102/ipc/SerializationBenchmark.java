@@ -0,0 +1,148 @@
+package com.rchen102.ipc;
+
+import com.rchen102.io.DataOutputBuffer;
+import com.rchen102.io.ObjectWritable;
+import com.rchen102.ipc.protobuf.RpcHeaderProtos;
+import com.rchen102.util.ProtoUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SerializableRpcEngine 请求（Invocation）、返回值（ObjectWritable）的序列化与反序列化，
+ * 以及 RPC 请求头相关的工具方法
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+    /** 用于构造 Invocation 的方法 */
+    public interface BenchmarkProtocol {
+        long versionID = 1L;
+
+        boolean setMaxTable(String dbName, int max);
+    }
+
+    private SerializableRpcEngine.Invocation invocation;
+    private byte[] invocationBytes;
+    private ObjectWritable returnValue;
+    private byte[] returnValueBytes;
+    private byte[] varIntBytes;
+    private byte[] requestHeaderProtoBytes;
+    private byte[] fixedRequestHeaderBytes;
+    private DataOutputBuffer buffer;
+    private int callId;
+
+    @Setup
+    public void setup() throws Exception {
+        Method method = BenchmarkProtocol.class.getMethod("setMaxTable", String.class, int.class);
+        invocation = new SerializableRpcEngine.Invocation(
+                method, new Object[]{"db1", 100}, 1L);
+        returnValue = new ObjectWritable(boolean.class, true);
+        buffer = new DataOutputBuffer(256);
+
+        invocation.write(buffer);
+        invocationBytes = copy(buffer);
+        buffer.reset();
+        returnValue.write(buffer);
+        returnValueBytes = copy(buffer);
+        buffer.reset();
+        ProtoUtil.writeRawVarInt32(buffer, 300);
+        varIntBytes = copy(buffer);
+        requestHeaderProtoBytes = copy(writeRpcRequestHeaderProto());
+        fixedRequestHeaderBytes = copy(writeFixedRpcRequestHeader());
+    }
+
+    private static byte[] copy(DataOutputBuffer buffer) {
+        byte[] bytes = new byte[buffer.getLength()];
+        System.arraycopy(buffer.getData(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    private static DataInputStream input(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    @Benchmark
+    public DataOutputBuffer writeInvocation() throws IOException {
+        buffer.reset();
+        invocation.write(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public SerializableRpcEngine.Invocation readInvocation() throws IOException {
+        SerializableRpcEngine.Invocation read = new SerializableRpcEngine.Invocation();
+        read.readFields(input(invocationBytes));
+        return read;
+    }
+
+    @Benchmark
+    public DataOutputBuffer writeObjectWritable() throws IOException {
+        buffer.reset();
+        returnValue.write(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public ObjectWritable readObjectWritable() throws IOException {
+        ObjectWritable read = new ObjectWritable();
+        read.readFields(input(returnValueBytes));
+        return read;
+    }
+
+    @Benchmark
+    public int readRawVarInt32() throws IOException {
+        return ProtoUtil.readRawVarInt32(input(varIntBytes));
+    }
+
+    @Benchmark
+    public DataOutputBuffer writeRpcRequestHeaderProto() throws IOException {
+        buffer.reset();
+        makeRpcRequestHeader().writeDelimitedTo(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public DataOutputBuffer writeFixedRpcRequestHeader() throws IOException {
+        buffer.reset();
+        new RpcRequestHeader(RpcHeaderProtos.RpcKindProto.RPC_PROTOCOL_BUFFER,
+                RpcHeaderProtos.RpcRequestHeaderProto.OperationProto.RPC_FINAL_PACKET,
+                callId++, RpcConstants.INVALID_RETRY_COUNT, 0).write(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public RpcHeaderProtos.RpcRequestHeaderProto readRpcRequestHeaderProto() throws IOException {
+        return RpcHeaderProtos.RpcRequestHeaderProto.parseDelimitedFrom(
+                input(requestHeaderProtoBytes));
+    }
+
+    @Benchmark
+    public RpcRequestHeader readFixedRpcRequestHeader() throws IOException {
+        return RpcRequestHeader.readFrom(input(fixedRequestHeaderBytes));
+    }
+
+    @Benchmark
+    public RpcHeaderProtos.RpcRequestHeaderProto makeRpcRequestHeader() {
+        return ProtoUtil.makeRpcRequestHeader(RPC.RpcKind.RPC_PROTOCOL_BUFFER,
+                RpcHeaderProtos.RpcRequestHeaderProto.OperationProto.RPC_FINAL_PACKET,
+                callId++, RpcConstants.INVALID_RETRY_COUNT, null);
+    }
+}
@@ -1,30 +1,127 @@
 package com.rchen102;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import com.rchen102.conf.Configuration;
 import com.rchen102.ipc.RPC;
 import com.rchen102.protocol.ClientProtocol;
+import com.rchen102.protocol.ClientProtocolAsync;
+import com.rchen102.protocol.ManisConstants;
+import com.rchen102.protocol.TableName;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 public class ManisClient implements Closeable {
+    /**
+     * getTableCount 结果在客户端缓存的最大条目数，见 {@link com.rchen102.protocol.CachingClientProtocol}
+     * 大于 0 时开启缓存
+     */
+    public static final String MANIS_CLIENT_TABLECOUNT_CACHE_SIZE_KEY =
+            "manis.client.tablecount.cache.size";
+    /** MANIS_CLIENT_TABLECOUNT_CACHE_SIZE_KEY 的默认值，0，即不缓存 */
+    public static final int    MANIS_CLIENT_TABLECOUNT_CACHE_SIZE_DEFAULT = 0;
+
+    /** getTableCount 结果缓存的有效时间，单位：毫秒 */
+    public static final String MANIS_CLIENT_TABLECOUNT_CACHE_TTL_KEY =
+            "manis.client.tablecount.cache.ttl";
+    /** MANIS_CLIENT_TABLECOUNT_CACHE_TTL_KEY 的默认值，1s */
+    public static final int    MANIS_CLIENT_TABLECOUNT_CACHE_TTL_DEFAULT = 1000;
+
+    /** 批量查询表的记录数时，每个请求最多包含的表数 */
+    public static final String MANIS_CLIENT_TABLECOUNTS_BATCH_SIZE_KEY =
+            "manis.client.tablecounts.batch.size";
+    /** MANIS_CLIENT_TABLECOUNTS_BATCH_SIZE_KEY 的默认值，1000 */
+    public static final int    MANIS_CLIENT_TABLECOUNTS_BATCH_SIZE_DEFAULT = 1000;
+
+    /** 批量查询表的记录数时，同时进行中的请求数 */
+    public static final String MANIS_CLIENT_TABLECOUNTS_PARALLELISM_KEY =
+            "manis.client.tablecounts.parallelism";
+    /** MANIS_CLIENT_TABLECOUNTS_PARALLELISM_KEY 的默认值，4 */
+    public static final int    MANIS_CLIENT_TABLECOUNTS_PARALLELISM_DEFAULT = 4;
 
     volatile boolean clientRunning = true;
     final ClientProtocol manisDb;
+    final ClientProtocolAsync manisDbAsync;
+    private final int batchSize;
+    private final int parallelism;
 
     public ManisClient(URI manisDbUri, Configuration conf) throws IOException {
         ManisDbProxies.ProxyInfo<ClientProtocol> proxyInfo = null;
         proxyInfo = ManisDbProxies.createProxy(conf, manisDbUri, ClientProtocol.class);
         this.manisDb = proxyInfo.getProxy();
+        this.manisDbAsync = ManisDbProxies.createProxy(conf, manisDbUri,
+                ClientProtocolAsync.class).getProxy();
+        this.batchSize = conf.getInt(MANIS_CLIENT_TABLECOUNTS_BATCH_SIZE_KEY,
+                MANIS_CLIENT_TABLECOUNTS_BATCH_SIZE_DEFAULT);
+        this.parallelism = conf.getInt(MANIS_CLIENT_TABLECOUNTS_PARALLELISM_KEY,
+                MANIS_CLIENT_TABLECOUNTS_PARALLELISM_DEFAULT);
+        if (batchSize <= 0 || parallelism <= 0) {
+            throw new IllegalArgumentException("Illegal batch size " + batchSize +
+                    " or parallelism " + parallelism);
+        }
     }
 
     public int getTableCount(String dbName, String tbName) throws IOException{
         return this.manisDb.getTableCount(dbName, tbName);
     }
 
+    /**
+     * 异步获取表的记录数，请求发送后立即返回，不阻塞调用线程
+     */
+    public ListenableFuture<Integer> getTableCountAsync(String dbName, String tbName)
+            throws IOException {
+        return this.manisDbAsync.getTableCount(dbName, tbName);
+    }
+
+    /**
+     * 批量获取表的记录数
+     * 表按 batchSize 分成多个请求，最多 parallelism 个请求同时进行
+     * @param tables 需要查询的表
+     * @return 每个表的记录数，与 tables 一一对应，表不存在时为 {@link ManisConstants#TABLE_NOT_FOUND}
+     * @throws IOException 任意一个请求失败
+     */
+    public int[] getTableCounts(List<TableName> tables) throws IOException {
+        int[] results = new int[tables.size()];
+        List<ListenableFuture<int[]>> chunks = new ArrayList<>();
+        for (int offset = 0; offset < tables.size(); offset += batchSize) {
+            // 达到并发上限时，等待最早发出的请求完成
+            int chunk = chunks.size();
+            if (chunk >= parallelism) {
+                copyResult(chunks.get(chunk - parallelism), results,
+                        (chunk - parallelism) * batchSize);
+            }
+            chunks.add(this.manisDbAsync.getTableCounts(
+                    tables.subList(offset, Math.min(offset + batchSize, tables.size()))));
+        }
+        for (int chunk = Math.max(0, chunks.size() - parallelism); chunk < chunks.size(); chunk++) {
+            copyResult(chunks.get(chunk), results, chunk * batchSize);
+        }
+        return results;
+    }
+
+    private static void copyResult(ListenableFuture<int[]> future, int[] results, int offset)
+            throws IOException {
+        int[] chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for table counts");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+        System.arraycopy(chunk, 0, results, offset, chunk.length);
+    }
+
     private void closeConnectionToManisDb() {
         RPC.stopProxy(manisDb);
+        RPC.stopProxy(manisDbAsync);
     }
 
     @Override
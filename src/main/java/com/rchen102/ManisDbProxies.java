@@ -1,17 +1,24 @@
 package com.rchen102;
 
+import com.rchen102.conf.CommonConfigurationKeysPublic;
 import com.rchen102.conf.Configuration;
 import com.rchen102.ipc.ProtobufRpcEngine;
 import com.rchen102.ipc.RPC;
 import com.rchen102.ipc.SerializableRpcEngine;
+import com.rchen102.net.NetUtils;
+import com.rchen102.protocol.CachingClientProtocol;
 import com.rchen102.protocol.ClientProtocol;
+import com.rchen102.protocol.ClientProtocolAsync;
 import com.rchen102.protocol.ManagerManisDbProtocolSerializable;
+import com.rchen102.protocol.ManagerManisDbProtocolSerializableStub;
 import com.rchen102.protocol.ManagerProtocol;
+import com.rchen102.protocol.proto.ClientManisDbProtocolProtos;
+import com.rchen102.protocolPB.ClientManisDbProtocolAsyncTranslatorPB;
 import com.rchen102.protocolPB.ClientManisDbProtocolPB;
+import com.rchen102.protocolPB.ClientManisDbProtocolPBAsync;
 import com.rchen102.protocolPB.ClientManisDbProtocolTranslatorPB;
 import com.rchen102.server.manisdb.ManisDb;
 
-import javax.net.SocketFactory;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
@@ -51,6 +58,8 @@ public class ManisDbProxies {
         T proxy;
         if (xface == ClientProtocol.class) {
             proxy = (T) createManisDbProxyWithClientProtocol(conf, manisDbAddr);
+        } else if (xface == ClientProtocolAsync.class) {
+            proxy = (T) createManisDbProxyWithClientProtocolAsync(conf, manisDbAddr);
         } else if (xface == ManagerProtocol.class) {
             proxy = (T) createManisDbProxyWithManagerProtocol(conf, manisDbAddr);
         } else {
@@ -62,25 +71,75 @@ public class ManisDbProxies {
         return new ProxyInfo<T>(proxy, manisDbAddr);
     }
 
+    /**
+     * 是否使用具体的 stub 类代替动态代理，见 IPC_CLIENT_STUB_ENABLED_KEY
+     */
+    private static boolean useStub(Configuration conf) {
+        return conf.getBoolean(CommonConfigurationKeysPublic.IPC_CLIENT_STUB_ENABLED_KEY,
+                CommonConfigurationKeysPublic.IPC_CLIENT_STUB_ENABLED_DEFAULT);
+    }
+
     private static ManagerProtocol createManisDbProxyWithManagerProtocol(
             Configuration conf, InetSocketAddress address) throws IOException {
         RPC.setProtocolEngine(conf, ManagerManisDbProtocolSerializable.class, SerializableRpcEngine.class);
         final long version = RPC.getProtocolVersion(ManagerManisDbProtocolSerializable.class);
         int rpcTimeOut = 6000;
+        if (useStub(conf)) {
+            return new ManagerManisDbProtocolSerializableStub(
+                    SerializableRpcEngine.getRpcChannel(ManagerManisDbProtocolSerializable.class,
+                            address, conf, NetUtils.getDefaultSocketFactory(conf), rpcTimeOut));
+        }
         ManagerManisDbProtocolSerializable proxy =
                 RPC.getProtocolProxy(ManagerManisDbProtocolSerializable.class, version,
-                        address, conf, SocketFactory.getDefault(), rpcTimeOut);
+                        address, conf, NetUtils.getDefaultSocketFactory(conf), rpcTimeOut);
         return proxy;
     }
 
+    /**
+     * 配置了 MANIS_CLIENT_TABLECOUNT_CACHE_SIZE_KEY 时，在代理外层缓存 getTableCount 的结果
+     */
     private static ClientProtocol createManisDbProxyWithClientProtocol(
             Configuration conf, InetSocketAddress address) throws IOException {
+        ClientProtocol proxy = createManisDbProxyWithClientProtocolPB(conf, address);
+        int cacheSize = conf.getInt(ManisClient.MANIS_CLIENT_TABLECOUNT_CACHE_SIZE_KEY,
+                ManisClient.MANIS_CLIENT_TABLECOUNT_CACHE_SIZE_DEFAULT);
+        if (cacheSize <= 0) {
+            return proxy;
+        }
+        int ttl = conf.getInt(ManisClient.MANIS_CLIENT_TABLECOUNT_CACHE_TTL_KEY,
+                ManisClient.MANIS_CLIENT_TABLECOUNT_CACHE_TTL_DEFAULT);
+        return new CachingClientProtocol(proxy, cacheSize, ttl);
+    }
+
+    private static ClientProtocol createManisDbProxyWithClientProtocolPB(
+            Configuration conf, InetSocketAddress address) throws IOException {
         RPC.setProtocolEngine(conf, ClientManisDbProtocolPB.class, ProtobufRpcEngine.class);
         final long version = RPC.getProtocolVersion(ClientManisDbProtocolPB.class);
         int rpcTimeOut = 6000;
+        if (useStub(conf)) {
+            // protoc 生成的 BlockingStub
+            ProtobufRpcEngine.BlockingChannel channel = ProtobufRpcEngine.getBlockingChannel(
+                    ClientManisDbProtocolPB.class,
+                    ClientManisDbProtocolProtos.ClientManisDbProtocol.getDescriptor(),
+                    address, conf, NetUtils.getDefaultSocketFactory(conf), rpcTimeOut);
+            return new ClientManisDbProtocolTranslatorPB(
+                    ClientManisDbProtocolProtos.ClientManisDbProtocol.newBlockingStub(channel),
+                    channel);
+        }
         ClientManisDbProtocolPB proxy =
                 RPC.getProtocolProxy(ClientManisDbProtocolPB.class, version,
-                        address, conf, SocketFactory.getDefault(), rpcTimeOut);
+                        address, conf, NetUtils.getDefaultSocketFactory(conf), rpcTimeOut);
         return new ClientManisDbProtocolTranslatorPB(proxy);
     }
+
+    private static ClientProtocolAsync createManisDbProxyWithClientProtocolAsync(
+            Configuration conf, InetSocketAddress address) throws IOException {
+        RPC.setProtocolEngine(conf, ClientManisDbProtocolPBAsync.class, ProtobufRpcEngine.class);
+        final long version = RPC.getProtocolVersion(ClientManisDbProtocolPBAsync.class);
+        int rpcTimeOut = 6000;
+        ClientManisDbProtocolPBAsync proxy =
+                RPC.getProtocolProxy(ClientManisDbProtocolPBAsync.class, version,
+                        address, conf, NetUtils.getDefaultSocketFactory(conf), rpcTimeOut);
+        return new ClientManisDbProtocolAsyncTranslatorPB(proxy);
+    }
 }
@@ -33,4 +33,119 @@ public class CommonConfigurationKeysPublic {
     public static final String  IPC_PING_INTERVAL_KEY = "ipc.ping.interval";
     /** IPC_PING_INTERVAL_KEY 的默认值，1min */
     public static final int     IPC_PING_INTERVAL_DEFAULT = 60000;
+
+    /** RPC 客户端是否使用基于 selector 的非阻塞传输（NIO） */
+    public static final String  IPC_CLIENT_NIO_ENABLED_KEY = "ipc.client.nio.enabled";
+    /** IPC_CLIENT_NIO_ENABLED_KEY 的默认值，false，即每个连接一个 receiver 线程 */
+    public static final boolean IPC_CLIENT_NIO_ENABLED_DEFAULT = false;
+
+    /** NIO 传输下，所有连接共享的 selector 线程数 */
+    public static final String  IPC_CLIENT_NIO_SELECTOR_COUNT_KEY =
+            "ipc.client.nio.selector.count";
+    /** IPC_CLIENT_NIO_SELECTOR_COUNT_KEY 的默认值，2 */
+    public static final int     IPC_CLIENT_NIO_SELECTOR_COUNT_DEFAULT = 2;
+
+    /**
+     * 是否直接从接收缓冲区解析响应
+     * 开启后，完整的响应读入池化的缓冲区，Protocol Buffer 响应直接从该缓冲区解析，
+     * 不再拷贝到单独的字节数组，解析后缓冲区归还到池中
+     */
+    public static final String  IPC_CLIENT_RESPONSE_ZEROCOPY_KEY =
+            "ipc.client.response.zerocopy";
+    /** IPC_CLIENT_RESPONSE_ZEROCOPY_KEY 的默认值，false */
+    public static final boolean IPC_CLIENT_RESPONSE_ZEROCOPY_DEFAULT = false;
+
+    /**
+     * 是否使用具体的 stub 类代替 java.lang.reflect.Proxy 动态代理
+     * Protocol Buffer 协议使用 protoc 生成的 BlockingStub，Serializable 协议使用对应的 Stub 类
+     */
+    public static final String  IPC_CLIENT_STUB_ENABLED_KEY = "ipc.client.stub.enabled";
+    /** IPC_CLIENT_STUB_ENABLED_KEY 的默认值，false */
+    public static final boolean IPC_CLIENT_STUB_ENABLED_DEFAULT = false;
+
+    /**
+     * 每个 ConnectionId 最多建立的连接数（条带数）
+     * 调用选择未完成调用最少的连接，所有连接都有未完成的调用时才建立新的连接，
+     * 这样并发访问同一个服务端的线程不必都在一个 socket 上排队
+     */
+    public static final String  IPC_CLIENT_CONNECTION_STRIPES_KEY =
+            "ipc.client.connection.stripes";
+    /** IPC_CLIENT_CONNECTION_STRIPES_KEY 的默认值，1，即每个 ConnectionId 一个连接 */
+    public static final int     IPC_CLIENT_CONNECTION_STRIPES_DEFAULT = 1;
+
+    /**
+     * 是否将客户端连接的统计注册为 JMX MBean
+     * 每个服务端地址一个 ClientConnection MBean，每个 Client 一个汇总的 Client MBean
+     */
+    public static final String  IPC_CLIENT_JMX_ENABLED_KEY = "ipc.client.jmx.enabled";
+    /** IPC_CLIENT_JMX_ENABLED_KEY 的默认值，true */
+    public static final boolean IPC_CLIENT_JMX_ENABLED_DEFAULT = true;
+
+    /**
+     * 没有打开的连接时仍然保留统计（以及 ClientConnection MBean）的服务端地址数
+     * 超过后最早空闲的地址的统计被移除，计数并入 Client 的汇总统计
+     */
+    public static final String  IPC_CLIENT_STATS_MAX_IDLE_ADDRESSES_KEY =
+            "ipc.client.stats.max.idle.addresses";
+    /** IPC_CLIENT_STATS_MAX_IDLE_ADDRESSES_KEY 的默认值，1024 */
+    public static final int     IPC_CLIENT_STATS_MAX_IDLE_ADDRESSES_DEFAULT = 1024;
+
+    /**
+     * RPC 客户端使用的压缩 codec 的名字，如 "deflate"，在连接上下文中发送给服务端
+     * 服务端支持该 codec 时，双方对超过 IPC_COMPRESSION_THRESHOLD_KEY 的请求和响应压缩
+     */
+    public static final String  IPC_COMPRESSION_CODEC_KEY = "ipc.compression.codec";
+    /** IPC_COMPRESSION_CODEC_KEY 的默认值，空，即不压缩 */
+    public static final String  IPC_COMPRESSION_CODEC_DEFAULT = "";
+
+    /** 除内置的 deflate 之外可用的 codec 类，逗号分隔，客户端和服务端都需要配置 */
+    public static final String  IPC_COMPRESSION_CODEC_CLASSES_KEY = "ipc.compression.codec.classes";
+
+    /** 请求或响应的负载超过该字节数时才压缩，客户端和服务端各自使用自己的配置 */
+    public static final String  IPC_COMPRESSION_THRESHOLD_KEY = "ipc.compression.threshold";
+    /** IPC_COMPRESSION_THRESHOLD_KEY 的默认值，8KB */
+    public static final int     IPC_COMPRESSION_THRESHOLD_DEFAULT = 8 * 1024;
+
+    /**
+     * 请求或响应的负载超过该字节数时拆分为多个 frame，每个 frame 的负载不超过该值
+     * 客户端用于请求，服务端用于响应；一个大的调用不会阻塞同一连接上排在它后面的调用
+     */
+    public static final String  IPC_STREAM_CHUNK_SIZE_KEY = "ipc.stream.chunk.size";
+    /** IPC_STREAM_CHUNK_SIZE_KEY 的默认值，64KB，不大于 0 时不拆分 */
+    public static final int     IPC_STREAM_CHUNK_SIZE_DEFAULT = 64 * 1024;
+
+    /** RPC 服务端 accept 队列（backlog）的长度 */
+    public static final String  IPC_SERVER_LISTEN_QUEUE_SIZE_KEY =
+            "ipc.server.listen.queue.size";
+    /** IPC_SERVER_LISTEN_QUEUE_SIZE_KEY 的默认值，1024，大量客户端同时建立连接时避免被拒绝 */
+    public static final int     IPC_SERVER_LISTEN_QUEUE_SIZE_DEFAULT = 1024;
+
+    /** RPC 服务端 reader 线程数，每个 reader 使用一个 selector 读取分配给它的连接 */
+    public static final String  IPC_SERVER_RPC_READ_THREADS_KEY =
+            "ipc.server.read.threadpool.size";
+    /** IPC_SERVER_RPC_READ_THREADS_KEY 的默认值，2 */
+    public static final int     IPC_SERVER_RPC_READ_THREADS_DEFAULT = 2;
+
+    /** RPC 服务端每个 handler 对应的调用队列长度，队列总长度为 handler 数乘以该值 */
+    public static final String  IPC_SERVER_HANDLER_QUEUE_SIZE_KEY =
+            "ipc.server.handler.queue.size";
+    /** IPC_SERVER_HANDLER_QUEUE_SIZE_KEY 的默认值，100 */
+    public static final int     IPC_SERVER_HANDLER_QUEUE_SIZE_DEFAULT = 100;
+
+    /** RPC 服务端接收的单个请求的最大长度 */
+    public static final String  IPC_MAXIMUM_DATA_LENGTH =
+            "ipc.maximum.data.length";
+    /** IPC_MAXIMUM_DATA_LENGTH 的默认值，64MB */
+    public static final int     IPC_MAXIMUM_DATA_LENGTH_DEFAULT = 64 * 1024 * 1024;
+
+    public static final String  IPC_SERVER_TCPNODELAY_KEY =
+            "ipc.server.tcpnodelay";
+    /** IPC_SERVER_TCPNODELAY_KEY 的默认值，true */
+    public static final boolean IPC_SERVER_TCPNODELAY_DEFAULT = true;
+
+    /** RPC 服务端允许的最大连接数，超过后新的连接直接关闭 */
+    public static final String  IPC_SERVER_MAX_CONNECTIONS_KEY =
+            "ipc.server.max.connections";
+    /** IPC_SERVER_MAX_CONNECTIONS_KEY 的默认值，0，即不限制 */
+    public static final int     IPC_SERVER_MAX_CONNECTIONS_DEFAULT = 0;
 }
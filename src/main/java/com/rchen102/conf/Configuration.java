@@ -32,6 +32,10 @@ public class Configuration {
         return Integer.parseInt(valueStr);
     }
 
+    public void setInt(String name, int value) {
+        set(name, Integer.toString(value));
+    }
+
     public boolean getBoolean(String name, boolean defaultValue) {
         String valueStr = get(name);
         if (valueStr == null) {
@@ -48,6 +52,10 @@ public class Configuration {
         return defaultValue;
     }
 
+    public void setBoolean(String name, boolean value) {
+        set(name, Boolean.toString(value));
+    }
+
     public void setClass(String name, Class<?> theClass, Class<?> xface) {
         if (!xface.isAssignableFrom(theClass)) {
             throw new RuntimeException(theClass + " not " + xface.getName());
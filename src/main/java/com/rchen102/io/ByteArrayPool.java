@@ -0,0 +1,77 @@
+package com.rchen102.io;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 字节数组池，线程安全
+ * 数组按 2 的幂次分桶，获取的数组长度可能大于请求的长度，调用者需要自己记录有效长度
+ * 超过 maxRetainedSize 的数组直接分配，归还时丢弃
+ */
+public class ByteArrayPool {
+    /** 最小的数组长度，512 字节 */
+    private static final int MIN_SHIFT = 9;
+
+    private final ConcurrentLinkedQueue<byte[]>[] buckets;
+    private final AtomicInteger[] bucketSizes;
+    /** 每个桶最多保留的数组数量 */
+    private final int maxPerBucket;
+    private final int maxRetainedSize;
+
+    @SuppressWarnings("unchecked")
+    public ByteArrayPool(int maxPerBucket, int maxRetainedSize) {
+        this.maxPerBucket = maxPerBucket;
+        this.maxRetainedSize = maxRetainedSize;
+        int bucketNum = Math.max(0, bucketIndex(maxRetainedSize) + 1);
+        this.buckets = new ConcurrentLinkedQueue[bucketNum];
+        this.bucketSizes = new AtomicInteger[bucketNum];
+        for (int i = 0; i < bucketNum; i++) {
+            buckets[i] = new ConcurrentLinkedQueue<>();
+            bucketSizes[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * 返回能容纳 size 字节的最小桶的下标
+     */
+    private static int bucketIndex(int size) {
+        if (size <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * 获取长度不小于 size 的数组，数组内容未清空
+     */
+    public byte[] acquire(int size) {
+        if (size > maxRetainedSize) {
+            return new byte[size];
+        }
+        int index = bucketIndex(size);
+        byte[] array = buckets[index].poll();
+        if (array == null) {
+            return new byte[1 << (index + MIN_SHIFT)];
+        }
+        bucketSizes[index].decrementAndGet();
+        return array;
+    }
+
+    /**
+     * 归还数组，归还后调用者不能再使用该数组
+     */
+    public void release(byte[] array) {
+        int length = array.length;
+        // 只接收由 acquire 分配的、长度为 2 的幂次的数组
+        if (length > maxRetainedSize || length < (1 << MIN_SHIFT)
+                || Integer.bitCount(length) != 1) {
+            return;
+        }
+        int index = bucketIndex(length);
+        if (bucketSizes[index].incrementAndGet() > maxPerBucket) {
+            bucketSizes[index].decrementAndGet();
+            return;
+        }
+        buckets[index].offer(array);
+    }
+}
@@ -0,0 +1,123 @@
+package com.rchen102.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * 可复用的 DataOutput，数据写入内存中可增长的缓冲区
+ * 与 ByteArrayOutputStream 不同，可以直接访问内部的字节数组（{@link #getData()}），
+ * 不需要 toByteArray() 拷贝一次；调用 {@link #reset()} 后可以重新使用
+ */
+public class DataOutputBuffer extends DataOutputStream {
+
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer(int size) {
+            super(size);
+        }
+
+        byte[] getData() {
+            return buf;
+        }
+
+        int getLength() {
+            return count;
+        }
+
+        int getCapacity() {
+            return buf.length;
+        }
+
+        void ensureCapacity(int capacity) {
+            if (capacity > buf.length) {
+                buf = Arrays.copyOf(buf, capacity);
+            }
+        }
+    }
+
+    private final Buffer buffer;
+
+    public DataOutputBuffer() {
+        this(32);
+    }
+
+    public DataOutputBuffer(int size) {
+        this(new Buffer(size));
+    }
+
+    private DataOutputBuffer(Buffer buffer) {
+        super(buffer);
+        this.buffer = buffer;
+    }
+
+    /**
+     * 返回内部的字节数组，有效数据为 [0, getLength())
+     */
+    public byte[] getData() {
+        return buffer.getData();
+    }
+
+    /**
+     * 返回有效数据的长度
+     */
+    public int getLength() {
+        return buffer.getLength();
+    }
+
+    public int getCapacity() {
+        return buffer.getCapacity();
+    }
+
+    /**
+     * 保证缓冲区至少能容纳 capacity 个字节，避免写入过程中多次扩容
+     */
+    public void ensureCapacity(int capacity) {
+        buffer.ensureCapacity(capacity);
+    }
+
+    /**
+     * 清空数据，缓冲区保留，可以重新写入
+     */
+    public DataOutputBuffer reset() {
+        this.written = 0;
+        buffer.reset();
+        return this;
+    }
+
+    /**
+     * 在已写入数据的 pos 位置覆盖写一个 int（大端），用于回填长度字段
+     * @param pos 写入的位置，[pos, pos + 4) 必须已经写入过数据
+     * @param v 写入的值
+     */
+    public void writeInt(int pos, int v) {
+        if (pos < 0 || pos + 4 > getLength()) {
+            throw new IndexOutOfBoundsException("pos: " + pos + ", length: " + getLength());
+        }
+        byte[] data = getData();
+        data[pos] = (byte) (v >>> 24);
+        data[pos + 1] = (byte) (v >>> 16);
+        data[pos + 2] = (byte) (v >>> 8);
+        data[pos + 3] = (byte) v;
+    }
+
+    /**
+     * 在已写入数据的 pos 位置覆盖写一个字节
+     * @param pos 写入的位置，必须已经写入过数据
+     * @param v 写入的值，只使用低 8 位
+     */
+    public void writeByte(int pos, int v) {
+        if (pos < 0 || pos >= getLength()) {
+            throw new IndexOutOfBoundsException("pos: " + pos + ", length: " + getLength());
+        }
+        getData()[pos] = (byte) v;
+    }
+
+    /**
+     * 将有效数据直接写入 out，不产生拷贝
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        buffer.writeTo(out);
+    }
+}
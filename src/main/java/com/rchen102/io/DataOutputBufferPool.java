@@ -0,0 +1,55 @@
+package com.rchen102.io;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link DataOutputBuffer} 的对象池，线程安全
+ * 缓冲区可以在一个线程中获取、在另一个线程中归还
+ * 为了避免长期占用内存，池中缓冲区的数量和每个缓冲区的容量都有上限
+ */
+public class DataOutputBufferPool {
+    private final ConcurrentLinkedQueue<DataOutputBuffer> buffers =
+            new ConcurrentLinkedQueue<>();
+    /** 池中缓冲区的数量，ConcurrentLinkedQueue.size() 需要遍历，因此单独计数 */
+    private final AtomicInteger pooled = new AtomicInteger();
+    /** 池中最多保留的缓冲区数量 */
+    private final int maxPooled;
+    /** 容量超过该值的缓冲区不归还到池中，单位：字节 */
+    private final int maxRetainedCapacity;
+
+    public DataOutputBufferPool(int maxPooled, int maxRetainedCapacity) {
+        this.maxPooled = maxPooled;
+        this.maxRetainedCapacity = maxRetainedCapacity;
+    }
+
+    /**
+     * 获取一个空的缓冲区
+     * @param capacity 预计写入的字节数
+     * @return 容量不小于 capacity 的缓冲区
+     */
+    public DataOutputBuffer acquire(int capacity) {
+        DataOutputBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return new DataOutputBuffer(capacity);
+        }
+        pooled.decrementAndGet();
+        buffer.reset();
+        buffer.ensureCapacity(capacity);
+        return buffer;
+    }
+
+    /**
+     * 归还缓冲区，归还后调用者不能再使用该缓冲区
+     */
+    public void release(DataOutputBuffer buffer) {
+        if (buffer.getCapacity() > maxRetainedCapacity) {
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.offer(buffer);
+    }
+}
@@ -1,5 +1,9 @@
 package com.rchen102.io;
 
+import com.rchen102.conf.CommonConfigurationKeysPublic;
+import com.rchen102.util.ProtoUtil;
+import com.rchen102.util.ReflectionUtils;
+
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
@@ -7,11 +11,90 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * 用于封装返回值，与 Invocation 对应
+ *
+ * 序列化不使用 Java 序列化（ObjectOutputStream 每次都要写流头和类描述），
+ * 而是使用紧凑的编码：类型用 1 字节的 id 表示（见 {@link #writeClass}），
+ * 基本类型、String、数组以及 Writable 直接写值，
+ * 只有其他实现了 Serializable 的类型才退回到 Java 序列化
  */
 public class ObjectWritable implements Writable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /*
+     * 类型 id
+     * 既用于表示声明的类型（writeClass），也用于表示值的实际编码（writeValue）
+     * 包内可见，测试用它们构造非法数据
+     */
+    static final byte NULL = 0;
+    static final byte BOOLEAN = 1;
+    static final byte BYTE = 2;
+    static final byte CHAR = 3;
+    static final byte SHORT = 4;
+    static final byte INT = 5;
+    static final byte LONG = 6;
+    static final byte FLOAT = 7;
+    static final byte DOUBLE = 8;
+    static final byte VOID = 9;
+    static final byte STRING = 10;
+    static final byte ARRAY = 11;
+    static final byte WRITABLE = 12;
+    static final byte SERIALIZABLE = 13;
+    /** 不在注册表中的类型，之后写类名 */
+    static final byte CLASS_BY_NAME = 14;
+
+    /**
+     * 读到的长度（字符串字节数、数组长度、Java 序列化数据的字节数）的上限
+     * 长度来自网络，不做检查时一个很大的值会直接分配出巨大的数组；
+     * 任何一个值都不可能比整个 RPC 数据包还长，因此与 ipc.maximum.data.length 的默认值一致
+     */
+    private static final int MAX_LENGTH =
+            CommonConfigurationKeysPublic.IPC_MAXIMUM_DATA_LENGTH_DEFAULT;
+
+    /** 类型 -> id */
+    private static final Map<Class<?>, Byte> CLASS_TO_ID = new HashMap<>();
+    /** id -> 类型，下标为 id */
+    private static final Class<?>[] ID_TO_CLASS = new Class<?>[CLASS_BY_NAME];
+
+    static {
+        register(BOOLEAN, Boolean.TYPE);
+        register(BYTE, Byte.TYPE);
+        register(CHAR, Character.TYPE);
+        register(SHORT, Short.TYPE);
+        register(INT, Integer.TYPE);
+        register(LONG, Long.TYPE);
+        register(FLOAT, Float.TYPE);
+        register(DOUBLE, Double.TYPE);
+        register(VOID, Void.TYPE);
+        register(STRING, String.class);
+    }
+
+    private static void register(byte id, Class<?> clazz) {
+        CLASS_TO_ID.put(clazz, id);
+        ID_TO_CLASS[id] = clazz;
+    }
+
+    /** 基本类型的包装类 -> 基本类型 */
+    private static final Map<Class<?>, Class<?>> WRAPPER_TO_PRIMITIVE = new HashMap<>();
+
+    static {
+        WRAPPER_TO_PRIMITIVE.put(Boolean.class, Boolean.TYPE);
+        WRAPPER_TO_PRIMITIVE.put(Byte.class, Byte.TYPE);
+        WRAPPER_TO_PRIMITIVE.put(Character.class, Character.TYPE);
+        WRAPPER_TO_PRIMITIVE.put(Short.class, Short.TYPE);
+        WRAPPER_TO_PRIMITIVE.put(Integer.class, Integer.TYPE);
+        WRAPPER_TO_PRIMITIVE.put(Long.class, Long.TYPE);
+        WRAPPER_TO_PRIMITIVE.put(Float.class, Float.TYPE);
+        WRAPPER_TO_PRIMITIVE.put(Double.class, Double.TYPE);
+    }
+
     // 返回值类型
     private Class declaredClass;
     // 返回值对象
@@ -28,35 +111,268 @@ public class ObjectWritable implements Writable {
         return instance;
     }
 
+    public Class getDeclaredClass() {
+        return declaredClass;
+    }
+
     @Override
     public void write(DataOutput out) throws IOException {
-        ByteArrayOutputStream byteArrOut = new ByteArrayOutputStream();
-        ObjectOutputStream objOut = new ObjectOutputStream(byteArrOut);
-
-        objOut.writeObject(declaredClass);
-        objOut.writeObject(instance);
-        objOut.flush();
-
-        byte[] data = byteArrOut.toByteArray();
-        out.writeInt(data.length);
-        out.write(data);
+        writeObject(out, instance, declaredClass);
     }
 
     @Override
     public void readFields(DataInput in) throws IOException {
-        int length = in.readInt();
-        byte[] data = new byte[length];
-        in.readFully(data);
+        declaredClass = readClass(in);
+        instance = readValue(in, declaredClass);
+    }
+
+    /**
+     * 写入一个对象：先写声明的类型，再写值
+     * @param out 输出
+     * @param instance 对象，可以为 null（基本类型除外）
+     * @param declaredClass 声明的类型，如方法的参数类型、返回值类型
+     */
+    public static void writeObject(DataOutput out, Object instance,
+                                   Class<?> declaredClass) throws IOException {
+        writeClass(out, declaredClass);
+        writeValue(out, instance, declaredClass);
+    }
+
+    /**
+     * 读取 {@link #writeObject} 写入的对象
+     * @param in 输入
+     * @param objectWritable 不为 null 时，记录读到的声明类型和值
+     * @return 读到的值
+     */
+    public static Object readObject(DataInput in, ObjectWritable objectWritable)
+            throws IOException {
+        Class<?> declaredClass = readClass(in);
+        Object instance = readValue(in, declaredClass);
+        if (objectWritable != null) {
+            objectWritable.declaredClass = declaredClass;
+            objectWritable.instance = instance;
+        }
+        return instance;
+    }
+
+    /**
+     * 写入类型
+     * 注册表中的类型只写 1 字节的 id，数组写 ARRAY 和元素类型，其他类型写 CLASS_BY_NAME 和类名
+     */
+    public static void writeClass(DataOutput out, Class<?> clazz) throws IOException {
+        Byte id = CLASS_TO_ID.get(clazz);
+        if (id != null) {
+            out.writeByte(id);
+        } else if (clazz.isArray()) {
+            out.writeByte(ARRAY);
+            writeClass(out, clazz.getComponentType());
+        } else {
+            out.writeByte(CLASS_BY_NAME);
+            writeString(out, clazz.getName());
+        }
+    }
 
-        ByteArrayInputStream byteArrIn = new ByteArrayInputStream(data);
-        ObjectInputStream objIn = new ObjectInputStream(byteArrIn);
+    public static Class<?> readClass(DataInput in) throws IOException {
+        byte id = in.readByte();
+        if (id == ARRAY) {
+            return Array.newInstance(readClass(in), 0).getClass();
+        } else if (id == CLASS_BY_NAME) {
+            return loadClass(readString(in));
+        } else if (id > NULL && id < ID_TO_CLASS.length && ID_TO_CLASS[id] != null) {
+            return ID_TO_CLASS[id];
+        }
+        throw new IOException("Unknown class id: " + id);
+    }
 
+    private static Class<?> loadClass(String className) throws IOException {
         try {
-            declaredClass = (Class) objIn.readObject();
-            instance = objIn.readObject();
+            return Class.forName(className);
         } catch (ClassNotFoundException e) {
-            throw new IOException("Class not found when deserialize.");
+            throw new IOException("Class not found when deserialize: " + className, e);
+        }
+    }
+
+    /**
+     * 按照声明的类型写值
+     * 声明为基本类型时直接写值；否则先写 1 字节表示实际的编码方式
+     */
+    private static void writeValue(DataOutput out, Object instance,
+                                   Class<?> declaredClass) throws IOException {
+        if (declaredClass.isPrimitive()) {
+            writePrimitive(out, instance, declaredClass);
+            return;
+        }
+        if (instance == null) {
+            out.writeByte(NULL);
+            return;
+        }
+
+        Class<?> instanceClass = instance.getClass();
+        Class<?> primitive = WRAPPER_TO_PRIMITIVE.get(instanceClass);
+        if (instanceClass == String.class) {
+            out.writeByte(STRING);
+            writeString(out, (String) instance);
+        } else if (primitive != null) {
+            // 声明为 Object、Integer 等引用类型，实际为基本类型的包装类
+            out.writeByte(CLASS_TO_ID.get(primitive));
+            writePrimitive(out, instance, primitive);
+        } else if (instanceClass.isArray()) {
+            out.writeByte(ARRAY);
+            Class<?> componentType = instanceClass.getComponentType();
+            writeClass(out, componentType);
+            int length = Array.getLength(instance);
+            ProtoUtil.writeRawVarInt32(out, length);
+            if (componentType == Byte.TYPE) {
+                out.write((byte[]) instance);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    writeValue(out, Array.get(instance, i), componentType);
+                }
+            }
+        } else if (instance instanceof Writable) {
+            out.writeByte(WRITABLE);
+            writeString(out, instanceClass.getName());
+            ((Writable) instance).write(out);
+        } else if (instance instanceof Serializable) {
+            // 其他类型退回到 Java 序列化
+            out.writeByte(SERIALIZABLE);
+            ByteArrayOutputStream byteArrOut = new ByteArrayOutputStream();
+            ObjectOutputStream objOut = new ObjectOutputStream(byteArrOut);
+            objOut.writeObject(instance);
+            objOut.flush();
+            ProtoUtil.writeRawVarInt32(out, byteArrOut.size());
+            out.write(byteArrOut.toByteArray());
+        } else {
+            throw new IOException("Can't write: " + instance + " as " + declaredClass);
+        }
+    }
+
+    private static Object readValue(DataInput in, Class<?> declaredClass) throws IOException {
+        if (declaredClass.isPrimitive()) {
+            return readPrimitive(in, declaredClass);
+        }
+
+        byte id = in.readByte();
+        switch (id) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case ARRAY: {
+                Class<?> componentType = readClass(in);
+                int length = readLength(in);
+                if (componentType == Byte.TYPE) {
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    return bytes;
+                }
+                Object array = Array.newInstance(componentType, length);
+                for (int i = 0; i < length; i++) {
+                    Array.set(array, i, readValue(in, componentType));
+                }
+                return array;
+            }
+            case WRITABLE: {
+                Class<?> instanceClass = loadClass(readString(in));
+                // 类名来自网络，必须先确认是 Writable 再实例化，避免执行任意类的构造方法
+                if (!Writable.class.isAssignableFrom(instanceClass)) {
+                    throw new IOException("Not a Writable: " + instanceClass.getName());
+                }
+                Writable writable = (Writable) ReflectionUtils.newInstance(instanceClass);
+                writable.readFields(in);
+                return writable;
+            }
+            case SERIALIZABLE: {
+                byte[] data = new byte[readLength(in)];
+                in.readFully(data);
+                ObjectInputStream objIn = new ObjectInputStream(new ByteArrayInputStream(data));
+                try {
+                    return objIn.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Class not found when deserialize.", e);
+                }
+            }
+            default:
+                if (id > NULL && id <= DOUBLE) {
+                    return readPrimitive(in, ID_TO_CLASS[id]);
+                }
+                throw new IOException("Unknown value type id: " + id);
+        }
+    }
+
+    private static void writePrimitive(DataOutput out, Object instance,
+                                       Class<?> declaredClass) throws IOException {
+        if (declaredClass == Boolean.TYPE) {
+            out.writeBoolean((Boolean) instance);
+        } else if (declaredClass == Character.TYPE) {
+            out.writeChar((Character) instance);
+        } else if (declaredClass == Byte.TYPE) {
+            out.writeByte((Byte) instance);
+        } else if (declaredClass == Short.TYPE) {
+            out.writeShort((Short) instance);
+        } else if (declaredClass == Integer.TYPE) {
+            out.writeInt((Integer) instance);
+        } else if (declaredClass == Long.TYPE) {
+            out.writeLong((Long) instance);
+        } else if (declaredClass == Float.TYPE) {
+            out.writeFloat((Float) instance);
+        } else if (declaredClass == Double.TYPE) {
+            out.writeDouble((Double) instance);
+        } else if (declaredClass == Void.TYPE) {
+            // void 没有值
+        } else {
+            throw new IllegalArgumentException("Not a primitive: " + declaredClass);
+        }
+    }
+
+    private static Object readPrimitive(DataInput in, Class<?> declaredClass) throws IOException {
+        if (declaredClass == Boolean.TYPE) {
+            return in.readBoolean();
+        } else if (declaredClass == Character.TYPE) {
+            return in.readChar();
+        } else if (declaredClass == Byte.TYPE) {
+            return in.readByte();
+        } else if (declaredClass == Short.TYPE) {
+            return in.readShort();
+        } else if (declaredClass == Integer.TYPE) {
+            return in.readInt();
+        } else if (declaredClass == Long.TYPE) {
+            return in.readLong();
+        } else if (declaredClass == Float.TYPE) {
+            return in.readFloat();
+        } else if (declaredClass == Double.TYPE) {
+            return in.readDouble();
+        } else if (declaredClass == Void.TYPE) {
+            return null;
+        }
+        throw new IllegalArgumentException("Not a primitive: " + declaredClass);
+    }
+
+    /**
+     * 写字符串：varint 编码的 UTF-8 字节长度 + UTF-8 字节
+     * 与 writeUTF 不同，没有 64KB 的长度限制
+     */
+    public static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        ProtoUtil.writeRawVarInt32(out, bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * 读取 varint 编码的长度，拒绝负数和超过 {@link #MAX_LENGTH} 的值
+     */
+    private static int readLength(DataInput in) throws IOException {
+        int length = ProtoUtil.readRawVarInt32(in);
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IOException("Invalid length: " + length);
         }
+        return length;
     }
 
     @Override
@@ -0,0 +1,30 @@
+package com.rchen102.io.compress;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * RPC frame 的压缩算法
+ * 客户端在连接上下文中发送 codec 的名字，服务端按名字找到相同的 codec，见 {@link CodecFactory}
+ * 实现需要线程安全，并且有无参构造函数
+ */
+public interface Codec {
+    /**
+     * @return codec 的名字，在客户端和服务端之间协商时使用
+     */
+    String getName();
+
+    /**
+     * 压缩 src[off, off + len)
+     * @param out 压缩结果的输出
+     */
+    void compress(byte[] src, int off, int len, OutputStream out) throws IOException;
+
+    /**
+     * 解压 src[off, off + len)，解压后的长度在压缩时记录，由调用者给出
+     * @param dst 解压结果写入 dst[dstOff, dstOff + dstLen)
+     * @throws IOException 数据损坏，或者解压后的长度与 dstLen 不一致
+     */
+    void decompress(byte[] src, int off, int len, byte[] dst, int dstOff, int dstLen)
+            throws IOException;
+}
@@ -0,0 +1,90 @@
+package com.rchen102.io.compress;
+
+import com.rchen102.conf.CommonConfigurationKeysPublic;
+import com.rchen102.conf.Configuration;
+import com.rchen102.io.DataOutputBuffer;
+import com.rchen102.util.ReflectionUtils;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 按名字查找 codec
+ * 内置 {@link DeflateCodec}，其他 codec 由 IPC_COMPRESSION_CODEC_CLASSES_KEY 配置
+ *
+ * 压缩的 frame 负载格式：
+ * +----------------------------------+
+ * |  解压后的长度 (4 bytes)            |
+ * +----------------------------------+
+ * |  codec 压缩的数据                  |
+ * +----------------------------------+
+ */
+public class CodecFactory {
+    private final Map<String, Codec> codecs = new HashMap<>();
+
+    public CodecFactory(Configuration conf) {
+        add(new DeflateCodec());
+        String classes = conf.get(CommonConfigurationKeysPublic.IPC_COMPRESSION_CODEC_CLASSES_KEY);
+        if (classes != null) {
+            for (String className : classes.split(",")) {
+                className = className.trim();
+                if (className.isEmpty()) {
+                    continue;
+                }
+                Class<?> codecClass;
+                try {
+                    codecClass = conf.getClassByName(className);
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalArgumentException("Codec class " + className + " not found", e);
+                }
+                if (!Codec.class.isAssignableFrom(codecClass)) {
+                    throw new IllegalArgumentException(className + " is not a " + Codec.class.getName());
+                }
+                add((Codec) ReflectionUtils.newInstance(codecClass));
+            }
+        }
+    }
+
+    private void add(Codec codec) {
+        codecs.put(codec.getName(), codec);
+    }
+
+    /**
+     * @return 名字对应的 codec，不存在时返回 null
+     */
+    public Codec getCodec(String name) {
+        return codecs.get(name);
+    }
+
+    /**
+     * 按上面的格式压缩 src[off, off + len) 写入 out
+     * @return 压缩后（包括长度字段）不小于原数据时返回 false，此时 out 的内容无效，调用者应发送原数据
+     */
+    public static boolean compress(Codec codec, byte[] src, int off, int len, DataOutputBuffer out)
+            throws IOException {
+        int start = out.getLength();
+        out.writeInt(len);
+        codec.compress(src, off, len, out);
+        return out.getLength() - start < len;
+    }
+
+    /**
+     * 解压按上面的格式压缩的 src[off, off + len)
+     * @param maxLength 解压后长度的上限，防止损坏的长度字段导致分配过大的数组
+     */
+    public static byte[] decompress(Codec codec, byte[] src, int off, int len, int maxLength)
+            throws IOException {
+        if (len < 4) {
+            throw new IOException("Compressed data is too short: " + len);
+        }
+        int length = ((src[off] & 0xFF) << 24) | ((src[off + 1] & 0xFF) << 16)
+                | ((src[off + 2] & 0xFF) << 8) | (src[off + 3] & 0xFF);
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Illegal decompressed length " + length);
+        }
+        byte[] dst = new byte[length];
+        codec.decompress(src, off + 4, len - 4, dst, 0, length);
+        return dst;
+    }
+}
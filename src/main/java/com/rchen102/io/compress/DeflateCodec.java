@@ -0,0 +1,94 @@
+package com.rchen102.io.compress;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 使用 JDK Deflater/Inflater 的 codec，zlib 格式（带 adler32 校验）
+ * Deflater 和 Inflater 创建时分配 native 内存，因此用完后 reset 放回池中复用，
+ * 池中的对象数不超过同时压缩（解压）的线程数
+ */
+public class DeflateCodec implements Codec {
+    public static final String NAME = "deflate";
+
+    /** 压缩时每次从 Deflater 取出的字节数 */
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final int level;
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    public DeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param level 压缩级别，见 {@link Deflater#setLevel}
+     */
+    public DeflateCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void compress(byte[] src, int off, int len, OutputStream out) throws IOException {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        }
+        try {
+            deflater.setInput(src, off, len);
+            deflater.finish();
+            byte[] chunk = new byte[Math.min(CHUNK_SIZE, len + 64)];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                out.write(chunk, 0, n);
+            }
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+    }
+
+    @Override
+    public void decompress(byte[] src, int off, int len, byte[] dst, int dstOff, int dstLen)
+            throws IOException {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            inflater.setInput(src, off, len);
+            int n = 0;
+            // dst 写满后用 1 字节读出流的结束标记，同时检查数据是否过长
+            byte[] extra = new byte[1];
+            while (!inflater.finished()) {
+                int inflated = n < dstLen ?
+                        inflater.inflate(dst, dstOff + n, dstLen - n) : inflater.inflate(extra);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed data");
+                }
+                if (n == dstLen && inflated > 0) {
+                    throw new IOException("Decompressed data is longer than " + dstLen);
+                }
+                n += inflated;
+            }
+            if (n != dstLen) {
+                throw new IOException("Decompressed " + n + " bytes, expected " + dstLen);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed data", e);
+        } finally {
+            inflater.reset();
+            inflaters.offer(inflater);
+        }
+    }
+}
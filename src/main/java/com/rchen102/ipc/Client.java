@@ -1,23 +1,44 @@
 package com.rchen102.ipc;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import com.rchen102.conf.CommonConfigurationKeysPublic;
 import com.rchen102.conf.Configuration;
+import com.rchen102.io.ByteArrayPool;
+import com.rchen102.io.DataOutputBuffer;
+import com.rchen102.io.DataOutputBufferPool;
 import com.rchen102.io.IOUtils;
 import com.rchen102.io.Writable;
+import com.rchen102.io.compress.Codec;
+import com.rchen102.io.compress.CodecFactory;
+import com.rchen102.ipc.metrics.ClientStatsMXBean;
+import com.rchen102.ipc.metrics.ConnectionCounters;
+import com.rchen102.ipc.metrics.ConnectionStatsMXBean;
+import com.rchen102.ipc.metrics.MBeans;
+import com.rchen102.ipc.metrics.MethodMetrics;
 import com.rchen102.ipc.protobuf.IpcConnectionContextProtos;
+import com.rchen102.ipc.protobuf.RpcHeaderProtos.RpcKindProto;
 import com.rchen102.ipc.protobuf.RpcHeaderProtos.RpcRequestHeaderProto;
+import com.rchen102.ipc.protobuf.RpcHeaderProtos.RpcResponseHeaderProto;
 import com.rchen102.net.NetUtils;
+import com.rchen102.util.ConcurrentIntHashMap;
 import com.rchen102.util.ProtoUtil;
+import com.rchen102.util.ReflectionUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import javax.management.ObjectName;
 import javax.net.SocketFactory;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -25,16 +46,26 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.util.Hashtable;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class Client {
     private static final Log LOG = LogFactory.getLog(Client.class);
@@ -42,10 +73,65 @@ public class Client {
     /** A counter for generating call IDs. */
     private static final AtomicInteger callIdCounter = new AtomicInteger();
 
-    /** 网络连接的缓存池 */
-    private final Hashtable<ConnectionId, Connection> connections = new Hashtable<>();
+    /**
+     * 网络连接的缓存池
+     * 每个 ConnectionId 对应 connectionStripes 个位置，位置上没有连接时为 null
+     * 获取已有连接不加锁；新建或移除某个 ConnectionId 的连接时只锁住该 ConnectionId 的位置数组
+     */
+    private final ConcurrentHashMap<ConnectionId, AtomicReferenceArray<Connection>> connections =
+            new ConcurrentHashMap<>();
+    /** 每个 ConnectionId 最多建立的连接数，见 IPC_CLIENT_CONNECTION_STRIPES_KEY */
+    private final int connectionStripes;
+
+    /** 用于生成 Client 的名字 */
+    private static final AtomicInteger clientCounter = new AtomicInteger();
+    /** Client 的名字，用于区分不同 Client 的 MBean */
+    private final String name;
+    /** 是否注册 MBean，见 IPC_CLIENT_JMX_ENABLED_KEY */
+    private final boolean jmxEnabled;
+    /**
+     * 每个服务端地址的连接统计，第一次连接该地址时创建
+     * 到该地址的连接全部关闭后统计进入 idleConnectionStats，最多保留 maxIdleConnectionStats 个地址，
+     * 超过后移除最早空闲的地址并注销其 MBean
+     * 读取不加锁；创建、移除以及 MBean 的注册和注销都持有 connectionStats 的锁
+     */
+    private final ConcurrentHashMap<InetSocketAddress, ConnectionStats> connectionStats =
+            new ConcurrentHashMap<>();
+    /** 没有连接引用的地址统计，按空闲的先后排序，只在持有 connectionStats 的锁时访问 */
+    private final LinkedHashMap<InetSocketAddress, ConnectionStats> idleConnectionStats =
+            new LinkedHashMap<>();
+    /** 见 IPC_CLIENT_STATS_MAX_IDLE_ADDRESSES_KEY */
+    private final int maxIdleConnectionStats;
+    /** 已经移除的地址统计的累计值，保证汇总统计不会减小 */
+    private final AtomicLongArray removedCounters = new AtomicLongArray(COUNTER_COUNT);
+    /** Client 是否已经注销所有 MBean，只在持有 connectionStats 的锁时访问 */
+    private boolean statsClosed = false;
+    /** 所有连接的汇总统计 */
+    private final ClientStats clientStats = new ClientStats();
+    private final ObjectName clientStatsName;
+
+    /**
+     * RPC 类型对应的响应类型，由各个 RpcEngine 注册
+     * 没有指定 valueClass 的 Client 按调用的 RPC 类型选择响应类型，
+     * 这样不同 RpcEngine 的调用可以共享同一个 Client 以及同一个连接
+     */
+    private static final Map<RPC.RpcKind, Class<? extends Writable>> rpcResponseWrappers =
+            new ConcurrentHashMap<>();
+
+    /**
+     * 注册 RPC 类型对应的响应类型
+     * @param rpcKind RPC 类型
+     * @param responseWrapperClass 响应类型
+     */
+    public static void registerRpcResponseWrapper(RPC.RpcKind rpcKind,
+                                                  Class<? extends Writable> responseWrapperClass) {
+        rpcResponseWrappers.put(rpcKind, responseWrapperClass);
+    }
 
+    /** 所有调用的返回类型，为 null 时按调用的 RPC 类型选择，见 rpcResponseWrappers */
     private Class<? extends Writable> valueClass;
+    /** 共享该 Client 的引用数，见 ClientCache */
+    private int refCount = 1;
     private AtomicBoolean running = new AtomicBoolean(true); // Client 是否还在运行
     final private Configuration conf;
     /** 创建 socket 的方式 */
@@ -53,62 +139,288 @@ public class Client {
     private final int connectionTimeOut; // 与服务建立连接的超时时间
     private final byte[] clientId;
 
-    // 代表发送调用请求的线程池
-    private final ExecutorService sendParamsExecutor;
-    private final static ClientExecutorServiceFactory clientExecutorFactory =
-            new ClientExecutorServiceFactory();
+    /** 发送请求时使用的缓冲区池，所有 Client 共享 */
+    private static final DataOutputBufferPool sendBufferPool =
+            new DataOutputBufferPool(256, 64 * 1024);
+
+    /** 接收响应时使用的缓冲区池，所有 Client 共享 */
+    private static final ByteArrayPool responseBufferPool =
+            new ByteArrayPool(64, 64 * 1024);
+    /** 是否直接从接收缓冲区解析响应，见 IPC_CLIENT_RESPONSE_ZEROCOPY_KEY */
+    private final boolean zeroCopyResponse;
+
+    /** 请求服务端使用的压缩 codec，不压缩时为 null，见 IPC_COMPRESSION_CODEC_KEY */
+    private final Codec compressionCodec;
+    /** 请求超过该字节数时才压缩 */
+    private final int compressionThreshold;
+    /** 解压后响应的最大长度，分为多个 frame 的响应按拼接后的长度计算 */
+    private final int maxResponseLength;
+    /** 请求超过该字节数时拆分为多个 frame，见 IPC_STREAM_CHUNK_SIZE_KEY */
+    private final int streamChunkSize;
+
+    /** NIO 传输下所有 Client 共享的 selector 线程池 */
+    private final SelectorPool selectorPool;
+    private final static SelectorPoolFactory selectorPoolFactory =
+            new SelectorPoolFactory();
+
+    /** 所有 Client 共享的空闲连接回收线程 */
+    private final static ConnectionReaper connectionReaper = new ConnectionReaper();
 
-    private static class ClientExecutorServiceFactory {
-        private int executorRefCount = 0;
-        private ExecutorService clientExecutor = null;
+    /**
+     * 空闲连接回收线程，所有 Client 共享
+     * 定期检查已注册 Client 的所有连接，关闭空闲时间超过 maxIdleTime 且没有未完成调用的连接，
+     * 连接关闭时将自己从 Client.connections 中移除，同时释放 socket 和 receiver 线程
+     * 第一个 Client 注册时启动线程，最后一个 Client 停止时结束线程
+     */
+    private static class ConnectionReaper implements Runnable {
+        /** 检查的时间间隔，单位：毫秒 */
+        private static final long REAP_INTERVAL = 1000;
+
+        private final Set<Client> clients = new HashSet<>();
+        private Thread thread = null;
+
+        synchronized void register(Client client) {
+            clients.add(client);
+            if (thread == null) {
+                thread = new Thread(this, "IPC Client Connection Reaper");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
 
-        /**
-         * 如果内部引用计数器（executorRefCount）为 0，初始化
-         * 否则直接返回 Executor
-         * 为了保证唯一性，调用该函数时需要加锁
-         * @return ExecutorService 实例
-         */
-        synchronized ExecutorService refAndGetInstance() {
-            if (executorRefCount == 0) {
-                clientExecutor = Executors.newCachedThreadPool(
-                        new ThreadFactoryBuilder().setDaemon(true)
-                                .setNameFormat("IPC Parameter Sending Thread #%d")
-                                .build());
+        synchronized void unregister(Client client) {
+            clients.remove(client);
+            if (clients.isEmpty() && thread != null) {
+                thread.interrupt();
+                thread = null;
+            }
+        }
+
+        @Override
+        public void run() {
+            Thread current = Thread.currentThread();
+            while (true) {
+                Client[] snapshot;
+                synchronized (this) {
+                    // 最后一个 Client 停止后，或者已经由新的线程接替，退出
+                    if (thread != current) {
+                        return;
+                    }
+                    snapshot = clients.toArray(new Client[clients.size()]);
+                }
+                long now = System.currentTimeMillis();
+                for (Client client : snapshot) {
+                    try {
+                        client.closeIdleConnections(now);
+                    } catch (Throwable t) {
+                        LOG.warn("Unexpected error reaping idle connections", t);
+                    }
+                }
+                try {
+                    Thread.sleep(REAP_INTERVAL);
+                } catch (InterruptedException e) {
+                    // unregister 会中断该线程，重新检查是否需要退出
+                }
+            }
+        }
+    }
+
+    /**
+     * 使用引用计数管理共享的 SelectorPool
+     * 只有使用 NIO 传输的 Client 才会引用
+     */
+    private static class SelectorPoolFactory {
+        private int poolRefCount = 0;
+        private SelectorPool pool = null;
+
+        synchronized SelectorPool refAndGetInstance(int selectorCount) throws IOException {
+            if (poolRefCount == 0) {
+                pool = new SelectorPool(selectorCount);
             }
-            executorRefCount++;
-            return clientExecutor;
+            poolRefCount++;
+            return pool;
         }
 
         synchronized void unrefAndCleanup() {
-            executorRefCount--;
-            assert executorRefCount >= 0;
+            poolRefCount--;
+            assert poolRefCount >= 0;
 
-            if (executorRefCount == 0) {
-                clientExecutor.shutdown();
-                /**
-                 * 一分钟后如果仍然没有关闭或者在等待过程中被中断，
-                 * 则调用 {@link ExecutorService#shutdownNow()}
-                 */
+            if (poolRefCount == 0) {
+                pool.shutdown();
+                pool = null;
+            }
+        }
+    }
+
+    /**
+     * 共享的 selector 线程池
+     * 每个 selector 线程负责读取多个连接的响应，连接注册时采用轮询的方式选择 selector 线程
+     * 这样少量的线程即可服务所有的连接，而不是每个连接一个 receiver 线程
+     */
+    private static class SelectorPool {
+        private final SelectorThread[] threads;
+        private final AtomicInteger next = new AtomicInteger();
+
+        SelectorPool(int selectorCount) throws IOException {
+            if (selectorCount <= 0) {
+                throw new IllegalArgumentException("Illegal selector count: " + selectorCount);
+            }
+            threads = new SelectorThread[selectorCount];
+            for (int i = 0; i < selectorCount; i++) {
+                threads[i] = new SelectorThread(i);
+                threads[i].start();
+            }
+        }
+
+        SelectorThread register(Connection connection) {
+            SelectorThread thread = threads[(next.getAndIncrement() & 0x7FFFFFFF) % threads.length];
+            thread.register(connection);
+            return thread;
+        }
+
+        void shutdown() {
+            for (SelectorThread thread : threads) {
+                thread.shutdown();
+            }
+        }
+    }
+
+    /**
+     * selector 线程，读取注册在其上的所有连接的响应
+     */
+    private static class SelectorThread extends Thread {
+        /** select 的超时时间，同时也是检查 rpc 超时的时间间隔，单位：毫秒 */
+        private static final long SELECT_TIMEOUT = 1000;
+
+        private final Selector selector;
+        /** 等待注册的连接 */
+        private final ConcurrentLinkedQueue<Connection> pendingConnections =
+                new ConcurrentLinkedQueue<>();
+        /** 等待关闭的连接 */
+        private final ConcurrentLinkedQueue<Connection> closingConnections =
+                new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+        private long lastTimeoutCheck = System.currentTimeMillis();
+
+        SelectorThread(int index) throws IOException {
+            this.selector = Selector.open();
+            setName("IPC Client Selector #" + index);
+            setDaemon(true);
+        }
+
+        void register(Connection connection) {
+            pendingConnections.add(connection);
+            selector.wakeup();
+        }
+
+        void closeLater(Connection connection) {
+            closingConnections.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
                 try {
-                    if (!clientExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
-                        clientExecutor.shutdownNow();
+                    selector.select(SELECT_TIMEOUT);
+                    doRegister();
+
+                    Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            doRead(key);
+                        }
                     }
-                } catch (InterruptedException e) {
-                    LOG.error("Interrupted while waiting for clientExecutor" +
-                            "to stop", e);
-                    clientExecutor.shutdownNow();
+
+                    doClose();
+                    checkTimeouts();
+                } catch (Throwable t) {
+                    LOG.warn(getName() + " got unexpected error", t);
+                }
+            }
+
+            // 关闭所有仍然注册的连接
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                connection.markClosed(new IOException("The client is stopped."));
+                connection.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing selector", e);
+            }
+        }
+
+        private void doRegister() {
+            Connection connection;
+            while ((connection = pendingConnections.poll()) != null) {
+                try {
+                    connection.registerWith(selector);
+                } catch (IOException e) {
+                    connection.markClosed(e);
+                }
+                if (connection.shouldCloseConnection.get()) {
+                    connection.close();
                 }
+            }
+        }
+
+        private void doRead(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            connection.readAndProcess();
+            if (connection.shouldCloseConnection.get()) {
+                connection.close();
+            }
+        }
+
+        private void doClose() {
+            Connection connection;
+            while ((connection = closingConnections.poll()) != null) {
+                connection.close();
+            }
+        }
 
-                clientExecutor = null;
+        /**
+         * 检查等待响应超时的连接，相当于阻塞模式下 socket 的读超时
+         */
+        private void checkTimeouts() {
+            long now = System.currentTimeMillis();
+            if (now - lastTimeoutCheck < SELECT_TIMEOUT) {
+                return;
+            }
+            lastTimeoutCheck = now;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection.isResponseTimedOut(now)) {
+                    connection.markClosed(new SocketTimeoutException(connection.rpcTimeOut +
+                            " millis timeout while waiting for response from " +
+                            connection.getServer()));
+                }
             }
+            doClose();
         }
 
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+    }
 
+    /**
+     * 构造 Client，调用的返回类型由 RPC 类型决定，见 {@link #registerRpcResponseWrapper}
+     * @param conf 配置对象
+     * @param factory socket 工厂
+     */
+    public Client(Configuration conf, SocketFactory factory) {
+        this(null, conf, factory);
     }
 
     /**
      *
-     * @param valueClass 调用的返回类型
+     * @param valueClass 调用的返回类型，为 null 时由调用的 RPC 类型决定
      * @param conf 配置对象
      * @param factory socket 工厂
      */
@@ -120,121 +432,689 @@ public class Client {
         this.connectionTimeOut = conf.getInt(CommonConfigurationKeysPublic.IPC_CLIENT_CONNECT_TIMEOUT_KEY,
                 CommonConfigurationKeysPublic.IPC_CLIENT_CONNECT_TIMEOUT_DEFAULT);
         this.clientId = ClientId.getClientId();
-        this.sendParamsExecutor = clientExecutorFactory.refAndGetInstance();
+        this.connectionStripes = conf.getInt(
+                CommonConfigurationKeysPublic.IPC_CLIENT_CONNECTION_STRIPES_KEY,
+                CommonConfigurationKeysPublic.IPC_CLIENT_CONNECTION_STRIPES_DEFAULT);
+        if (connectionStripes <= 0) {
+            throw new IllegalArgumentException("Illegal connection stripes: " + connectionStripes);
+        }
+        this.zeroCopyResponse = conf.getBoolean(
+                CommonConfigurationKeysPublic.IPC_CLIENT_RESPONSE_ZEROCOPY_KEY,
+                CommonConfigurationKeysPublic.IPC_CLIENT_RESPONSE_ZEROCOPY_DEFAULT);
+        if (conf.getBoolean(CommonConfigurationKeysPublic.IPC_CLIENT_NIO_ENABLED_KEY,
+                CommonConfigurationKeysPublic.IPC_CLIENT_NIO_ENABLED_DEFAULT)) {
+            checkChannelSocketFactory(factory);
+            try {
+                this.selectorPool = selectorPoolFactory.refAndGetInstance(conf.getInt(
+                        CommonConfigurationKeysPublic.IPC_CLIENT_NIO_SELECTOR_COUNT_KEY,
+                        CommonConfigurationKeysPublic.IPC_CLIENT_NIO_SELECTOR_COUNT_DEFAULT));
+            } catch (IOException e) {
+                throw new RuntimeException("Couldn't create selector pool", e);
+            }
+        } else {
+            this.selectorPool = null;
+        }
+        String codecName = conf.get(CommonConfigurationKeysPublic.IPC_COMPRESSION_CODEC_KEY,
+                CommonConfigurationKeysPublic.IPC_COMPRESSION_CODEC_DEFAULT);
+        if (codecName.isEmpty()) {
+            this.compressionCodec = null;
+        } else {
+            this.compressionCodec = new CodecFactory(conf).getCodec(codecName);
+            if (compressionCodec == null) {
+                throw new IllegalArgumentException("Unknown compression codec " + codecName);
+            }
+        }
+        this.compressionThreshold = conf.getInt(
+                CommonConfigurationKeysPublic.IPC_COMPRESSION_THRESHOLD_KEY,
+                CommonConfigurationKeysPublic.IPC_COMPRESSION_THRESHOLD_DEFAULT);
+        this.maxResponseLength = conf.getInt(CommonConfigurationKeysPublic.IPC_MAXIMUM_DATA_LENGTH,
+                CommonConfigurationKeysPublic.IPC_MAXIMUM_DATA_LENGTH_DEFAULT);
+        this.streamChunkSize = conf.getInt(CommonConfigurationKeysPublic.IPC_STREAM_CHUNK_SIZE_KEY,
+                CommonConfigurationKeysPublic.IPC_STREAM_CHUNK_SIZE_DEFAULT);
+        this.name = "client-" + clientCounter.incrementAndGet();
+        this.maxIdleConnectionStats = conf.getInt(
+                CommonConfigurationKeysPublic.IPC_CLIENT_STATS_MAX_IDLE_ADDRESSES_KEY,
+                CommonConfigurationKeysPublic.IPC_CLIENT_STATS_MAX_IDLE_ADDRESSES_DEFAULT);
+        this.jmxEnabled = conf.getBoolean(
+                CommonConfigurationKeysPublic.IPC_CLIENT_JMX_ENABLED_KEY,
+                CommonConfigurationKeysPublic.IPC_CLIENT_JMX_ENABLED_DEFAULT);
+        this.clientStatsName = jmxEnabled ?
+                MBeans.register("type=Client,name=" + name, clientStats) : null;
+        connectionReaper.register(this);
     }
 
-    public void stop() {
+    /**
+     * NIO 传输需要 socket 关联 channel，SocketFactory 创建的 socket 没有 channel 时直接失败，
+     * 而不是忽略配置的 SocketFactory，见 {@link NetUtils#getDefaultSocketFactory(Configuration)}
+     */
+    private static void checkChannelSocketFactory(SocketFactory factory) {
+        Socket socket = null;
+        try {
+            socket = factory.createSocket();
+            if (socket.getChannel() == null) {
+                throw new IllegalArgumentException(noChannelMessage(factory));
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Couldn't create socket from " +
+                    factory.getClass().getName(), e);
+        } finally {
+            IOUtils.cleanup(LOG, socket);
+        }
+    }
 
+    private static String noChannelMessage(SocketFactory factory) {
+        return CommonConfigurationKeysPublic.IPC_CLIENT_NIO_ENABLED_KEY +
+                " requires a SocketFactory that creates channel-backed sockets, but " +
+                factory.getClass().getName() + " does not";
+    }
+
+    synchronized void incCount() {
+        refCount++;
+    }
+
+    synchronized void decCount() {
+        refCount--;
+    }
+
+    synchronized boolean isZeroReference() {
+        return refCount == 0;
     }
 
     /**
-     * 代表 rpc 调用的类，rpc调用单元
-     * 封装之前创建的 RPC调用请求的封装类 和 RPC返回值的封装类
+     * 停止 Client，关闭所有的网络连接
      */
-    static class Call {
-        final int id;
-        Writable rpcRequest;
-        Writable rpcResponse;
-        IOException error;
-        final RPC.RpcKind rpcKind;
-        boolean done; // 本次请求是否完成
+    public void stop() {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Stopping client");
+        }
 
-        private Call(RPC.RpcKind rpcKind, Writable rpcRequest) {
-            this.rpcKind = rpcKind;
-            this.rpcRequest = rpcRequest;
+        if (!running.compareAndSet(true, false)) {
+            return;
+        }
+        connectionReaper.unregister(this);
+
+        // 唤醒所有 Connection 线程，使其检查 running 状态后退出
+        // NIO 连接没有自己的线程，直接标记关闭，由 selector 线程关闭连接
+        for (AtomicReferenceArray<Connection> stripes : connections.values()) {
+            for (int i = 0; i < stripes.length(); i++) {
+                Connection conn = stripes.get(i);
+                if (conn == null) {
+                    continue;
+                }
+                if (conn.selectorThread != null) {
+                    conn.markClosed(new IOException("The client is stopped."));
+                } else {
+                    conn.interrupt();
+                }
+            }
+        }
 
-            this.id = nextCallId();  // 获取一个 id，用于唯一标识当前的 Call 对象
+        // 等待所有连接关闭，Connection.close 会将自己从 connections 中移除
+        while (!connections.isEmpty()) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+            }
         }
+
+        if (selectorPool != null) {
+            selectorPoolFactory.unrefAndCleanup();
+        }
+
+        synchronized (connectionStats) {
+            statsClosed = true;
+            for (ConnectionStats stats : connectionStats.values()) {
+                MBeans.unregister(stats.objectName);
+                stats.objectName = null;
+            }
+        }
+        MBeans.unregister(clientStatsName);
     }
 
     /**
-     * 返回自增的 id，由于存在线程安全问题，因此 counter 是 atomic 类型
-     * 可能会被多个客户端进程同时调用
-     * 为了防止 id 是取负值，需要将返回结果与 0x7FFFFFFF 做按位与操作，即 0111 FFF FFFF
-     * 因此 id 取值范围是 [ 0, 2^31 - 1 ]，当 id 达到最大值，会重新从 0 开始自增
-     *
-     * @return 下一个自增的 id
+     * 关闭所有空闲的连接，由 {@link ConnectionReaper} 定期调用
+     * @param now 当前时间
      */
-    public static int nextCallId() {
-        return callIdCounter.getAndIncrement() & 0x7FFFFFFF;
+    private void closeIdleConnections(long now) {
+        for (AtomicReferenceArray<Connection> stripes : connections.values()) {
+            for (int i = 0; i < stripes.length(); i++) {
+                Connection conn = stripes.get(i);
+                if (conn != null) {
+                    conn.closeIfIdle(now);
+                }
+            }
+        }
     }
 
+    /**
+     * @return 所有连接的汇总统计
+     */
+    public ClientStatsMXBean getClientStats() {
+        return clientStats;
+    }
 
     /**
-     * 调用 RPC 服务端，相关信息定义在 <code>remoteId</code>
-     *
-     * @param rpcKind - rpc 类型
-     * @param rpcRequest -  客户端调用请求，包含序列化方法和参数等信息
-     * @param remoteId - rpc server
-     * @returns rpc 返回值
-     * 抛网络异常或者远程代码执行异常
+     * @param address 服务端地址
+     * @return 到该地址的连接统计，没有连接过该地址时返回 null
      */
-    public Writable call(RPC.RpcKind rpcKind, Writable rpcRequest, ConnectionId remoteId)
-            throws IOException {
-        return call(rpcKind, rpcRequest, remoteId, RPC.RPC_SERVICE_CLASS_DEFAULT);
+    public ConnectionStatsMXBean getConnectionStats(InetSocketAddress address) {
+        return connectionStats.get(address);
     }
 
     /**
-     * 调用 RPC 服务端，相关信息定义在 <code>remoteId</code>
-     * @param rpcKind - rpc 类型
-     * @param rpcRequest - 包含序列化方法和参数
-     * @param remoteId - rpc server
-     * @param serviceClass service class for rpc，后续拓展使用，目前无用
-     * @return rpc 返回值
-     * @throws IOException 抛网络异常或者远程代码执行异常
+     * 获取服务端地址的连接统计并增加引用，不存在时创建并注册 MBean
+     * 每个 Connection 创建时引用一次，标记关闭时通过 {@link #releaseConnectionStats} 释放
      */
-    public Writable call(RPC.RpcKind rpcKind, Writable rpcRequest,
-                         ConnectionId remoteId, int serviceClass)
-            throws IOException {
-        return null;
+    private ConnectionStats retainConnectionStats(InetSocketAddress address) {
+        synchronized (connectionStats) {
+            ConnectionStats stats = connectionStats.get(address);
+            if (stats == null) {
+                stats = new ConnectionStats(address);
+                connectionStats.put(address, stats);
+                if (jmxEnabled && !statsClosed) {
+                    stats.objectName = MBeans.register("type=ClientConnection,client=" + name
+                            + ",remote=" + ObjectName.quote(stats.getRemoteAddress()), stats);
+                }
+            } else if (stats.refs == 0) {
+                idleConnectionStats.remove(address);
+            }
+            stats.refs++;
+            return stats;
+        }
     }
 
     /**
-     * 代表网络连接的 Connection 类
-     * 负责：建立网络连接，发送网络请求，等待返回结果
+     * 释放连接对统计的引用，没有引用时统计进入空闲队列，空闲的地址过多时移除最早空闲的地址
      */
-    private class Connection extends Thread {
-        private final ConnectionId remoteId;
+    private void releaseConnectionStats(ConnectionStats stats) {
+        synchronized (connectionStats) {
+            if (--stats.refs > 0) {
+                return;
+            }
+            idleConnectionStats.put(stats.address, stats);
+            Iterator<ConnectionStats> iter = idleConnectionStats.values().iterator();
+            while (idleConnectionStats.size() > maxIdleConnectionStats) {
+                ConnectionStats idle = iter.next();
+                iter.remove();
+                connectionStats.remove(idle.address);
+                for (int i = 0; i < COUNTER_COUNT; i++) {
+                    removedCounters.addAndGet(i, idle.get(i));
+                }
+                MBeans.unregister(idle.objectName);
+                idle.objectName = null;
+            }
+        }
+    }
+
+    /** 连接统计的计数项，为 counters 中的下标 */
+    private static final int BYTES_SENT = 0;
+    private static final int BYTES_RECEIVED = 1;
+    private static final int FRAMES_SENT = 2;
+    private static final int FRAMES_RECEIVED = 3;
+    private static final int SEND_QUEUE_WAIT_NANOS = 4;
+    private static final int CONNECTIONS_OPENED = 5;
+    private static final int CONNECTIONS_CLOSED = 6;
+    private static final int CONNECT_FAILURES = 7;
+    private static final int RECONNECTS = 8;
+    private static final int SETUP_CONNECTION_NANOS = 9;
+    private static final int COUNTER_COUNT = 10;
+
+    /**
+     * 连接统计的公共部分
+     * 计数项由子类提供；打开的连接数、未完成的调用数和 sendQueue 长度在读取时遍历 connections 得到，
+     * 因此连接上不需要额外维护这些值
+     */
+    private abstract class AbstractStats implements ConnectionCounters {
+        abstract long get(int counter);
+
+        /** 是否统计该 ConnectionId 的连接 */
+        abstract boolean matches(ConnectionId remoteId);
 
         /**
-         * 服务器地址：ip + port
+         * @return {打开的连接数, 未完成的调用数, sendQueue 中的 frame 数}
          */
-        private InetSocketAddress server;
+        private int[] gauges() {
+            int[] result = new int[3];
+            for (Map.Entry<ConnectionId, AtomicReferenceArray<Connection>> entry :
+                    connections.entrySet()) {
+                if (!matches(entry.getKey())) {
+                    continue;
+                }
+                AtomicReferenceArray<Connection> stripes = entry.getValue();
+                for (int i = 0; i < stripes.length(); i++) {
+                    Connection conn = stripes.get(i);
+                    if (conn == null || conn.shouldCloseConnection.get()) {
+                        continue;
+                    }
+                    result[0]++;
+                    result[1] += conn.calls.size();
+                    result[2] += conn.sendQueue.size();
+                }
+            }
+            return result;
+        }
 
-        private Socket socket = null;
-        private DataInputStream in;
-        private DataOutputStream out;
+        @Override
+        public int getOpenConnections() {
+            return gauges()[0];
+        }
 
-        private final int rpcTimeOut;
-        /** 连接空闲时最大休眠时间，单位：毫秒 */
-        private final int maxIdleTime;
-        /** 如果 true 表示禁用 Nagle 算法
-         *  Negale算法是指发送方发送数据的时候不会立刻发出，而是先放在缓冲区内，等待缓冲区满了再发送
+        @Override
+        public int getOutstandingCalls() {
+            return gauges()[1];
+        }
+
+        @Override
+        public int getSendQueueLength() {
+            return gauges()[2];
+        }
+
+        @Override
+        public long getBytesSent() {
+            return get(BYTES_SENT);
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return get(BYTES_RECEIVED);
+        }
+
+        @Override
+        public long getFramesSent() {
+            return get(FRAMES_SENT);
+        }
+
+        @Override
+        public long getFramesReceived() {
+            return get(FRAMES_RECEIVED);
+        }
+
+        @Override
+        public long getSendQueueWaitTimeMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(get(SEND_QUEUE_WAIT_NANOS));
+        }
+
+        /**
+         * 连接上下文直接写出，不经过 sendQueue，按等待 0 计入
          */
-        private final boolean tcpNoDelay;
-        /** 是否需要发送ping message */
-        private final boolean doPing;
-        /** 发送 ping message 的时间间隔， 单位：毫秒 */
-        private int pingInterval;
-        /** socket 连接超时最大重试次数 */
-        private final int maxRetriesOnSocketTimeouts;
-        private int serviceClass;
+        @Override
+        public double getAvgSendQueueWaitTimeMicros() {
+            long frames = get(FRAMES_SENT);
+            return frames == 0 ? 0 : get(SEND_QUEUE_WAIT_NANOS) / 1000.0 / frames;
+        }
 
-        /** 标识是否应该关闭连接，默认值： false */
-        private AtomicBoolean shouldCloseConnection = new AtomicBoolean();
-        /** I/O 活动的最新时间 */
-        private AtomicLong lastActivity = new AtomicLong();
+        @Override
+        public long getConnectionsOpened() {
+            return get(CONNECTIONS_OPENED);
+        }
 
-        private final Object sendRpcRequestLock = new Object();
+        @Override
+        public long getConnectFailures() {
+            return get(CONNECT_FAILURES);
+        }
 
-        private Hashtable<Integer, Call> calls = new Hashtable<>();
+        @Override
+        public long getReconnects() {
+            return get(RECONNECTS);
+        }
 
-        public Connection(ConnectionId remoteId, Integer serviceClass) throws IOException {
-            this.remoteId = remoteId;
-            this.server = remoteId.getAddress();
-            if (server.isUnresolved()) {
+        @Override
+        public long getSetupConnectionTimeMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(get(SETUP_CONNECTION_NANOS));
+        }
+
+        @Override
+        public double getAvgSetupConnectionTimeMillis() {
+            long attempts = get(CONNECTIONS_OPENED) + get(CONNECT_FAILURES);
+            return attempts == 0 ? 0 : get(SETUP_CONNECTION_NANOS) / 1000000.0 / attempts;
+        }
+    }
+
+    /**
+     * 到一个服务端地址的所有连接（不同的 ConnectionId 以及同一个 ConnectionId 的多个条带）的统计
+     * 计数由连接的发送线程、receiver 线程（或 selector 线程）累加
+     */
+    private class ConnectionStats extends AbstractStats implements ConnectionStatsMXBean {
+        private final InetSocketAddress address;
+        private final AtomicLongArray counters = new AtomicLongArray(COUNTER_COUNT);
+        /** 注册的 MBean 名字，没有注册时为 null */
+        private volatile ObjectName objectName;
+        /** 引用该统计的连接数，只在持有 connectionStats 的锁时访问 */
+        private int refs;
+
+        ConnectionStats(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        void add(int counter, long delta) {
+            counters.addAndGet(counter, delta);
+        }
+
+        void increment(int counter) {
+            counters.incrementAndGet(counter);
+        }
+
+        @Override
+        long get(int counter) {
+            return counters.get(counter);
+        }
+
+        @Override
+        boolean matches(ConnectionId remoteId) {
+            return address.equals(remoteId.getAddress());
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return address.getHostString() + ":" + address.getPort();
+        }
+    }
+
+    /**
+     * Client 所有连接的汇总统计，读取时累加各个地址的统计
+     */
+    private class ClientStats extends AbstractStats implements ClientStatsMXBean {
+        @Override
+        long get(int counter) {
+            long sum = removedCounters.get(counter);
+            for (ConnectionStats stats : connectionStats.values()) {
+                sum += stats.get(counter);
+            }
+            return sum;
+        }
+
+        @Override
+        boolean matches(ConnectionId remoteId) {
+            return true;
+        }
+
+        @Override
+        public int getRemoteAddressCount() {
+            return connectionStats.size();
+        }
+    }
+
+    /**
+     * 代表 rpc 调用的类，rpc调用单元
+     * 封装之前创建的 RPC调用请求的封装类 和 RPC返回值的封装类
+     * Call 本身是一个 Future，receiver 线程收到响应后完成该 Future
+     */
+    static class Call extends AbstractFuture<Writable> {
+        final int id;
+        Writable rpcRequest;
+        final RPC.RpcKind rpcKind;
+        /** 调用的协议，同一个连接上不同协议的调用通过连接上绑定的编号区分 */
+        final Class<?> protocol;
+        /** 返回值的类型 */
+        final Class<? extends Writable> valueClass;
+        /** 记录请求和响应字节数的调用统计，可以为 null */
+        final MethodMetrics metrics;
+
+        private Call(RPC.RpcKind rpcKind, Writable rpcRequest, Class<?> protocol,
+                     Class<? extends Writable> valueClass, MethodMetrics metrics) {
+            this.rpcKind = rpcKind;
+            this.rpcRequest = rpcRequest;
+            this.protocol = protocol;
+            this.valueClass = valueClass;
+            this.metrics = metrics;
+
+            this.id = nextCallId();  // 获取一个 id，用于唯一标识当前的 Call 对象
+        }
+
+        /**
+         * 调用出错时设置异常，并标记调用完成
+         * @param error 异常
+         */
+        public void setException(IOException error) {
+            super.setException(error);
+        }
+
+        /**
+         * 设置返回值，并标记调用完成
+         * @param rpcResponse 返回值
+         */
+        public void setRpcResponse(Writable rpcResponse) {
+            set(rpcResponse);
+        }
+    }
+
+    /**
+     * 返回自增的 id，由于存在线程安全问题，因此 counter 是 atomic 类型
+     * 可能会被多个客户端进程同时调用
+     * 为了防止 id 是取负值，需要将返回结果与 0x7FFFFFFF 做按位与操作，即 0111 FFF FFFF
+     * 因此 id 取值范围是 [ 0, 2^31 - 1 ]，当 id 达到最大值，会重新从 0 开始自增
+     *
+     * @return 下一个自增的 id
+     */
+    public static int nextCallId() {
+        return callIdCounter.getAndIncrement() & 0x7FFFFFFF;
+    }
+
+
+    /**
+     * 调用 RPC 服务端，相关信息定义在 <code>remoteId</code>
+     *
+     * @param rpcKind - rpc 类型
+     * @param rpcRequest -  客户端调用请求，包含序列化方法和参数等信息
+     * @param remoteId - rpc server
+     * @returns rpc 返回值
+     * 抛网络异常或者远程代码执行异常
+     */
+    public Writable call(RPC.RpcKind rpcKind, Writable rpcRequest, ConnectionId remoteId)
+            throws IOException {
+        return call(rpcKind, rpcRequest, remoteId, RPC.RPC_SERVICE_CLASS_DEFAULT);
+    }
+
+    /**
+     * 调用 RPC 服务端，相关信息定义在 <code>remoteId</code>
+     * @param rpcKind - rpc 类型
+     * @param rpcRequest - 包含序列化方法和参数
+     * @param remoteId - rpc server
+     * @param serviceClass service class for rpc，后续拓展使用，目前无用
+     * @return rpc 返回值
+     * @throws IOException 抛网络异常或者远程代码执行异常
+     */
+    public Writable call(RPC.RpcKind rpcKind, Writable rpcRequest,
+                         ConnectionId remoteId, int serviceClass)
+            throws IOException {
+        return getResponse(callAsync(rpcKind, rpcRequest, remoteId, serviceClass, null));
+    }
+
+    /**
+     * 调用 RPC 服务端，请求和响应的字节数记录到 metrics，由 RpcEngine 使用
+     */
+    Writable call(RPC.RpcKind rpcKind, Writable rpcRequest, ConnectionId remoteId,
+                  MethodMetrics metrics) throws IOException {
+        return getResponse(callAsync(rpcKind, rpcRequest, remoteId,
+                RPC.RPC_SERVICE_CLASS_DEFAULT, metrics));
+    }
+
+    private static Writable getResponse(ListenableFuture<Writable> future) throws IOException {
+        /**
+         * 等待 receiver 线程（Connection.run）收到响应
+         * 等待过程中被中断不能直接返回，否则该调用的响应会被丢弃，
+         * 因此调用完成后再恢复中断状态
+         */
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                // 异常在 receiver 线程中创建，重新填充为调用者线程的栈
+                cause.fillInStackTrace();
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * 异步调用 RPC 服务端，请求发送后立即返回，不等待响应
+     *
+     * @param rpcKind - rpc 类型
+     * @param rpcRequest - 包含序列化方法和参数
+     * @param remoteId - rpc server
+     * @return 调用结果的 Future，收到响应后由 receiver 线程完成；
+     *          网络异常或者远程代码执行异常以 IOException 的形式设置到 Future 中
+     * @throws IOException 获取连接或者序列化请求失败
+     */
+    public ListenableFuture<Writable> callAsync(RPC.RpcKind rpcKind, Writable rpcRequest,
+                                                ConnectionId remoteId) throws IOException {
+        return callAsync(rpcKind, rpcRequest, remoteId, RPC.RPC_SERVICE_CLASS_DEFAULT);
+    }
+
+    /**
+     * 异步调用 RPC 服务端，见 {@link #callAsync(RPC.RpcKind, Writable, ConnectionId)}
+     * @param serviceClass service class for rpc，后续拓展使用，目前无用
+     */
+    public ListenableFuture<Writable> callAsync(RPC.RpcKind rpcKind, Writable rpcRequest,
+                                                ConnectionId remoteId, int serviceClass)
+            throws IOException {
+        return callAsync(rpcKind, rpcRequest, remoteId, serviceClass, null);
+    }
+
+    /**
+     * 异步调用 RPC 服务端，请求和响应的字节数记录到 metrics，由 RpcEngine 使用
+     */
+    ListenableFuture<Writable> callAsync(RPC.RpcKind rpcKind, Writable rpcRequest,
+                                         ConnectionId remoteId, MethodMetrics metrics)
+            throws IOException {
+        return callAsync(rpcKind, rpcRequest, remoteId, RPC.RPC_SERVICE_CLASS_DEFAULT, metrics);
+    }
+
+    private ListenableFuture<Writable> callAsync(RPC.RpcKind rpcKind, Writable rpcRequest,
+                                                 ConnectionId remoteId, int serviceClass,
+                                                 MethodMetrics metrics) throws IOException {
+        Class<? extends Writable> callValueClass =
+                valueClass != null ? valueClass : rpcResponseWrappers.get(rpcKind);
+        if (callValueClass == null) {
+            throw new IOException("Unknown rpc kind " + rpcKind);
+        }
+        final Call call = new Call(rpcKind, rpcRequest, remoteId.getProtocol(), callValueClass,
+                metrics);
+        Connection connection = getConnection(remoteId, call, serviceClass);
+        connection.sendRpcRequest(call);
+        return call;
+    }
+
+    /**
+     * Connection.sendQueue 中等待写出的 frame，记录放入队列的时间用于统计等待时间
+     */
+    private static class QueuedFrame {
+        final DataOutputBuffer buf;
+        final long enqueueTime = System.nanoTime();
+
+        QueuedFrame(DataOutputBuffer buf) {
+            this.buf = buf;
+        }
+    }
+
+    /**
+     * 代表网络连接的 Connection 类
+     * 负责：建立网络连接，发送网络请求，等待返回结果
+     *
+     * 两种传输方式：
+     * 1. 阻塞模式（默认），每个连接启动自己的线程（run 方法）读取响应
+     * 2. NIO 模式，连接注册到共享的 {@link SelectorThread}，由其读取响应，不启动自己的线程
+     */
+    private class Connection extends Thread {
+        private final ConnectionId remoteId;
+        /** 在 connections 中该 ConnectionId 对应的位置 */
+        private final int stripe;
+
+        /**
+         * 服务器地址：ip + port
+         */
+        private InetSocketAddress server;
+
+        private Socket socket = null;
+        private DataInputStream in;
+        private DataOutputStream out;
+
+        /** NIO 模式下负责该连接的 selector 线程，阻塞模式下为 null */
+        private volatile SelectorThread selectorThread;
+        private SelectionKey selectionKey;
+        /** NIO 模式下读取响应的长度字段和数据 */
+        private final ByteBuffer nioLengthBuffer = ByteBuffer.allocate(4);
+        private ByteBuffer nioDataBuffer;
+
+        private final int rpcTimeOut;
+        /** 连接空闲时最大休眠时间，单位：毫秒 */
+        private final int maxIdleTime;
+        /** 如果 true 表示禁用 Nagle 算法
+         *  Negale算法是指发送方发送数据的时候不会立刻发出，而是先放在缓冲区内，等待缓冲区满了再发送
+         */
+        private final boolean tcpNoDelay;
+        /** 是否需要发送ping message */
+        private final boolean doPing;
+        /** 发送 ping message 的时间间隔， 单位：毫秒 */
+        private int pingInterval;
+        /** socket 连接超时最大重试次数 */
+        private final int maxRetriesOnSocketTimeouts;
+        private int serviceClass;
+
+        /** 标识是否应该关闭连接，默认值： false */
+        private AtomicBoolean shouldCloseConnection = new AtomicBoolean();
+        /** I/O 活动的最新时间 */
+        private AtomicLong lastActivity = new AtomicLong();
+        /**
+         * 是否正在建立连接（setupIOStreams 执行中）
+         * 建立连接时持有该对象的锁，可能因为重试和超时持续很久，closeIfIdle 据此跳过，不去等待该锁
+         */
+        private volatile boolean connecting = false;
+        /** 导致连接关闭的异常 */
+        private IOException closeException;
+
+        /**
+         * 连接头中发送的版本，决定请求头的格式：
+         * 不小于 VERSION_FIXED_HEADER 时为定长的 {@link RpcRequestHeader}，否则为 RpcRequestHeaderProto
+         */
+        private final byte version = RpcConstants.CURRENT_VERSION;
+        /**
+         * 连接使用的压缩 codec，连接版本 >= VERSION_COMPRESSION 时在第一个连接上下文中发送给服务端
+         * 之后超过 compressionThreshold 的请求压缩发送，服务端也可能压缩响应
+         */
+        private final Codec codec = version >= RpcConstants.VERSION_COMPRESSION ?
+                compressionCodec : null;
+
+        /** 该连接所属服务端地址的统计 */
+        private final ConnectionStats stats;
+        /** 连接是否已经建立，用于统计关闭和重连，只在持有该对象的锁时访问 */
+        private boolean established = false;
+
+        /**
+         * 待发送的请求队列（多生产者单消费者）
+         * 调用线程序列化请求后放入队列，由获得 writing 标志的线程批量写出
+         */
+        private final ConcurrentLinkedQueue<QueuedFrame> sendQueue =
+                new ConcurrentLinkedQueue<>();
+        /** 是否有线程正在写出 sendQueue 中的请求 */
+        private final AtomicBoolean writing = new AtomicBoolean();
+
+        /**
+         * 连接上已经绑定的协议及其编号
+         * 编号从 0 开始连续分配，编号 0 是建立连接时连接上下文中的协议
+         */
+        private final Map<Class<?>, Integer> protocolIds = new ConcurrentHashMap<>();
+
+        /** 未完成的调用，key 为 callId */
+        private final ConcurrentIntHashMap<Call> calls = new ConcurrentIntHashMap<>();
+
+        /**
+         * 还没有收到最后一个 frame 的响应值，key 为 callId
+         * 只由读取该连接响应的线程（receiver 线程或 selector 线程）访问
+         */
+        private final Map<Integer, DataOutputBuffer> partialResponses = new HashMap<>();
+
+        public Connection(ConnectionId remoteId, Integer serviceClass, int stripe)
+                throws IOException {
+            this.remoteId = remoteId;
+            this.stripe = stripe;
+            this.server = remoteId.getAddress();
+            if (server.isUnresolved()) {
                 throw new UnknownHostException("Unknown host name : " + server.toString());
             }
+            this.stats = retainConnectionStats(server);
             this.rpcTimeOut = remoteId.getRpcTimeOut();
             this.maxRetriesOnSocketTimeouts = remoteId.getMaxRetriesOnSocketTimeouts();
             this.maxIdleTime = remoteId.getMaxIdleTime();
@@ -244,288 +1124,1134 @@ public class Client {
                 // todo ping message
                 // 构造 RPC header with the callId as the ping callId
             }
-            this.pingInterval = remoteId.getPingInterval();
-            this.serviceClass = serviceClass;
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("The ping interval is " + this.pingInterval + " ms.");
+            this.pingInterval = remoteId.getPingInterval();
+            this.serviceClass = serviceClass;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("The ping interval is " + this.pingInterval + " ms.");
+            }
+
+            this.setName("IPC Client (" + socketFactory.hashCode() +") connection to " +
+                    server.toString() + (connectionStripes > 1 ? " #" + stripe : ""));
+            this.setDaemon(true);
+        }
+
+        /**
+         * 将当前时间更新为 I/O 最新活动时间
+         */
+        private void touch() {
+            lastActivity.set(System.currentTimeMillis());
+        }
+
+
+        public InetSocketAddress getServer() {
+            return server;
+        }
+
+        /**
+         * 向该 Connection 对象的 call 队列加入一个 call
+         * 同时唤醒等待的线程
+         * @param call 加入的队列得元素
+         * @return 如果连接处于关闭状态是添加 call，返回 false。正确加入队列返回 true
+         */
+        private synchronized boolean addCall(Call call) {
+            if (shouldCloseConnection.get()) {
+                return false;
+            }
+            if (calls.isEmpty()) {
+                // 连接从空闲状态开始等待响应，重新计算超时时间
+                touch();
+            }
+            calls.put(call.id, call);
+            // 唤醒在 waitForWork 中等待的 receiver 线程
+            notify();
+            return true;
+        }
+
+        private synchronized void setupConnection() throws IOException {
+            short timeOutFailures = 0;
+            while (true) {
+                try {
+                    this.socket = socketFactory.createSocket();
+                    if (selectorPool != null && socket.getChannel() == null) {
+                        socket.close();
+                        throw new IOException(noChannelMessage(socketFactory));
+                    }
+                    // 立刻发送数据，Client 本次不采用 Negale算法
+                    this.socket.setTcpNoDelay(tcpNoDelay);
+                    //  表示底层的TCP 实现会监视该连接是否有效
+                    this.socket.setKeepAlive(true);
+
+                    NetUtils.connect(socket, server, connectionTimeOut);
+
+                    if (rpcTimeOut > 0) {
+                        // 用 rpcTimeOut 覆盖 pingInterval
+                        pingInterval = rpcTimeOut;
+                    }
+                    socket.setSoTimeout(pingInterval);
+                    return;
+                } catch (SocketTimeoutException ste) {
+                    handleConnectionTimeout(timeOutFailures++, maxRetriesOnSocketTimeouts, ste);
+                } catch (IOException ioe) {
+                    throw ioe;
+                }
+            }
+        }
+
+        /**
+         * 建立连接后发送的连接头（header）
+         * +----------------------------------+
+         * |  "mrpc" 4 bytes                  |
+         * +----------------------------------+
+         * |  Version (1 byte)                |
+         * +----------------------------------+
+         * |  Service Class (1 byte)          |
+         * +----------------------------------+
+         * |  AuthProtocol (1 byte)           |
+         * +----------------------------------+
+         * @param outStream 输出流
+         * @throws IOException
+         */
+        private void writeConnectionHeader(OutputStream outStream) throws IOException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outStream));
+
+            out.write(RpcConstants.HEADER.array());
+            out.write(version);
+            out.write(serviceClass);
+            // 暂无授权协议，写 0
+            out.write(0);
+            out.flush();
+            stats.add(BYTES_SENT, out.size());
+        }
+
+        /**
+         * 每次连接都要写连接上下文（context）
+         * 协议名、协议版本和 clientId 在这里绑定到连接上，之后的请求头中不再携带
+         * remoteId 中的协议绑定为编号 0，其他协议第一次使用时再绑定，见 {@link #bindProtocol}
+         * @param remoteId
+         */
+        private void writeConnectionContext(ConnectionId remoteId) throws IOException {
+            Class<?> protocol = remoteId.getProtocol();
+            DataOutputBuffer buf = makeConnectionContext(protocol, clientId, 0);
+            try {
+                out.write(buf.getData(), 0, buf.getLength());
+                stats.add(BYTES_SENT, buf.getLength());
+                stats.increment(FRAMES_SENT);
+            } finally {
+                sendBufferPool.release(buf);
+            }
+            protocolIds.put(protocol, 0);
+        }
+
+        /**
+         * 构造连接上下文，callId 为 CONNECTION_CONTEXT_CALL_ID
+         * 整个 frame（长度 + 请求头 + delimited 的连接上下文）直接写入从 sendBufferPool 取得的缓冲区，
+         * 调用方负责归还
+         * @param clientId 只在连接的第一个上下文中发送，之后为 null
+         * @param protocolId 协议绑定的编号
+         */
+        private DataOutputBuffer makeConnectionContext(
+                Class<?> protocol, byte[] clientId, int protocolId) throws IOException {
+            long protocolVersion;
+            try {
+                protocolVersion = RPC.getProtocolVersion(protocol);
+            } catch (RuntimeException e) {
+                // 协议没有声明版本，请求需要自己携带版本
+                protocolVersion = -1;
+            }
+            IpcConnectionContextProtos.IpcConnectionContextProto connectionContext =
+                    ProtoUtil.makeIpcConnectionContext(
+                            RPC.getProtocolName(protocol), clientId, protocolVersion, protocolId);
+            if (clientId != null && codec != null) {
+                // 只在第一个连接上下文中协商 codec
+                connectionContext = connectionContext.toBuilder().setCodec(codec.getName()).build();
+            }
+
+            // 长度前缀和请求头不超过 64 字节，不够时缓冲区自动扩容
+            DataOutputBuffer buf = sendBufferPool.acquire(64 + connectionContext.getSerializedSize());
+            try {
+                // 长度占位，写完后回填
+                buf.writeInt(0);
+                if (version >= RpcConstants.VERSION_FIXED_HEADER) {
+                    new RpcRequestHeader(RpcKindProto.RPC_PROTOCOL_BUFFER,
+                            RpcRequestHeaderProto.OperationProto.RPC_FINAL_PACKET,
+                            RpcConstants.CONNECTION_CONTEXT_CALL_ID, RpcConstants.INVALID_RETRY_COUNT, 0)
+                            .write(buf);
+                } else {
+                    ProtoUtil.makeRpcRequestHeader(RPC.RpcKind.RPC_PROTOCOL_BUFFER,
+                            RpcRequestHeaderProto.OperationProto.RPC_FINAL_PACKET,
+                            RpcConstants.CONNECTION_CONTEXT_CALL_ID, RpcConstants.INVALID_RETRY_COUNT,
+                            null).writeDelimitedTo(buf);
+                }
+                connectionContext.writeDelimitedTo(buf);
+                buf.writeInt(0, buf.getLength() - 4);
+            } catch (IOException e) {
+                sendBufferPool.release(buf);
+                throw e;
+            }
+            return buf;
+        }
+
+        /**
+         * 获取协议在该连接上绑定的编号
+         * 协议第一次在该连接上使用时分配新的编号，并将绑定该编号的连接上下文放入 sendQueue
+         * 编号在连接上下文放入 sendQueue 之后才对其他线程可见，
+         * 因此服务端总是先收到绑定，再收到使用该编号的请求
+         */
+        private int bindProtocol(Class<?> protocol) throws IOException {
+            Integer protocolId = protocolIds.get(protocol);
+            if (protocolId != null) {
+                return protocolId;
+            }
+            synchronized (protocolIds) {
+                protocolId = protocolIds.get(protocol);
+                if (protocolId != null) {
+                    return protocolId;
+                }
+                protocolId = protocolIds.size();
+                sendQueue.add(new QueuedFrame(makeConnectionContext(protocol, null, protocolId)));
+                protocolIds.put(protocol, protocolId);
+                return protocolId;
+            }
+        }
+
+
+        /**
+         * 连接 server，建立 IO 流。向 server 发送 header 信息
+         * 启动线程，等待返回信息。由于多个线程持有相同 Connection 对象，需要保证只有一个线程可以调用 start 方法
+         * 因此该方法需要用 synchronized 修饰
+         */
+        private synchronized void setupIOStreams() {
+            if (socket != null || shouldCloseConnection.get()) {
+                return;
+            }
+
+            connecting = true;
+            try {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Connecting to " + server);
+                }
+                long setupStart = System.nanoTime();
+                try {
+                    setupConnection();
+                } finally {
+                    stats.add(SETUP_CONNECTION_NANOS, System.nanoTime() - setupStart);
+                }
+                OutputStream outStream = NetUtils.getOutputStream(socket, 0);
+                writeConnectionHeader(outStream);
+
+                if (doPing) {
+                    /**
+                     * todo ping相关
+                     */
+                }
+
+                /**
+                 * DataInputStream 可以支持 Java 原子类型的输入输入
+                 * BufferedInputStream 具有缓冲的作用
+                 * PingInputStream 处理读超时
+                 * NIO 模式下由 selector 线程直接从 channel 读取，不需要输入流
+                 */
+                if (selectorPool == null) {
+                    InputStream inStream = NetUtils.getInputStream(socket);
+                    this.in = new DataInputStream(new BufferedInputStream(
+                            new PingInputStream(inStream)));
+                }
+                this.out = new DataOutputStream(new BufferedOutputStream(outStream));
+
+                writeConnectionContext(remoteId);
+
+                touch();
+
+                if (selectorPool != null) {
+                    // 注册到共享的 selector 线程，用来接收响应信息
+                    selectorThread = selectorPool.register(this);
+                } else {
+                    // 启动 receiver 线程，用来接收响应信息
+                    start();
+                }
+                established = true;
+                stats.increment(CONNECTIONS_OPENED);
+                if (stats.get(CONNECTIONS_CLOSED) > 0) {
+                    stats.increment(RECONNECTS);
+                }
+                return;
+            } catch (Throwable t) {
+                stats.increment(CONNECT_FAILURES);
+                if (t instanceof IOException) {
+                    markClosed((IOException) t);
+                } else {
+                    markClosed(new IOException("Couldn't set up IO streams", t));
+                }
+                close();
+            } finally {
+                connecting = false;
+            }
+        }
+
+        private void closeConnection() {
+            if (socket == null) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                LOG.warn("Not able to close a socket", e);
+            }
+            //将 socket 置位 null 为了下次能够重新建立连接
+            socket = null;
+        }
+
+        private void handleConnectionTimeout(
+                int curRetries, int maxRetries, IOException ioe) throws IOException {
+
+            closeConnection();
+            /**
+             * 达到重试的最大次数，将异常抛出
+             */
+            if (curRetries >= maxRetries) {
+                throw ioe;
+            }
+            LOG.info("Retrying connect to server: " + server + ". Already tried "
+                    + curRetries + " time(s); maxRetries=" + maxRetries);
+        }
+
+        /**
+         * 等待直到有调用需要接收响应，或者连接需要关闭
+         * 被唤醒的时机：addCall 加入新的调用、markClosed 标记关闭、stop 中断线程
+         *
+         * @return true 表示有未完成的调用，需要读取响应；false 表示连接需要关闭
+         */
+        private synchronized boolean waitForWork() {
+            while (calls.isEmpty() && !shouldCloseConnection.get() && running.get()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // stop 会中断该线程，重新检查 running 状态
+                }
+            }
+
+            if (!calls.isEmpty() && !shouldCloseConnection.get() && running.get()) {
+                return true;
+            } else if (shouldCloseConnection.get()) {
+                return false;
+            } else {
+                // Client 已经停止
+                markClosed(new IOException("The client is stopped."));
+                return false;
+            }
+        }
+
+        /**
+         * receiver 线程，负责接收服务端的响应
+         * 多个调用线程可以在同一个连接上同时发送请求，响应按 callId 分发给对应的 Call
+         */
+        @Override
+        public void run() {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(getName() + ": starting, having connections "
+                        + connections.size());
+            }
+
+            try {
+                while (waitForWork()) {
+                    receiveRpcResponse();
+                }
+            } catch (Throwable t) {
+                LOG.warn("Unexpected error reading responses on connection " + this, t);
+                markClosed(new IOException("Error reading responses", t));
+            }
+
+            close();
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(getName() + ": stopped, remaining connections "
+                        + connections.size());
+            }
+        }
+
+        /**
+         * 阻塞模式下读取一个响应，并唤醒等待该响应的调用线程
+         */
+        private void receiveRpcResponse() {
+            if (shouldCloseConnection.get()) {
+                return;
+            }
+            touch();
+
+            int length;
+            byte[] frame = null;
+            try {
+                // 长度字段，header 与 response 的总长度
+                length = in.readInt();
+                if (zeroCopyResponse) {
+                    // 整个响应读入池化的缓冲区，之后直接从缓冲区解析
+                    frame = responseBufferPool.acquire(length);
+                    in.readFully(frame, 0, length);
+                }
+            } catch (IOException e) {
+                if (frame != null) {
+                    responseBufferPool.release(frame);
+                }
+                markClosed(e);
+                return;
+            }
+            if (frame != null) {
+                processRpcResponse(frame, length);
+            } else {
+                processRpcResponse(in, length);
+            }
+        }
+
+        /**
+         * 注册到 selector 上，只由 selector 线程调用
+         */
+        private void registerWith(Selector selector) throws IOException {
+            SocketChannel channel = socket.getChannel();
+            selectionKey = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        /**
+         * NIO 模式下，由 selector 线程在 channel 可读时调用
+         * 读取 channel 中所有可读的数据，每读到一个完整的响应就处理一个
+         * 一个响应可能需要多次可读事件才能读完，读取的进度保存在 nioLengthBuffer 和 nioDataBuffer 中
+         */
+        private void readAndProcess() {
+            SocketChannel channel = socket.getChannel();
+            try {
+                while (!shouldCloseConnection.get()) {
+                    if (nioDataBuffer == null) {
+                        if (channel.read(nioLengthBuffer) < 0) {
+                            throw new EOFException("Connection closed by server " + server);
+                        }
+                        if (nioLengthBuffer.hasRemaining()) {
+                            return;
+                        }
+                        nioLengthBuffer.flip();
+                        int length = nioLengthBuffer.getInt();
+                        nioLengthBuffer.clear();
+                        if (length < 0) {
+                            throw new IOException("Illegal response length " + length);
+                        }
+                        nioDataBuffer = zeroCopyResponse ?
+                                ByteBuffer.wrap(responseBufferPool.acquire(length), 0, length) :
+                                ByteBuffer.allocate(length);
+                    }
+
+                    if (channel.read(nioDataBuffer) < 0) {
+                        throw new EOFException("Connection closed by server " + server);
+                    }
+                    touch();
+                    if (nioDataBuffer.hasRemaining()) {
+                        return;
+                    }
+                    byte[] data = nioDataBuffer.array();
+                    int length = nioDataBuffer.limit();
+                    nioDataBuffer = null;
+                    if (zeroCopyResponse) {
+                        processRpcResponse(data, length);
+                    } else {
+                        processRpcResponse(new DataInputStream(new ByteArrayInputStream(data)),
+                                length);
+                    }
+                }
+            } catch (IOException e) {
+                markClosed(e);
+            }
+        }
+
+        /**
+         * NIO 模式下判断等待响应是否超时，相当于阻塞模式下 socket 的读超时
+         */
+        private boolean isResponseTimedOut(long now) {
+            return rpcTimeOut > 0 && !calls.isEmpty() &&
+                    now - lastActivity.get() > rpcTimeOut;
+        }
+
+        /**
+         * 处理一个响应（长度字段之后的部分），并唤醒等待该响应的调用线程
+         * 响应的格式见 RpcHeader.proto 中的 RpcResponseHeaderProto
+         * @param in 响应的输入
+         * @param length 响应的长度
+         */
+        private void processRpcResponse(DataInputStream in, int length) {
+            stats.increment(FRAMES_RECEIVED);
+            stats.add(BYTES_RECEIVED, 4 + length);
+            try {
+                RpcResponseHeaderProto header =
+                        RpcResponseHeaderProto.parseDelimitedFrom(in);
+                if (header == null) {
+                    throw new EOFException("Response header is null");
+                }
+
+                if (header.getStatus() == RpcResponseHeaderProto.RpcStatusProto.SUCCESS) {
+                    // 响应值的类型由调用决定
+                    Call call = calls.get(header.getCallId());
+                    int headerLen = header.getSerializedSize();
+                    int valueLen = length - CodedOutputStream.computeRawVarint32Size(headerLen)
+                            - headerLen;
+                    if (call == null) {
+                        // 无论 call 是否存在，都需要读出响应值，保证流中的下一个响应能够正确读取
+                        skipFully(in, valueLen);
+                        partialResponses.remove(header.getCallId());
+                        LOG.warn(getName() + " got response for unknown call #" +
+                                header.getCallId());
+                        return;
+                    }
+                    if (call.metrics != null) {
+                        // 包括长度字段
+                        call.metrics.addResponseBytes(4 + length);
+                    }
+                    Writable value = ReflectionUtils.newInstance(call.valueClass);
+                    if (isPlainResponse(header)) {
+                        value.readFields(in);
+                    } else {
+                        byte[] data = new byte[valueLen];
+                        in.readFully(data);
+                        DataInputStream valueIn = assembleResponse(header, data, 0, valueLen);
+                        if (valueIn == null) {
+                            return;
+                        }
+                        value.readFields(valueIn);
+                    }
+                    completeCall(header.getCallId(), value);
+                } else {
+                    handleErrorResponse(header);
+                }
+            } catch (IOException e) {
+                markClosed(e);
+            }
+        }
+
+        /**
+         * 处理一个完整读入 frame 的响应（长度字段之后的部分），直接从 frame 中解析
+         * Protocol Buffer 的响应值（RpcResponseWrapper）不拷贝，只记录其在 frame 中的位置，
+         * 由调用者解析后归还 frame；其他情况下 frame 在这里归还
+         *
+         * @param frame 从 responseBufferPool 获取的缓冲区
+         * @param length 响应的长度
+         */
+        private void processRpcResponse(byte[] frame, int length) {
+            stats.increment(FRAMES_RECEIVED);
+            stats.add(BYTES_RECEIVED, 4 + length);
+            boolean frameReleased = false;
+            try {
+                CodedInputStream cis = CodedInputStream.newInstance(frame, 0, length);
+                int headerLen = cis.readRawVarint32();
+                int oldLimit = cis.pushLimit(headerLen);
+                RpcResponseHeaderProto header = RpcResponseHeaderProto.parseFrom(cis);
+                cis.popLimit(oldLimit);
+                int offset = cis.getTotalBytesRead();
+
+                if (header.getStatus() == RpcResponseHeaderProto.RpcStatusProto.SUCCESS) {
+                    Call call = calls.get(header.getCallId());
+                    if (call == null) {
+                        partialResponses.remove(header.getCallId());
+                        LOG.warn(getName() + " got response for unknown call #" +
+                                header.getCallId());
+                        return;
+                    }
+                    if (call.metrics != null) {
+                        // 包括长度字段
+                        call.metrics.addResponseBytes(4 + length);
+                    }
+                    Writable value = ReflectionUtils.newInstance(call.valueClass);
+                    if (!isPlainResponse(header)) {
+                        // 解压或拼接到新的数组，frame 在这里归还
+                        DataInputStream valueIn = assembleResponse(header, frame, offset,
+                                length - offset);
+                        if (valueIn == null) {
+                            return;
+                        }
+                        value.readFields(valueIn);
+                        completeCall(header.getCallId(), value);
+                    } else if (value instanceof ProtobufRpcEngine.RpcResponseWrapper) {
+                        ProtobufRpcEngine.RpcResponseWrapper wrapper =
+                                (ProtobufRpcEngine.RpcResponseWrapper) value;
+                        // frame 交给 wrapper，由 wrapper 解析后归还
+                        wrapper.setResponseBuffer(frame, offset, length - offset,
+                                responseBufferPool);
+                        frameReleased = true;
+                        if (!completeCall(header.getCallId(), value)) {
+                            wrapper.releaseResponseBuffer();
+                        }
+                    } else {
+                        value.readFields(new DataInputStream(
+                                new ByteArrayInputStream(frame, offset, length - offset)));
+                        completeCall(header.getCallId(), value);
+                    }
+                } else {
+                    handleErrorResponse(header);
+                }
+            } catch (IOException e) {
+                markClosed(e);
+            } finally {
+                if (!frameReleased) {
+                    responseBufferPool.release(frame);
+                }
+            }
+        }
+
+        private void skipFully(DataInputStream in, int len) throws IOException {
+            while (len > 0) {
+                int skipped = in.skipBytes(len);
+                if (skipped <= 0) {
+                    throw new EOFException("Premature EOF from inputStream");
+                }
+                len -= skipped;
+            }
+        }
+
+        /**
+         * 将响应值交给对应的调用，唤醒等待该调用的线程
+         * @return 调用不存在时返回 false
+         */
+        private boolean completeCall(int callId, Writable value) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(getName() + " got value #" + callId);
+            }
+            Call call = calls.remove(callId);
+            if (call == null) {
+                LOG.warn(getName() + " got response for unknown call #" + callId);
+                return false;
+            }
+            call.setRpcResponse(value);
+            return true;
+        }
+
+        /**
+         * 处理 status 不是 SUCCESS 的响应
+         */
+        private void handleErrorResponse(RpcResponseHeaderProto header) {
+            int callId = header.getCallId();
+            RpcResponseHeaderProto.RpcStatusProto status = header.getStatus();
+            String exceptionClassName = header.hasExceptionClassName() ?
+                    header.getExceptionClassName() :
+                    "ServerDidNotSetExceptionClassName";
+            String errorMsg = header.hasErrorMsg() ?
+                    header.getErrorMsg() : "ServerDidNotSetErrorMsg";
+            RemoteException re = new RemoteException(exceptionClassName, errorMsg);
+            if (status == RpcResponseHeaderProto.RpcStatusProto.ERROR) {
+                Call call = calls.remove(callId);
+                if (call != null) {
+                    call.setException(re);
+                }
+            } else if (status == RpcResponseHeaderProto.RpcStatusProto.FATAL) {
+                // 致命错误，关闭连接，所有未完成的调用都会收到该异常
+                markClosed(re);
+            }
+        }
+
+        /**
+         * 向服务端发送 rpc 请求
+         * @param call 包含 rpc 调用相关的信息
+         */
+        public void sendRpcRequest(final Call call) throws IOException {
+            if (shouldCloseConnection.get()) {
+                return;
+            }
+
+            /**
+             * 序列化需要被发送出去的信息，这里由实际调用方法的线程来完成
+             * 实际发送前各个线程可以并行地准备（序列化）待发送的信息
+             * 这样做的好处一方面减少锁的粒度，另一方面序列化过程中抛异常每个线程可以单独、独立地报告
+             *
+             * 发送的格式:
+             * 0) 下面 1、2 两项的长度之和，4字节
+             * 1) 请求头，版本 >= VERSION_FIXED_HEADER 时为定长的 RpcRequestHeader，
+             *    否则为 delimited 的 RpcRequestHeaderProto
+             * 2) RpcRequest
+             * 三项都序列化到同一个缓冲区中，0) 先占位，序列化完成后回填，
+             * 这样整个请求只需要一次 write，也不需要 toByteArray 拷贝
+             * 缓冲区从 sendBufferPool 中获取，写出后归还
+             *
+             * 版本 >= VERSION_STREAMING 时，长度未知或超过 streamChunkSize 的请求
+             * 由 ChunkedRequestStream 边序列化边分块发送
+             */
+            // 暂时没有重试机制，因此参数 retryCount=-1
+            // clientId 已在连接上下文中发送，请求头中不再携带
+            int protocolId;
+            try {
+                protocolId = bindProtocol(call.protocol);
+            } catch (IOException e) {
+                calls.remove(call.id);
+                throw e;
+            }
+            RpcRequestHeader fixedHeader = null;
+            RpcRequestHeaderProto header = null;
+            int frameLen = 4;
+            if (version >= RpcConstants.VERSION_FIXED_HEADER) {
+                fixedHeader = new RpcRequestHeader(ProtoUtil.convertRpcKind(call.rpcKind),
+                        RpcRequestHeaderProto.OperationProto.RPC_FINAL_PACKET,
+                        call.id, RpcConstants.INVALID_RETRY_COUNT, protocolId);
+                frameLen += fixedHeader.getLength();
+            } else {
+                header = ProtoUtil.makeRpcRequestHeader(
+                        call.rpcKind, RpcRequestHeaderProto.OperationProto.RPC_FINAL_PACKET,
+                        call.id, RpcConstants.INVALID_RETRY_COUNT, null, protocolId);
+                int headerLen = header.getSerializedSize();
+                frameLen += CodedOutputStream.computeRawVarint32Size(headerLen) + headerLen;
+            }
+            boolean streaming = version >= RpcConstants.VERSION_STREAMING && streamChunkSize > 0;
+            if (call.rpcRequest instanceof ProtobufRpcEngine.RpcWrapper) {
+                int requestLen = ((ProtobufRpcEngine.RpcWrapper) call.rpcRequest).getLength();
+                frameLen += requestLen;
+                // 长度已知且不超过一个 chunk 时直接序列化到一个 frame 中
+                streaming = streaming && requestLen > streamChunkSize;
+            }
+            if (streaming) {
+                new ChunkedRequestStream(call, fixedHeader).send();
+                return;
             }
 
-            this.setName("IPC Client (" + socketFactory.hashCode() +") connection to " +
-                    server.toString());
-            this.setDaemon(true);
+            DataOutputBuffer buf = sendBufferPool.acquire(frameLen);
+            try {
+                buf.writeInt(0);
+                if (fixedHeader != null) {
+                    fixedHeader.write(buf);
+                } else {
+                    header.writeDelimitedTo(buf);
+                }
+                call.rpcRequest.write(buf);
+                buf.writeInt(0, buf.getLength() - 4);
+                if (codec != null) {
+                    buf = compressRequest(buf, fixedHeader);
+                }
+            } catch (IOException e) {
+                sendBufferPool.release(buf);
+                // 请求没有发送出去，不会有响应，从等待响应的调用中移除
+                calls.remove(call.id);
+                throw e;
+            }
+            if (call.metrics != null) {
+                call.metrics.addRequestBytes(buf.getLength());
+            }
+
+            sendQueue.add(new QueuedFrame(buf));
+            flushSendQueue();
         }
 
         /**
-         * 将当前时间更新为 I/O 最新活动时间
+         * 分块发送一个请求（版本 >= VERSION_STREAMING）
+         * 请求（请求头之后的部分）每写满 streamChunkSize 字节，就作为一个 RPC_CONTINUATION_PACKET
+         * frame 放入 sendQueue 并写出，剩余的部分作为 RPC_FINAL_PACKET 发送；
+         * 序列化与发送交替进行，大的请求不需要整个放在一个缓冲区中，
+         * 其他线程的请求也可以插在两个 frame 之间发送，不必等待整个请求写完
+         *
+         * 每个 frame 的请求头长度相同，先按 RPC_FINAL_PACKET 写入，
+         * 确定后面还有数据时再回填 rpcOp；压缩时每个 frame 单独压缩
+         *
+         * 第一个 frame 从 INITIAL_PAYLOAD_SIZE 开始按需扩容，小的请求仍然只占用一个可以归还到池中的
+         * 小缓冲区；确定请求超过一个 chunk 后，后续的 frame 直接按 chunk 的大小获取
          */
-        private void touch() {
-            lastActivity.set(System.currentTimeMillis());
-        }
+        private class ChunkedRequestStream extends OutputStream {
+            /** 第一个 frame 负载的初始容量 */
+            private static final int INITIAL_PAYLOAD_SIZE = 512;
+
+
+            private final Call call;
+            /** 最后一个 frame 的请求头 */
+            private final RpcRequestHeader header;
+            /** 中间 frame 的请求头 */
+            private final RpcRequestHeader continuationHeader;
+            /** frame 中请求头之后第一个字节的位置 */
+            private final int payloadOffset;
+            /** 正在写入的 frame */
+            private DataOutputBuffer buf;
+            /** 已经放入 sendQueue 的 frame 数 */
+            private int frames;
+
+            ChunkedRequestStream(Call call, RpcRequestHeader header) {
+                this.call = call;
+                this.header = header;
+                this.continuationHeader = new RpcRequestHeader(header.getRpcKind(),
+                        RpcRequestHeaderProto.OperationProto.RPC_CONTINUATION_PACKET,
+                        header.getCallId(), header.getRetryCount(), header.getProtocolId());
+                this.payloadOffset = 4 + header.getLength();
+            }
 
+            void send() throws IOException {
+                try {
+                    newFrame(Math.min(INITIAL_PAYLOAD_SIZE, streamChunkSize));
+                    call.rpcRequest.write(new DataOutputStream(this));
+                    sendFrame(false);
+                } catch (IOException e) {
+                    if (buf != null) {
+                        sendBufferPool.release(buf);
+                        buf = null;
+                    }
+                    if (frames > 0) {
+                        // 服务端已经收到请求的一部分，连接上的数据无法恢复，关闭连接
+                        markClosed(e);
+                    } else {
+                        calls.remove(call.id);
+                    }
+                    throw e;
+                }
+            }
 
-        public InetSocketAddress getServer() {
-            return server;
-        }
+            @Override
+            public void write(int b) throws IOException {
+                if (buf.getLength() - payloadOffset == streamChunkSize) {
+                    sendFrame(true);
+                }
+                reserve(1);
+                buf.write(b);
+            }
 
-        /**
-         * 向该 Connection 对象的 call 队列加入一个 call
-         * 同时唤醒等待的线程
-         * @param call 加入的队列得元素
-         * @return 如果连接处于关闭状态是添加 call，返回 false。正确加入队列返回 true
-         */
-        private synchronized boolean addCall(Call call) {
-            if (shouldCloseConnection.get()) {
-                return false;
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int room = streamChunkSize - (buf.getLength() - payloadOffset);
+                    if (room == 0) {
+                        sendFrame(true);
+                        continue;
+                    }
+                    int n = Math.min(room, len);
+                    reserve(n);
+                    buf.write(b, off, n);
+                    off += n;
+                    len -= n;
+                }
             }
-            calls.put(call.id, call);
-            //todo 更新run方法时再添加通知
-            return true;
-        }
 
-        private synchronized void setupConnection() throws IOException {
-            short timeOutFailures = 0;
-            while (true) {
-                try {
-                    this.socket = socketFactory.createSocket();
-                    // 立刻发送数据，Client 本次不采用 Negale算法
-                    this.socket.setTcpNoDelay(tcpNoDelay);
-                    //  表示底层的TCP 实现会监视该连接是否有效
-                    this.socket.setKeepAlive(true);
+            /**
+             * @param payloadCapacity 新 frame 负载的初始容量
+             */
+            private void newFrame(int payloadCapacity) throws IOException {
+                buf = sendBufferPool.acquire(payloadOffset + payloadCapacity);
+                buf.writeInt(0);
+                header.write(buf);
+            }
 
-                    NetUtils.connect(socket, server, connectionTimeOut);
+            /**
+             * 保证当前 frame 还能写入 n 个字节，按两倍扩容，但不超过一个完整 frame 的大小
+             */
+            private void reserve(int n) {
+                int needed = buf.getLength() + n;
+                if (needed > buf.getCapacity()) {
+                    buf.ensureCapacity(Math.min(Math.max(buf.getCapacity() * 2, needed),
+                            payloadOffset + streamChunkSize));
+                }
+            }
 
-                    if (rpcTimeOut > 0) {
-                        // 用 rpcTimeOut 覆盖 pingInterval
-                        pingInterval = rpcTimeOut;
+            /**
+             * 回填当前 frame 的长度和 rpcOp，放入 sendQueue 并写出
+             * @param continuation 后面是否还有 frame
+             */
+            private void sendFrame(boolean continuation) throws IOException {
+                if (shouldCloseConnection.get()) {
+                    throw new IOException("Connection to " + server + " is closed");
+                }
+                DataOutputBuffer frame = buf;
+                buf = null;
+                try {
+                    if (continuation) {
+                        frame.writeByte(4 + RpcRequestHeader.RPC_OP_OFFSET,
+                                RpcRequestHeaderProto.OperationProto.RPC_CONTINUATION_PACKET
+                                        .getNumber());
                     }
-                    socket.setSoTimeout(pingInterval);
-                    return;
-                } catch (SocketTimeoutException ste) {
-                    handleConnectionTimeout(timeOutFailures++, maxRetriesOnSocketTimeouts, ste);
-                } catch (IOException ioe) {
-                    throw ioe;
+                    frame.writeInt(0, frame.getLength() - 4);
+                    if (codec != null) {
+                        frame = compressRequest(frame, continuation ? continuationHeader : header);
+                    }
+                } catch (IOException e) {
+                    sendBufferPool.release(frame);
+                    throw e;
+                }
+                if (call.metrics != null) {
+                    call.metrics.addRequestBytes(frame.getLength());
+                }
+                sendQueue.add(new QueuedFrame(frame));
+                frames++;
+                flushSendQueue();
+                if (continuation) {
+                    newFrame(streamChunkSize);
                 }
             }
         }
 
         /**
-         * 建立连接后发送的连接头（header）
-         * +----------------------------------+
-         * |  "mrpc" 4 bytes                  |
-         * +----------------------------------+
-         * |  Version (1 byte)                |
-         * +----------------------------------+
-         * |  Service Class (1 byte)          |
-         * +----------------------------------+
-         * |  AuthProtocol (1 byte)           |
-         * +----------------------------------+
-         * @param outStream 输出流
-         * @throws IOException
+         * 请求（请求头之后的部分）超过 compressionThreshold 时压缩，格式见 {@link CodecFactory}
+         * @param buf 完整的请求 frame
+         * @param header buf 中的请求头
+         * @return 压缩后的 frame，此时 buf 已经归还；不需要压缩或者压缩后没有变小时返回 buf
          */
-        private void writeConnectionHeader(OutputStream outStream) throws IOException {
-            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outStream));
-
-            out.write(RpcConstants.HEADER.array());
-            out.write(RpcConstants.CURRENT_VERSION);
-            out.write(serviceClass);
-            // 暂无授权协议，写 0
-            out.write(0);
-            out.flush();
+        private DataOutputBuffer compressRequest(DataOutputBuffer buf, RpcRequestHeader header)
+                throws IOException {
+            int offset = 4 + header.getLength();
+            int length = buf.getLength() - offset;
+            if (length <= compressionThreshold) {
+                return buf;
+            }
+            DataOutputBuffer compressed = sendBufferPool.acquire(offset + length / 2);
+            try {
+                compressed.writeInt(0);
+                header.withCompressed(true).write(compressed);
+                if (!CodecFactory.compress(codec, buf.getData(), offset, length, compressed)) {
+                    sendBufferPool.release(compressed);
+                    return buf;
+                }
+                compressed.writeInt(0, compressed.getLength() - 4);
+            } catch (IOException e) {
+                sendBufferPool.release(compressed);
+                throw e;
+            }
+            sendBufferPool.release(buf);
+            return compressed;
         }
 
         /**
-         * 每次连接都要写连接上下文（context）
-         * @param remoteId
+         * @return 响应值是否完整地在这一个 frame 中，且没有压缩
          */
-        private void writeConnectionContext(ConnectionId remoteId) throws IOException {
-            IpcConnectionContextProtos.IpcConnectionContextProto connectionContext =
-                    ProtoUtil.makeIpcConnectionContext(
-                            RPC.getProtocolName(remoteId.getProtocol()));
-
-            RpcRequestHeaderProto connectionContextHeader = ProtoUtil
-                    .makeRpcRequestHeader(RPC.RpcKind.RPC_PROTOCOL_BUFFER,
-                            RpcRequestHeaderProto.OperationProto.RPC_FINAL_PACKET,
-                            RpcConstants.CONNECTION_CONTEXT_CALL_ID, RpcConstants.INVALID_RETRY_COUNT,
-                            clientId);
-
-            ProtobufRpcEngine.RpcRequestMessageWrapper request =
-                    new ProtobufRpcEngine.RpcRequestMessageWrapper(connectionContextHeader, connectionContext);
-
-            out.writeInt(request.getLength());
-            request.write(out);
+        private boolean isPlainResponse(RpcResponseHeaderProto header) {
+            return !header.getCompressed() && !header.getContinuation() &&
+                    (partialResponses.isEmpty() || !partialResponses.containsKey(header.getCallId()));
         }
 
-
         /**
-         * 连接 server，建立 IO 流。向 server 发送 header 信息
-         * 启动线程，等待返回信息。由于多个线程持有相同 Connection 对象，需要保证只有一个线程可以调用 start 方法
-         * 因此该方法需要用 synchronized 修饰
+         * 处理一个 frame 中的响应值 buf[offset, offset + length)：压缩时先解压，
+         * 标记 continuation 时保存到 partialResponses，最后一个 frame 与之前的部分拼接
+         * @return 完整的响应值，还有后续的 frame 时返回 null
          */
-        private synchronized void setupIOStreams() {
-            if (socket != null || shouldCloseConnection.get()) {
-                return;
+        private DataInputStream assembleResponse(RpcResponseHeaderProto header, byte[] buf,
+                                                 int offset, int length) throws IOException {
+            if (header.getCompressed()) {
+                if (codec == null) {
+                    throw new IOException("Compressed response without codec");
+                }
+                buf = CodecFactory.decompress(codec, buf, offset, length, maxResponseLength);
+                offset = 0;
+                length = buf.length;
             }
-
-            try {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Connecting to " + server);
+            int callId = header.getCallId();
+            DataOutputBuffer partial = partialResponses.get(callId);
+            if (partial == null) {
+                if (!header.getContinuation()) {
+                    return new DataInputStream(new ByteArrayInputStream(buf, offset, length));
                 }
-                setupConnection();
-                InputStream inStream = NetUtils.getInputStream(socket);
-                OutputStream outStream = NetUtils.getOutputStream(socket);
-                writeConnectionHeader(outStream);
+                partial = new DataOutputBuffer(length * 2);
+                partialResponses.put(callId, partial);
+            }
+            if (partial.getLength() + length > maxResponseLength) {
+                throw new IOException("Response for call #" + callId +
+                        " exceeds max length " + maxResponseLength);
+            }
+            partial.write(buf, offset, length);
+            if (header.getContinuation()) {
+                return null;
+            }
+            partialResponses.remove(callId);
+            return new DataInputStream(new ByteArrayInputStream(partial.getData(), 0,
+                    partial.getLength()));
+        }
 
-                if (doPing) {
+        /**
+         * 写出 sendQueue 中的所有请求
+         *
+         * 同一时刻只有一个线程（获得 writing 标志的线程）写连接，它会将队列中
+         * 其他线程放入的请求一起写出，并且一批请求只 flush 一次
+         * 没有获得 writing 标志的线程直接返回，它的请求由正在写的线程负责写出，
+         * 因此调用线程不需要等待其他线程，也不需要把请求交给单独的发送线程
+         *
+         * 写的线程释放标志后会重新检查队列，保证不会有请求遗留在队列中
+         * 一批请求写出后再更新统计，减少对共享计数的竞争
+         */
+        private void flushSendQueue() {
+            while (!sendQueue.isEmpty() && writing.compareAndSet(false, true)) {
+                long bytes = 0;
+                long frames = 0;
+                long waitNanos = 0;
+                try {
+                    QueuedFrame frame;
+                    while ((frame = sendQueue.poll()) != null) {
+                        try {
+                            // 连接已关闭时不再写出，未发送的调用由 cleanupCalls 结束
+                            if (!shouldCloseConnection.get()) {
+                                waitNanos += System.nanoTime() - frame.enqueueTime;
+                                frame.buf.writeTo(out);
+                                bytes += frame.buf.getLength();
+                                frames++;
+                            }
+                        } finally {
+                            sendBufferPool.release(frame.buf);
+                        }
+                    }
+                    if (!shouldCloseConnection.get()) {
+                        out.flush();
+                    }
+                } catch (IOException e) {
                     /**
-                     * todo ping相关
+                     * 如果在这里发生异常，将处于不可恢复状态
+                     * 因此，关闭连接，终止所有未完成的调用
                      */
+                    markClosed(e);
+                } finally {
+                    writing.set(false);
+                    if (frames > 0) {
+                        stats.add(BYTES_SENT, bytes);
+                        stats.add(FRAMES_SENT, frames);
+                        stats.add(SEND_QUEUE_WAIT_NANOS, waitNanos);
+                    }
                 }
-
-                /**
-                 * DataInputStream 可以支持 Java 原子类型的输入输入
-                 * BufferedInputStream 具有缓冲的作用
-                 */
-                this.in = new DataInputStream(new BufferedInputStream(inStream));
-                this.out = new DataOutputStream(new BufferedOutputStream(outStream));
-
-                writeConnectionContext(remoteId);
-
-                touch();
-
-                // 启动 receiver 线程，用来接收响应信息
-                start();
-                return;
-            } catch (Throwable t) {
-                if (t instanceof IOException) {
-                    markClosed((IOException) t);
-                } else {
-                    markClosed(new IOException("Couldn't set up IO streams", t));
-                }
-                close();
             }
         }
 
-        private void closeConnection() {
-            if (socket == null) {
+        /**
+         * 连接空闲时间超过 maxIdleTime 且没有未完成的调用时，标记连接需要关闭
+         * 回收线程由所有 Client 共享，因此先不加锁检查，跳过不空闲以及正在建立的连接，
+         * 避免一个连接缓慢的服务端阻塞所有 Client 的回收
+         * 确认和标记与 addCall 使用同一个锁：新的调用要么在标记之前加入（连接不再空闲），
+         * 要么加入失败后由调用者重新选择连接
+         * maxIdleTime 不大于 0 时不关闭空闲连接
+         * @param now 当前时间
+         */
+        private void closeIfIdle(long now) {
+            if (!isIdle(now)) {
                 return;
             }
-            try {
-                socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-                LOG.warn("Not able to close a socket", e);
+            synchronized (this) {
+                if (!isIdle(now)) {
+                    return;
+                }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(getName() + ": closing idle connection, idle for "
+                            + (now - lastActivity.get()) + " ms");
+                }
+                markClosed(new IOException("Idle connection closed"));
             }
-            //将 socket 置位 null 为了下次能够重新建立连接
-            socket = null;
         }
 
-        private void handleConnectionTimeout(
-                int curRetries, int maxRetries, IOException ioe) throws IOException {
-
-            closeConnection();
-            /**
-             * 达到重试的最大次数，将异常抛出
-             */
-            if (curRetries >= maxRetries) {
-                throw ioe;
-            }
-            LOG.info("Retrying connect to server: " + server + ". Already tried "
-                    + curRetries + " time(s); maxRetries=" + maxRetries);
+        /**
+         * 不加锁读取，只作为 closeIfIdle 的初步判断
+         */
+        private boolean isIdle(long now) {
+            return maxIdleTime > 0 && !connecting && calls.isEmpty() &&
+                    !shouldCloseConnection.get() && now - lastActivity.get() > maxIdleTime;
         }
 
-        @Override
-        public void run() {
+        /**
+         * 标记连接需要关闭，并唤醒 receiver 线程
+         * @param e 导致连接关闭的异常
+         */
+        private synchronized void markClosed(IOException e) {
+            if (shouldCloseConnection.compareAndSet(false, true)) {
+                releaseConnectionStats(stats);
+                closeException = e;
+                notifyAll();
+                if (selectorThread != null) {
+                    // NIO 模式下没有 receiver 线程，由 selector 线程关闭连接
+                    selectorThread.closeLater(this);
+                }
+            }
         }
 
         /**
-         * 向服务端发送 rpc 请求
-         * @param call 包含 rpc 调用相关的信息
+         * 关闭连接，从缓冲池中移除，并结束所有未完成的调用
          */
-        public void sendRpcRequest(final Call call)
-                throws IOException, InterruptedException {
-            if (shouldCloseConnection.get()) {
+        private synchronized void close() {
+            if (!shouldCloseConnection.get()) {
+                LOG.error("The connection is not in the closed state");
                 return;
             }
 
-            /**
-             * 序列化需要被发送出去的信息，这里由实际调用方法的线程来完成
-             * 实际发送前各个线程可以并行地准备（序列化）待发送的信息，而不是发送线程（sendParamsExecutor）
-             * 这样做的好处一方面减少锁的粒度，另一方面序列化过程中抛异常每个线程可以单独、独立地报告
-             *
-             * 发送的格式:
-             * 0) 下面 1、2 两项的长度之和，4字节
-             * 1) RpcRequestHeader
-             * 2) RpcRequest
-             * 1、2两项在下面代码序列化
-             */
-            final ByteArrayOutputStream bo = new ByteArrayOutputStream();
-            final DataOutputStream tmpOut = new DataOutputStream(bo);
-            // 暂时没有重试机制，因此参数 retryCount=-1
-            RpcRequestHeaderProto header = ProtoUtil.makeRpcRequestHeader(
-                    call.rpcKind, RpcRequestHeaderProto.OperationProto.RPC_FINAL_PACKET,
-                    call.id, -1, clientId);
-            header.writeDelimitedTo(tmpOut);
-            call.rpcRequest.write(tmpOut);
-
-            synchronized (sendRpcRequestLock) {
-                Future<?> senderFuture = sendParamsExecutor.submit(new Runnable() {
-                    @Override
-                    public void run() {
-                        //多线程并发调用服务端，需要锁住发送流 out
-                        try {
-                            synchronized (Connection.this.out) {
-                                if (shouldCloseConnection.get()) {
-                                    return;
-                                }
-                                if (LOG.isDebugEnabled()) {
-                                    LOG.debug(getName() + " sending #" + call.id);
-                                }
-
-                                byte[] data = bo.toByteArray();
-                                int dataLen = bo.size();
-                                out.writeInt(dataLen);
-                                out.write(data, 0, dataLen);
-                                out.flush();
+            // 只有缓冲池中的连接是当前连接时才移除，避免误删新建立的连接
+            AtomicReferenceArray<Connection> stripes = connections.get(remoteId);
+            if (stripes != null) {
+                synchronized (stripes) {
+                    if (stripes.compareAndSet(stripe, this, null)) {
+                        boolean empty = true;
+                        for (int i = 0; i < stripes.length(); i++) {
+                            if (stripes.get(i) != null) {
+                                empty = false;
+                                break;
                             }
-                        } catch (IOException e) {
-                            /**
-                             * 如果在这里发生异常，将处于不可恢复状态
-                             * 因此，关闭连接，终止所有未完成的调用
-                             */
-                            markClosed(e);
-                        } finally {
-                            IOUtils.closeStream(tmpOut);
+                        }
+                        if (empty) {
+                            connections.remove(remoteId, stripes);
                         }
                     }
-                });
+                }
+            }
 
-                try {
-                    senderFuture.get();
-                } catch (ExecutionException e) {
-                    // Java 有异常链，该异常可能是另一个异常引起的
-                    // 调用 getCause 方法获得真正的异常
-                    Throwable cause = e.getCause();
+            if (established) {
+                established = false;
+                stats.increment(CONNECTIONS_CLOSED);
+            }
 
-                    /**
-                     * 这里只能是运行时异常，因为 IOException 异常以及在上面的匿名内部类捕获了
-                     */
-                    if (cause instanceof RuntimeException) {
-                        throw (RuntimeException) cause;
-                    } else {
-                        throw new RuntimeException("unexpected checked exception", cause);
-                    }
+            if (selectionKey != null) {
+                selectionKey.cancel();
+            }
+            IOUtils.closeStream(out);
+            IOUtils.closeStream(in);
+
+            if (closeException == null) {
+                if (!calls.isEmpty()) {
+                    LOG.warn("A connection is closed for no cause and calls are not empty");
+                    closeException = new IOException("Unexpected closed connection");
+                    cleanupCalls();
+                }
+            } else {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("closing ipc connection to " + server + ": " +
+                            closeException.getMessage(), closeException);
                 }
+                cleanupCalls();
+            }
+            closeConnection();
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(getName() + ": closed");
             }
         }
 
-        private synchronized void markClosed(IOException e) {
+        /**
+         * 结束所有未完成的调用，调用者会收到 closeException
+         */
+        private void cleanupCalls() {
+            for (Call c : calls.removeAll()) {
+                c.setException(closeException);
+            }
         }
 
         /**
-         * 关闭连接
+         * 处理读超时的输入流
+         * socket 设置了 soTimeout，等待响应的过程中读超时会抛出 SocketTimeoutException
+         * 如果设置了 rpcTimeOut 或者连接已经关闭，则将异常抛出；否则继续等待
          */
-        private synchronized void close() {
+        private class PingInputStream extends FilterInputStream {
+            PingInputStream(InputStream in) {
+                super(in);
+            }
+
+            private void handleTimeout(SocketTimeoutException e) throws IOException {
+                if (shouldCloseConnection.get() || !running.get() || rpcTimeOut > 0) {
+                    throw e;
+                }
+                // todo 发送 ping message
+            }
+
+            @Override
+            public int read() throws IOException {
+                do {
+                    try {
+                        return super.read();
+                    } catch (SocketTimeoutException e) {
+                        handleTimeout(e);
+                    }
+                } while (true);
+            }
 
+            @Override
+            public int read(byte[] buf, int off, int len) throws IOException {
+                do {
+                    try {
+                        return super.read(buf, off, len);
+                    } catch (SocketTimeoutException e) {
+                        handleTimeout(e);
+                    }
+                } while (true);
+            }
         }
     }
 
@@ -541,24 +2267,74 @@ public class Client {
         }
         Connection connection;
         do {
-            synchronized (connections) {
-                connection = connections.get(remoteId);
-                if (connection == null) {
-                    connection = new Connection(remoteId, serviceClass);
-                    connections.put(remoteId, connection);
+            AtomicReferenceArray<Connection> stripes = connections.get(remoteId);
+            if (stripes == null) {
+                AtomicReferenceArray<Connection> newStripes =
+                        new AtomicReferenceArray<>(connectionStripes);
+                stripes = connections.putIfAbsent(remoteId, newStripes);
+                if (stripes == null) {
+                    stripes = newStripes;
                 }
             }
-        } while (!connection.addCall(call));
+            connection = selectConnection(remoteId, stripes, serviceClass);
+        } while (connection == null || !connection.addCall(call));
 
-        //我们没有在上面 synchronized (connections) 代码块调用该方法
+        //我们没有在 selectConnection 中调用该方法
         //原因是如果服务端慢，建立连接会花费很长时间，会拖慢整个系统
         connection.setupIOStreams();
         return connection;
     }
 
+    /**
+     * 从 ConnectionId 对应的多个位置中选择未完成调用最少的连接
+     * 已有连接没有未完成的调用时直接复用；所有连接都有未完成的调用时，
+     * 如果还有空位置（或者位置上的连接正在关闭）则建立新的连接
+     * 选择已有连接不加锁，只有建立新连接时才锁住位置数组
+     *
+     * @return 选中的连接；位置数组已经从 connections 中移除或者空位置被其他线程占用时返回 null，
+     *         调用者需要重新获取
+     */
+    private Connection selectConnection(ConnectionId remoteId,
+                                        AtomicReferenceArray<Connection> stripes,
+                                        int serviceClass) throws IOException {
+        Connection best = null;
+        int bestCalls = Integer.MAX_VALUE;
+        int freeStripe = -1;
+        for (int i = 0; i < stripes.length(); i++) {
+            Connection conn = stripes.get(i);
+            if (conn == null || conn.shouldCloseConnection.get()) {
+                if (freeStripe < 0) {
+                    freeStripe = i;
+                }
+                continue;
+            }
+            int outstanding = conn.calls.size();
+            if (outstanding < bestCalls) {
+                best = conn;
+                bestCalls = outstanding;
+            }
+        }
+        if (freeStripe >= 0 && (best == null || bestCalls > 0)) {
+            synchronized (stripes) {
+                // 位置数组可能已经被最后关闭的连接移除，此时不能再放入新的连接
+                if (connections.get(remoteId) != stripes) {
+                    return null;
+                }
+                Connection conn = stripes.get(freeStripe);
+                if (conn != null && !conn.shouldCloseConnection.get()) {
+                    return null;
+                }
+                best = new Connection(remoteId, serviceClass, freeStripe);
+                stripes.set(freeStripe, best);
+            }
+        }
+        return best;
+    }
+
     /**
      *  网络连接标识（用于判断能否复用同一个网络连接）
      *  该类用来存储与连接相关的 address、protocol 等信息，
+     *  protocol 不参与比较：不同协议的调用共享同一个连接，协议在连接上绑定为编号
      */
     public static class ConnectionId {
         final InetSocketAddress address;
@@ -645,7 +2421,6 @@ public class Client {
             if (obj instanceof ConnectionId) {
                 ConnectionId that = (ConnectionId) obj;
                 return Objects.equals(this.address, that.address)
-                        && Objects.equals(this.protocol, that.protocol)
                         && this.rpcTimeOut == that.rpcTimeOut
                         && this.maxIdleTime == that.maxIdleTime
                         && this.tcpNoDelay == that.tcpNoDelay
@@ -661,7 +2436,6 @@ public class Client {
             result = PRIME * result + (doPing ? 1231 : 1237);
             result = PRIME * result + maxIdleTime;
             result = PRIME * result + pingInterval;
-            result = PRIME * result + ((protocol == null) ? 0 : protocol.hashCode());
             result = PRIME * result + rpcTimeOut;
             result = PRIME * result + (tcpNoDelay ? 1231 : 1237);
             return result;
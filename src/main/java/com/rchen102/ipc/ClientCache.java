@@ -0,0 +1,110 @@
+package com.rchen102.ipc;
+
+import com.rchen102.conf.CommonConfigurationKeysPublic;
+import com.rchen102.conf.Configuration;
+
+import javax.net.SocketFactory;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * 缓存 Client，使用同一个 SocketFactory 且连接相关配置相同的代理共享同一个 Client
+ * 共享 Client 的调用共享到同一服务端的连接，不同协议、不同 RpcEngine 的调用也复用同一个连接，
+ * 见 {@link Client.ConnectionId}
+ */
+class ClientCache {
+    private final Map<Key, Client> clients = new HashMap<>();
+
+    /**
+     * 缓存的键
+     * 除了 SocketFactory，还包含决定连接如何建立、如何编码的配置：
+     * 是否使用 NIO、每个地址的连接条数以及压缩算法。这些配置不同的代理不能共享 Client，
+     * 否则后创建的代理会悄悄使用第一个代理的配置
+     */
+    private static final class Key {
+        private final SocketFactory factory;
+        private final boolean nioEnabled;
+        private final int connectionStripes;
+        private final String codecName;
+
+        Key(Configuration conf, SocketFactory factory) {
+            this.factory = factory;
+            this.nioEnabled = conf.getBoolean(
+                    CommonConfigurationKeysPublic.IPC_CLIENT_NIO_ENABLED_KEY,
+                    CommonConfigurationKeysPublic.IPC_CLIENT_NIO_ENABLED_DEFAULT);
+            this.connectionStripes = conf.getInt(
+                    CommonConfigurationKeysPublic.IPC_CLIENT_CONNECTION_STRIPES_KEY,
+                    CommonConfigurationKeysPublic.IPC_CLIENT_CONNECTION_STRIPES_DEFAULT);
+            this.codecName = conf.get(CommonConfigurationKeysPublic.IPC_COMPRESSION_CODEC_KEY,
+                    CommonConfigurationKeysPublic.IPC_COMPRESSION_CODEC_DEFAULT);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) obj;
+            return factory.equals(that.factory)
+                    && nioEnabled == that.nioEnabled
+                    && connectionStripes == that.connectionStripes
+                    && codecName.equals(that.codecName);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = factory.hashCode();
+            result = 31 * result + (nioEnabled ? 1 : 0);
+            result = 31 * result + connectionStripes;
+            result = 31 * result + codecName.hashCode();
+            return result;
+        }
+    }
+
+    /**
+     * 获取 Client，不存在时创建
+     * 其他配置（超时、数据长度上限等）取自第一次创建时的 conf；使用完毕后需要调用 {@link #stopClient(Client)}
+     * 共享的 Client 不指定返回类型，由调用的 RPC 类型决定
+     *
+     * @param conf 配置对象
+     * @param factory socket 工厂
+     * @return Client
+     */
+    synchronized Client getClient(Configuration conf, SocketFactory factory) {
+        Key key = new Key(conf, factory);
+        Client client = clients.get(key);
+        if (client == null) {
+            client = new Client(conf, factory);
+            clients.put(key, client);
+        } else {
+            client.incCount();
+        }
+        return client;
+    }
+
+    /**
+     * 释放 Client，没有引用时停止 Client 并从缓存中移除
+     * @param client 从 {@link #getClient} 获取的 Client
+     */
+    void stopClient(Client client) {
+        synchronized (this) {
+            client.decCount();
+            if (client.isZeroReference()) {
+                Iterator<Client> it = clients.values().iterator();
+                while (it.hasNext()) {
+                    if (it.next() == client) {
+                        it.remove();
+                        break;
+                    }
+                }
+            }
+        }
+        if (client.isZeroReference()) {
+            client.stop();
+        }
+    }
+}
@@ -1,12 +1,26 @@
 package com.rchen102.ipc;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.protobuf.BlockingRpcChannel;
+import com.google.protobuf.BlockingService;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors;
 import com.google.protobuf.GeneratedMessage;
 import com.google.protobuf.Message;
+import com.google.protobuf.RpcController;
 import com.google.protobuf.ServiceException;
 import com.rchen102.conf.Configuration;
+import com.rchen102.io.ByteArrayPool;
 import com.rchen102.io.DataOutputOutputStream;
 import com.rchen102.io.Writable;
+import com.rchen102.ipc.metrics.MethodMetrics;
+import com.rchen102.ipc.metrics.RpcMetrics;
 import com.rchen102.ipc.protobuf.ProtobufRpcEngineProtos;
 import com.rchen102.ipc.protobuf.RpcHeaderProtos;
 import com.rchen102.util.ProtoUtil;
@@ -14,13 +28,22 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import javax.net.SocketFactory;
+import java.io.Closeable;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
 import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 为 ManagerProtocol 接口提供代理（创建代理）
@@ -28,6 +51,21 @@ import java.net.InetSocketAddress;
 public class ProtobufRpcEngine implements RpcEngine {
     public static final Log LOG = LogFactory.getLog(ProtobufRpcEngine.class);
 
+    static {
+        // 注册服务端的请求类型和 RpcInvoker
+        com.rchen102.ipc.Server.registerProtocolEngine(RPC.RpcKind.RPC_PROTOCOL_BUFFER,
+                RpcRequestWrapper.class, new Server.ProtoBufRpcInvoker());
+        // 注册客户端的响应类型
+        Client.registerRpcResponseWrapper(RPC.RpcKind.RPC_PROTOCOL_BUFFER,
+                RpcResponseWrapper.class);
+    }
+
+    /**
+     * 确保类已经初始化，即已经向服务端注册
+     */
+    static void ensureInitialized() {
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public <T> T getProxy(Class<T> protocol, long clientVersion, InetSocketAddress address, Configuration conf, SocketFactory factory, int rpcTimeOut) throws IOException {
@@ -35,33 +73,262 @@ public class ProtobufRpcEngine implements RpcEngine {
         return (T) Proxy.newProxyInstance(protocol.getClassLoader(), new Class[]{protocol}, invoker);
     }
 
+    /**
+     * 获取 protoc 生成的 BlockingStub 所使用的 channel
+     * 用法：<code>XXXService.newBlockingStub(channel)</code>，生成的 stub 是具体的类，
+     * 调用直接进入 {@link BlockingChannel#callBlockingMethod}，不经过动态代理
+     *
+     * @param protocol 协议接口，用于确定协议名称、版本以及连接
+     * @param descriptor 协议对应的 protobuf service 描述
+     */
+    public static BlockingChannel getBlockingChannel(Class<?> protocol,
+                                                     Descriptors.ServiceDescriptor descriptor,
+                                                     InetSocketAddress address,
+                                                     Configuration conf,
+                                                     SocketFactory factory,
+                                                     int rpcTimeOut) {
+        return new BlockingChannel(protocol, descriptor, address, conf, factory, rpcTimeOut);
+    }
+
+    /**
+     * 构造请求头，对同一个方法的每次调用都相同
+     */
+    private static ProtobufRpcEngineProtos.RequestHeaderProto constructRpcRequestHeader(
+            String methodName, String protocolName, long clientProtocolVersion) {
+        return ProtobufRpcEngineProtos.RequestHeaderProto.newBuilder()
+                .setMethodName(methodName)
+                .setDeclaringClassProtocolName(protocolName)
+                .setClientProtocolVersion(clientProtocolVersion)
+                .build();
+    }
+
+    /**
+     * 构造只携带方法下标的请求头
+     * 协议名和协议版本已在连接上下文中绑定，见 Client.Connection#writeConnectionContext
+     * @param methodId 方法在 protobuf service 中的下标
+     */
+    private static ProtobufRpcEngineProtos.RequestHeaderProto constructRpcRequestHeader(int methodId) {
+        return ProtobufRpcEngineProtos.RequestHeaderProto.newBuilder()
+                .setMethodId(methodId)
+                .build();
+    }
+
+    /**
+     * 查找协议方法在 protobuf service 中的下标
+     * 协议接口的方法与 service 方法同名，且第二个参数为 service 方法的请求类型，
+     * 在请求类型所在的 .proto 文件中查找同名、同请求类型的 service 方法
+     * @param method 协议接口中的方法
+     * @return 下标，找不到或者有多个 service 匹配时返回 -1
+     */
+    private static int getMethodId(Method method) {
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        if (parameterTypes.length != 2 || !Message.class.isAssignableFrom(parameterTypes[1])) {
+            return -1;
+        }
+        Descriptors.Descriptor requestType;
+        try {
+            requestType = (Descriptors.Descriptor) parameterTypes[1]
+                    .getMethod("getDescriptor").invoke(null);
+        } catch (Exception e) {
+            return -1;
+        }
+        int methodId = -1;
+        for (Descriptors.ServiceDescriptor service : requestType.getFile().getServices()) {
+            Descriptors.MethodDescriptor candidate = service.findMethodByName(method.getName());
+            if (candidate != null && candidate.getInputType() == requestType) {
+                if (methodId != -1) {
+                    return -1;
+                }
+                methodId = candidate.getIndex();
+            }
+        }
+        return methodId;
+    }
+
+    /**
+     * 供 protoc 生成的 BlockingStub 使用的 channel
+     * 生成的 stub 调用时直接传入方法描述和响应类型，
+     * 因此不需要 InvocationHandler 的 Object[] 参数，也不需要查找方法的元数据，
+     * 请求头按照方法描述的下标预先构造
+     */
+    public static class BlockingChannel implements BlockingRpcChannel, Closeable {
+        private final Client client;
+        private boolean isClosed = false;
+        private final Client.ConnectionId remoteId;
+        private final Descriptors.ServiceDescriptor descriptor;
+        /** 下标为 MethodDescriptor.getIndex()，请求头只携带该下标 */
+        private final ProtobufRpcEngineProtos.RequestHeaderProto[] headers;
+        /** 下标为 MethodDescriptor.getIndex() */
+        private final MethodMetrics[] metrics;
+
+        private BlockingChannel(Class<?> protocol, Descriptors.ServiceDescriptor descriptor,
+                                InetSocketAddress address, Configuration conf,
+                                SocketFactory factory, int rpcTimeOut) {
+            this.descriptor = descriptor;
+            this.headers = new ProtobufRpcEngineProtos.RequestHeaderProto[
+                    descriptor.getMethods().size()];
+            this.metrics = new MethodMetrics[headers.length];
+            String protocolName = RPC.getProtocolName(protocol);
+            for (Descriptors.MethodDescriptor method : descriptor.getMethods()) {
+                headers[method.getIndex()] = constructRpcRequestHeader(method.getIndex());
+                metrics[method.getIndex()] =
+                        RpcMetrics.getMethodMetrics(protocolName, method.getName());
+            }
+            this.remoteId = new Client.ConnectionId(address, protocol, rpcTimeOut, conf);
+            this.client = RPC.CLIENTS.getClient(conf, factory);
+        }
+
+        @Override
+        public Message callBlockingMethod(Descriptors.MethodDescriptor method,
+                                          RpcController controller, Message request,
+                                          Message responsePrototype) throws ServiceException {
+            if (method.getService() != descriptor) {
+                throw new ServiceException("Method " + method.getFullName() +
+                        " does not belong to service " + descriptor.getFullName());
+            }
+            if (request == null) {
+                throw new ServiceException("null param while calling Method: ["
+                        + method.getName() + "]");
+            }
+            long startTime = System.nanoTime();
+            MethodMetrics methodMetrics = metrics[method.getIndex()];
+
+            final RpcResponseWrapper res;
+            try {
+                res = (RpcResponseWrapper) client.call(RPC.RpcKind.RPC_PROTOCOL_BUFFER,
+                        new RpcRequestWrapper(headers[method.getIndex()], request), remoteId,
+                        methodMetrics);
+            } catch (Throwable e) {
+                methodMetrics.recordCall(startTime, false);
+                throw new ServiceException(e);
+            }
+
+            if (LOG.isDebugEnabled()) {
+                long callTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+                LOG.debug("Call: " + method.getName() + " took " + callTime + "ms");
+            }
+
+            try {
+                Message response = res.getResponse(responsePrototype);
+                methodMetrics.recordCall(startTime, true);
+                return response;
+            } catch (Throwable t) {
+                methodMetrics.recordCall(startTime, false);
+                throw new ServiceException(t);
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (!isClosed) {
+                isClosed = true;
+                RPC.CLIENTS.stopClient(client);
+            }
+        }
+    }
+
+    /**
+     * 幂等方法正在进行中的调用，key 见 {@link InFlightKey}
+     * 整个进程共享：同一进程中的所有代理（包括同一协议的同步和异步代理）对同一服务端的相同调用
+     * 共享同一个调用的结果，调用完成后移除
+     */
+    private static final ConcurrentHashMap<InFlightKey, ListenableFuture<Message>> IN_FLIGHT_CALLS =
+            new ConcurrentHashMap<>();
+
     private static class Invoker implements RpcInvocationHandler{
         private Client client;
+        private boolean isClosed = false;
         private Client.ConnectionId remoteId;
         private final String protocolName;
         private final long clientProtocolVersion;
         private final int NORMAL_ARGS_LEN = 2;
+        /** 协议中每个方法的元数据，创建代理时构造，之后只读 */
+        private final Map<Method, MethodMetadata> methodMetadata;
+        private final Class<?> protocol;
+
+        /**
+         * 协议方法的元数据
+         * 请求头和响应类型对同一个方法的每次调用都相同，因此只在创建代理时构造一次，
+         * 避免每次调用都通过反射获取响应类型、重新构造请求头
+         */
+        private static class MethodMetadata {
+            final ProtobufRpcEngineProtos.RequestHeaderProto header;
+            /** 响应类型的默认实例，获取失败时为 null */
+            final Message prototype;
+            /** 获取响应类型失败的原因，调用时抛出 */
+            final Exception prototypeError;
+            final boolean async;
+            /** 是否为幂等方法，见 {@link ProtocolInfo#idempotentMethods} */
+            final boolean idempotent;
+            final MethodMetrics metrics;
+
+            MethodMetadata(ProtobufRpcEngineProtos.RequestHeaderProto header,
+                           Message prototype, Exception prototypeError,
+                           boolean async, boolean idempotent, MethodMetrics metrics) {
+                this.header = header;
+                this.prototype = prototype;
+                this.prototypeError = prototypeError;
+                this.async = async;
+                this.idempotent = idempotent;
+                this.metrics = metrics;
+            }
+
+            Message getPrototype() throws ServiceException {
+                if (prototype == null) {
+                    throw new ServiceException(prototypeError);
+                }
+                return prototype;
+            }
+        }
 
         private Invoker(Class<?> protocol, InetSocketAddress address,
                         Configuration conf, SocketFactory factory,
                         int rpcTimeOut) {
+            this.protocol = protocol;
             this.protocolName = RPC.getProtocolName(protocol);
             this.clientProtocolVersion = RPC.getProtocolVersion(protocol);
             this.remoteId = new Client.ConnectionId(address, protocol, rpcTimeOut, conf);
-            this.client = new Client(RpcResponseWrapper.class, conf, factory);
+            this.client = RPC.CLIENTS.getClient(conf, factory);
+
+            Map<Method, MethodMetadata> metadata = new HashMap<>();
+            for (Method method : protocol.getMethods()) {
+                metadata.put(method, buildMethodMetadata(method));
+            }
+            this.methodMetadata = metadata;
+        }
+
+        private MethodMetadata buildMethodMetadata(Method method) {
+            Message prototype = null;
+            Exception prototypeError = null;
+            try {
+                prototype = getReturnType(method);
+            } catch (Exception e) {
+                prototypeError = e;
+            }
+            // 能确定方法下标时请求头只携带下标，否则携带完整的方法名、协议名和协议版本
+            int methodId = getMethodId(method);
+            ProtobufRpcEngineProtos.RequestHeaderProto header = methodId >= 0 ?
+                    constructRpcRequestHeader(methodId) :
+                    constructRpcRequestHeader(method.getName(), protocolName, clientProtocolVersion);
+            return new MethodMetadata(header, prototype, prototypeError, RPC.isAsync(method),
+                    RPC.isIdempotent(protocol, method),
+                    RpcMetrics.getMethodMetrics(protocolName, method.getName()));
         }
 
-        private ProtobufRpcEngineProtos.RequestHeaderProto constructRpcRequesHeader(Method method) {
-            ProtobufRpcEngineProtos.RequestHeaderProto.Builder headerBuilder = ProtobufRpcEngineProtos.RequestHeaderProto
-                    .newBuilder();
-            headerBuilder.setMethodName(method.getName());
-            headerBuilder.setDeclaringClassProtocolName(protocolName);
-            headerBuilder.setClientProtocolVersion(clientProtocolVersion);
-            return headerBuilder.build();
+        private MethodMetadata getMethodMetadata(Method method) {
+            MethodMetadata metadata = methodMetadata.get(method);
+            // 不属于协议的方法（不会出现在正常的调用中），临时构造
+            return metadata != null ? metadata : buildMethodMetadata(method);
         }
 
         private Message getReturnType(Method method) throws Exception {
             Class<?> returnType = method.getReturnType();
+            if (RPC.isAsync(method)) {
+                // 异步方法的返回值类型为 ListenableFuture<响应类型>
+                Type type = ((ParameterizedType) method.getGenericReturnType())
+                        .getActualTypeArguments()[0];
+                returnType = (Class<?>) type;
+            }
             Method newInstMethod = returnType.getMethod("getDefaultInstance");
             newInstMethod.setAccessible(true);
             return (Message) newInstMethod.invoke(null, (Object []) null);
@@ -77,6 +344,9 @@ public class ProtobufRpcEngine implements RpcEngine {
          * <li>服务端的异常包装在 RemoteException 中的异常</li>
          * </ol>
          *
+         * 异步方法（返回 ListenableFuture）发送请求后立即返回，
+         * 上述异常以 ServiceException 的形式设置到返回的 Future 中
+         *
          * @param proxy proxy
          * @param method 调用的方法
          * @param args 参数
@@ -85,10 +355,7 @@ public class ProtobufRpcEngine implements RpcEngine {
          */
         @Override
         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-            long startTime = 0;
-            if (LOG.isDebugEnabled()) {
-                startTime = System.currentTimeMillis();
-            }
+            long startTime = System.nanoTime();
 
             if (args.length != NORMAL_ARGS_LEN) {
                 throw new ServiceException("Too many parameters for request. Method: ["
@@ -100,32 +367,61 @@ public class ProtobufRpcEngine implements RpcEngine {
                         + method.getName() + "]");
             }
 
-            ProtobufRpcEngineProtos.RequestHeaderProto header = constructRpcRequesHeader(method);
-            Message theRequest = (Message) args[1];
+            MethodMetadata metadata = getMethodMetadata(method);
+            Object result;
+            try {
+                result = invoke(method, metadata, (Message) args[1], startTime);
+            } catch (Throwable t) {
+                metadata.metrics.recordCall(startTime, false);
+                throw t;
+            }
+            if (metadata.async) {
+                metadata.metrics.recordCallWhenDone((ListenableFuture<?>) result, startTime);
+            } else {
+                metadata.metrics.recordCall(startTime, true);
+            }
+            return result;
+        }
+
+        private Object invoke(Method method, MethodMetadata metadata, Message theRequest,
+                              long startTime) throws ServiceException {
+            ProtobufRpcEngineProtos.RequestHeaderProto header = metadata.header;
+            if (metadata.idempotent) {
+                ListenableFuture<Message> future =
+                        invokeCoalesced(method, metadata, theRequest, startTime);
+                if (metadata.async) {
+                    return forward(future);
+                }
+                try {
+                    return Uninterruptibles.getUninterruptibly(future);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof ServiceException ?
+                            (ServiceException) cause : new ServiceException(cause);
+                }
+            }
+            if (metadata.async) {
+                return invokeAsync(method, metadata,
+                        new RpcRequestWrapper(header, theRequest), startTime);
+            }
+            // 返回类型无法解析时不发送请求，与异步调用一致
+            Message prototype = metadata.getPrototype();
             final RpcResponseWrapper res;
             try {
                 res = (RpcResponseWrapper) client.call(RPC.RpcKind.RPC_PROTOCOL_BUFFER,
-                        new RpcRequestWrapper(header, theRequest), remoteId);
+                        new RpcRequestWrapper(header, theRequest), remoteId, metadata.metrics);
             } catch (Throwable e) {
                 throw new ServiceException(e);
             }
 
             if (LOG.isDebugEnabled()) {
-                long callTime = System.currentTimeMillis() - startTime;
+                long callTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
                 LOG.debug("Call: " + method.getName() + " took " + callTime + "ms");
             }
 
-            Message prototype = null;
-            try {
-                prototype = getReturnType(method);
-            } catch (Exception e) {
-                throw new ServiceException(e);
-            }
             Message returnMessage = null;
             try {
-                returnMessage = prototype.newBuilderForType()
-                        .mergeFrom(res.theResponseRead)
-                        .build();
+                returnMessage = res.getResponse(prototype);
             } catch (Throwable t) {
                 throw new ServiceException(t);
             }
@@ -133,9 +429,156 @@ public class ProtobufRpcEngine implements RpcEngine {
             return returnMessage;
         }
 
+        /**
+         * 调用幂等方法，与进程中正在进行中的相同调用（服务端、协议、方法和序列化后的请求都相同）合并
+         * 只有第一个调用发送请求，其他调用等待该请求的结果；请求完成后再次调用会重新发送
+         * 响应只解析一次，所有调用者共享同一个不可变的 Message
+         * 作为 key 的请求字节直接用于发送，请求只序列化一次
+         */
+        private ListenableFuture<Message> invokeCoalesced(
+                Method method, MethodMetadata metadata,
+                Message theRequest, long startTime) throws ServiceException {
+            ByteString requestBytes = theRequest.toByteString();
+            final InFlightKey key = new InFlightKey(remoteId, protocolName, method.getName(),
+                    requestBytes);
+            ListenableFuture<Message> inFlight = IN_FLIGHT_CALLS.get(key);
+            if (inFlight != null) {
+                return inFlight;
+            }
+            final SettableFuture<Message> future = SettableFuture.create();
+            inFlight = IN_FLIGHT_CALLS.putIfAbsent(key, future);
+            if (inFlight != null) {
+                return inFlight;
+            }
+
+            ListenableFuture<Message> call;
+            try {
+                call = invokeAsync(method, metadata,
+                        new RpcRequestWrapper(metadata.header, requestBytes), startTime);
+            } catch (ServiceException e) {
+                IN_FLIGHT_CALLS.remove(key, future);
+                future.setException(e);
+                throw e;
+            }
+            // 先移除再设置结果，结果返回之后的调用不会再拿到这次的结果
+            Futures.addCallback(call, new FutureCallback<Message>() {
+                @Override
+                public void onSuccess(Message result) {
+                    IN_FLIGHT_CALLS.remove(key, future);
+                    future.set(result);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    IN_FLIGHT_CALLS.remove(key, future);
+                    future.setException(t);
+                }
+            });
+            return future;
+        }
+
+        /**
+         * 为共享的 Future 创建调用者自己的 Future，调用者取消时不影响其他共享该调用的调用者
+         */
+        private ListenableFuture<Message> forward(ListenableFuture<Message> shared) {
+            final SettableFuture<Message> future = SettableFuture.create();
+            Futures.addCallback(shared, new FutureCallback<Message>() {
+                @Override
+                public void onSuccess(Message result) {
+                    future.set(result);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    future.setException(t);
+                }
+            });
+            return future;
+        }
+
+        private ListenableFuture<Message> invokeAsync(
+                final Method method, MethodMetadata metadata,
+                RpcRequestWrapper request, final long startTime) throws ServiceException {
+            final Message prototype = metadata.getPrototype();
+            final ListenableFuture<Writable> future;
+            try {
+                future = client.callAsync(RPC.RpcKind.RPC_PROTOCOL_BUFFER, request, remoteId,
+                        metadata.metrics);
+            } catch (Throwable e) {
+                throw new ServiceException(e);
+            }
+
+            // 收到响应后在 receiver 线程中解析，结果设置到 returnFuture
+            final SettableFuture<Message> returnFuture = SettableFuture.create();
+            Futures.addCallback(future, new FutureCallback<Writable>() {
+                @Override
+                public void onSuccess(Writable result) {
+                    if (LOG.isDebugEnabled()) {
+                        long callTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+                        LOG.debug("Async call: " + method.getName() + " took " + callTime + "ms");
+                    }
+                    try {
+                        returnFuture.set(((RpcResponseWrapper) result).getResponse(prototype));
+                    } catch (Throwable t) {
+                        returnFuture.setException(new ServiceException(t));
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    returnFuture.setException(new ServiceException(t));
+                }
+            });
+            return returnFuture;
+        }
+
         @Override
-        public void close() throws IOException {
-            client.stop();
+        public synchronized void close() throws IOException {
+            if (!isClosed) {
+                isClosed = true;
+                RPC.CLIENTS.stopClient(client);
+            }
+        }
+    }
+
+    /**
+     * 合并调用的 key：服务端（ConnectionId）、协议名、方法名和序列化后的请求
+     * 使用协议名和方法名而不是 Method，同一协议的同步接口和异步接口的调用也可以合并
+     */
+    private static class InFlightKey {
+        private final Client.ConnectionId remoteId;
+        private final String protocolName;
+        private final String methodName;
+        private final ByteString request;
+
+        InFlightKey(Client.ConnectionId remoteId, String protocolName, String methodName,
+                    ByteString request) {
+            this.remoteId = remoteId;
+            this.protocolName = protocolName;
+            this.methodName = methodName;
+            this.request = request;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof InFlightKey)) {
+                return false;
+            }
+            InFlightKey that = (InFlightKey) obj;
+            return remoteId.equals(that.remoteId) && protocolName.equals(that.protocolName)
+                    && methodName.equals(that.methodName) && request.equals(that.request);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = remoteId.hashCode();
+            result = 31 * result + protocolName.hashCode();
+            result = 31 * result + methodName.hashCode();
+            result = 31 * result + request.hashCode();
+            return result;
         }
     }
 
@@ -162,6 +605,11 @@ public class ProtobufRpcEngine implements RpcEngine {
          */
         byte[] theRequestRead;
 
+        /**
+         * 客户端已经序列化好的请求，不为 null 时代替 theRequest 发送，见 {@link Invoker#invokeCoalesced}
+         */
+        ByteString theRequestBytes;
+
         public BaseRpcMessageWithHeader() {}
 
         public BaseRpcMessageWithHeader(T requestHeader, Message theRequest) {
@@ -173,7 +621,12 @@ public class ProtobufRpcEngine implements RpcEngine {
         public void write(DataOutput out) throws IOException {
             OutputStream os = DataOutputOutputStream.constructDataOutputStream(out);
             requestHeader.writeDelimitedTo(os);
-            theRequest.writeDelimitedTo(os);
+            if (theRequestBytes != null) {
+                ProtoUtil.writeRawVarInt32(out, theRequestBytes.size());
+                theRequestBytes.writeTo(os);
+            } else {
+                theRequest.writeDelimitedTo(os);
+            }
         }
 
         @Override
@@ -216,7 +669,9 @@ public class ProtobufRpcEngine implements RpcEngine {
         public int getLength() {
             int headerLen = requestHeader.getSerializedSize();
             int requestLen;
-            if (theRequest != null) {
+            if (theRequestBytes != null) {
+                requestLen = theRequestBytes.size();
+            } else if (theRequest != null) {
                 requestLen = theRequest.getSerializedSize();
             } else if (theRequestRead != null) {
                 requestLen = theRequestRead.length;
@@ -228,7 +683,7 @@ public class ProtobufRpcEngine implements RpcEngine {
         }
     }
 
-    private static class RpcRequestWrapper extends
+    static class RpcRequestWrapper extends
             BaseRpcMessageWithHeader<ProtobufRpcEngineProtos.RequestHeaderProto> {
 
         @SuppressWarnings("unused")
@@ -238,6 +693,15 @@ public class ProtobufRpcEngine implements RpcEngine {
             super(requestHeader, theRequest);
         }
 
+        /**
+         * @param theRequestBytes 已经序列化的请求，直接发送
+         */
+        RpcRequestWrapper(ProtobufRpcEngineProtos.RequestHeaderProto requestHeader,
+                          ByteString theRequestBytes) {
+            this.requestHeader = requestHeader;
+            this.theRequestBytes = theRequestBytes;
+        }
+
         @Override
         ProtobufRpcEngineProtos.RequestHeaderProto parseHeaderFrom(byte[] bytes) throws IOException {
             return ProtobufRpcEngineProtos.RequestHeaderProto.parseFrom(bytes);
@@ -245,6 +709,9 @@ public class ProtobufRpcEngine implements RpcEngine {
 
         @Override
         public String toString() {
+            if (!requestHeader.hasMethodName()) {
+                return "#" + requestHeader.getMethodId();
+            }
             return requestHeader.getDeclaringClassProtocolName() + "." +
                     requestHeader.getMethodName();
         }
@@ -271,6 +738,15 @@ public class ProtobufRpcEngine implements RpcEngine {
         Message theRespone;
         byte[] theResponseRead;
 
+        /**
+         * 直接从接收缓冲区解析时（见 IPC_CLIENT_RESPONSE_ZEROCOPY_KEY），
+         * 响应在 responseBuffer 中的位置，解析后缓冲区归还到 bufferPool
+         */
+        private byte[] responseBuffer;
+        private int responseOffset;
+        private int responseLength;
+        private ByteArrayPool bufferPool;
+
         public RpcResponseWrapper() {
         }
 
@@ -292,11 +768,68 @@ public class ProtobufRpcEngine implements RpcEngine {
             in.readFully(theResponseRead);
         }
 
+        /**
+         * 记录响应在接收缓冲区中的位置，不拷贝数据
+         * @param buf 接收缓冲区，其中 [off, off + len) 为 writeDelimitedTo 写入的响应
+         * @param pool buf 所属的池，解析后归还
+         */
+        void setResponseBuffer(byte[] buf, int off, int len, ByteArrayPool pool)
+                throws IOException {
+            CodedInputStream cis = CodedInputStream.newInstance(buf, off, len);
+            int resLen = cis.readRawVarint32();
+            int varIntLen = cis.getTotalBytesRead();
+            if (varIntLen + resLen > len) {
+                throw new IOException("Response length " + resLen +
+                        " exceeds frame length " + (len - varIntLen));
+            }
+            this.responseBuffer = buf;
+            this.responseOffset = off + varIntLen;
+            this.responseLength = resLen;
+            this.bufferPool = pool;
+        }
+
+        /**
+         * 归还接收缓冲区，之后不能再解析
+         */
+        void releaseResponseBuffer() {
+            if (responseBuffer != null) {
+                bufferPool.release(responseBuffer);
+                responseBuffer = null;
+            }
+        }
+
+        /**
+         * 按照 prototype 的类型解析响应
+         * 如果响应仍在接收缓冲区中，直接从缓冲区解析，解析后归还缓冲区，因此只能解析一次
+         * @param prototype 响应类型的默认实例
+         * @return 解析后的响应
+         * @throws IllegalStateException 接收缓冲区中的响应已经解析过或已经归还
+         */
+        Message getResponse(Message prototype) throws IOException {
+            if (responseBuffer != null) {
+                try {
+                    return prototype.getParserForType().parseFrom(
+                            responseBuffer, responseOffset, responseLength);
+                } finally {
+                    releaseResponseBuffer();
+                }
+            }
+            if (theResponseRead == null) {
+                throw new IllegalStateException(
+                        "Response has already been parsed or its buffer released");
+            }
+            return prototype.newBuilderForType()
+                    .mergeFrom(theResponseRead)
+                    .build();
+        }
+
         @Override
         public int getLength() {
             int resLen = 0;
             if (theRespone != null) {
                 resLen = theRespone.getSerializedSize();
+            } else if (responseBuffer != null) {
+                resLen = responseLength;
             } else if (theResponseRead != null) {
                 resLen = theResponseRead.length;
             } else {
@@ -306,4 +839,142 @@ public class ProtobufRpcEngine implements RpcEngine {
             return CodedOutputStream.computeRawVarint32Size(resLen) + resLen;
         }
     }
+
+    @Override
+    public RPC.Server getServer(Class<?> protocol, Object protocolImpl, String bindAddress,
+                                int port, int numHandlers, int numReaders,
+                                int queueSizePerHandler, Configuration conf) throws IOException {
+        return new Server(protocol, protocolImpl, conf, bindAddress, port, numHandlers,
+                numReaders, queueSizePerHandler);
+    }
+
+    /**
+     * Protocol Buffer 协议的服务端，协议的实现为 protoc 生成的 BlockingService，
+     * 如 <code>ClientManisDbProtocol.newReflectiveBlockingService(impl)</code>
+     */
+    public static class Server extends RPC.Server {
+        public Server(Class<?> protocolClass, Object protocolImpl, Configuration conf,
+                      String bindAddress, int port, int numHandlers, int numReaders,
+                      int queueSizePerHandler) throws IOException {
+            super(bindAddress, port, numHandlers, numReaders, queueSizePerHandler, conf,
+                    protocolImpl.getClass().getName());
+            registerProtocolAndImpl(RPC.RpcKind.RPC_PROTOCOL_BUFFER, protocolClass, protocolImpl);
+        }
+
+        /**
+         * 服务端的一个方法，注册时解析
+         */
+        static class ServiceMethod {
+            final Descriptors.MethodDescriptor descriptor;
+            /** 请求类型的默认实例，用于解析请求 */
+            final Message requestPrototype;
+
+            ServiceMethod(Descriptors.MethodDescriptor descriptor, Message requestPrototype) {
+                this.descriptor = descriptor;
+                this.requestPrototype = requestPrototype;
+            }
+        }
+
+        /**
+         * BlockingService 的方法表
+         */
+        static class ServiceMethodTable {
+            final BlockingService service;
+            /** 下标为 MethodDescriptor.getIndex() */
+            final ServiceMethod[] methods;
+            final Map<String, ServiceMethod> methodsByName;
+
+            ServiceMethodTable(BlockingService service) {
+                this.service = service;
+                List<Descriptors.MethodDescriptor> descriptors =
+                        service.getDescriptorForType().getMethods();
+                this.methods = new ServiceMethod[descriptors.size()];
+                this.methodsByName = new HashMap<>(descriptors.size() * 2);
+                for (Descriptors.MethodDescriptor descriptor : descriptors) {
+                    ServiceMethod method = new ServiceMethod(descriptor,
+                            service.getRequestPrototype(descriptor));
+                    methods[descriptor.getIndex()] = method;
+                    methodsByName.put(descriptor.getName(), method);
+                }
+            }
+        }
+
+        static class ProtoBufRpcInvoker implements RPC.RpcInvoker {
+            @Override
+            public Object buildMethodTable(Class<?> protocolClass, Object protocolImpl) {
+                if (!(protocolImpl instanceof BlockingService)) {
+                    throw new IllegalArgumentException("Protocol Buffer protocol " +
+                            protocolClass.getName() + " must be served by a BlockingService, not " +
+                            protocolImpl.getClass().getName());
+                }
+                return new ServiceMethodTable((BlockingService) protocolImpl);
+            }
+
+            /**
+             * 根据协议名、版本号找到方法表，再根据方法下标或方法名查表找到方法并调用
+             * 请求头中没有协议名、版本号时（连接版本 >= 2），使用请求在连接上绑定的协议
+             */
+            @Override
+            public Writable call(RPC.Server server, String connectionProtocolName,
+                                 Writable writableRequest, long receiveTime) throws Exception {
+                RpcRequestWrapper request = (RpcRequestWrapper) writableRequest;
+                ProtobufRpcEngineProtos.RequestHeaderProto rpcRequest = request.requestHeader;
+                String protoName = rpcRequest.hasDeclaringClassProtocolName() ?
+                        rpcRequest.getDeclaringClassProtocolName() : connectionProtocolName;
+                long clientVersion;
+                if (rpcRequest.hasClientProtocolVersion()) {
+                    clientVersion = rpcRequest.getClientProtocolVersion();
+                } else {
+                    clientVersion = com.rchen102.ipc.Server.getCurProtocolVersion();
+                    if (clientVersion == -1) {
+                        throw new IOException("Missing protocol version for " + protoName +
+                                " protocol.");
+                    }
+                }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Call: connectionProtocolName=" + connectionProtocolName +
+                            ", method=" + request);
+                }
+
+                RPC.ProtoClassProtoImpl protocolImpl = server.getProtocolImpl(
+                        RPC.RpcKind.RPC_PROTOCOL_BUFFER, protoName, clientVersion);
+                ServiceMethodTable methodTable = (ServiceMethodTable) protocolImpl.methodTable;
+                ServiceMethod method;
+                if (rpcRequest.hasMethodId()) {
+                    int methodId = rpcRequest.getMethodId();
+                    method = methodId < methodTable.methods.length ?
+                            methodTable.methods[methodId] : null;
+                    if (method == null) {
+                        throw new IOException("Unknown method id " + methodId +
+                                " called on " + protoName + " protocol.");
+                    }
+                } else {
+                    method = methodTable.methodsByName.get(rpcRequest.getMethodName());
+                    if (method == null) {
+                        throw new IOException("Unknown method " + rpcRequest.getMethodName() +
+                                " called on " + protoName + " protocol.");
+                    }
+                }
+                String methodName = method.descriptor.getName();
+                Message param = method.requestPrototype.getParserForType()
+                        .parseFrom(request.theRequestRead);
+
+                long startTime = System.currentTimeMillis();
+                Message result;
+                try {
+                    result = methodTable.service.callBlockingMethod(method.descriptor, null, param);
+                } catch (ServiceException e) {
+                    // 实现中抛出的异常被包装在 ServiceException 中
+                    Throwable cause = e.getCause();
+                    throw cause instanceof Exception ? (Exception) cause : e;
+                }
+                if (LOG.isDebugEnabled()) {
+                    long processingTime = System.currentTimeMillis() - startTime;
+                    LOG.debug("Served: " + methodName + " queueTime= " +
+                            (startTime - receiveTime) + " procesingTime= " + processingTime);
+                }
+                return new RpcResponseWrapper(result);
+            }
+        }
+    }
 }
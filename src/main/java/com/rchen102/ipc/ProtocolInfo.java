@@ -12,4 +12,9 @@ import java.lang.annotation.RetentionPolicy;
 public @interface ProtocolInfo {
     String protocolName(); // 协议名称
     long protocolVersion() default -1; // 协议版本
+    /**
+     * 幂等的方法名，见 {@link RPC#isIdempotent}
+     * 同一个代理上参数相同的并发调用合并为一次请求，共享同一个结果，目前只有 ProtobufRpcEngine 支持
+     */
+    String[] idempotentMethods() default {};
 }
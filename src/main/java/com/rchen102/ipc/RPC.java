@@ -1,6 +1,10 @@
 package com.rchen102.ipc;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import com.rchen102.conf.Configuration;
+import com.rchen102.ipc.metrics.MethodMetrics;
+import com.rchen102.ipc.metrics.RpcMetrics;
+import com.rchen102.io.Writable;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -10,18 +14,24 @@ import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
- * 公共的工具类，方便客户端获取代理
+ * 公共的工具类，方便客户端获取代理，以及构造服务端（见 {@link Builder}）
  */
 public class RPC {
     static final Log LOG = LogFactory.getLog(RPC.class);
     final static int RPC_SERVICE_CLASS_DEFAULT = 0;
 
+    /** 所有 RpcEngine 的代理共享的 Client 缓存 */
+    static final ClientCache CLIENTS = new ClientCache();
+
     /**
      * RPC 类型枚举
      */
@@ -115,6 +125,36 @@ public class RPC {
         }
     }
 
+    /**
+     * 返回值类型为 {@link ListenableFuture} 的协议方法为异步方法
+     * 异步方法的名字和参数与同步方法相同，代理发送请求后立即返回 Future，不等待响应
+     * @param method 协议方法
+     * @return 是否为异步方法
+     */
+    public static boolean isAsync(Method method) {
+        return ListenableFuture.class.isAssignableFrom(method.getReturnType());
+    }
+
+    /**
+     * 协议方法是否幂等，幂等方法在 {@link ProtocolInfo#idempotentMethods} 中列出
+     * 协议方法由 protoc 生成时无法直接添加注解，因此在协议接口上按方法名声明
+     * @param protocol 协议接口
+     * @param method 协议方法
+     * @return 是否为幂等方法
+     */
+    public static boolean isIdempotent(Class<?> protocol, Method method) {
+        ProtocolInfo anno = protocol.getAnnotation(ProtocolInfo.class);
+        if (anno == null) {
+            return false;
+        }
+        for (String name : anno.idempotentMethods()) {
+            if (name.equals(method.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static String getProtocolName(Class<?> protocol) {
         if (protocol == null) {
             return null;
@@ -158,4 +198,236 @@ public class RPC {
                         + "does not provide closeable invocation handler "
                         + proxy.getClass());
     }
+
+    /**
+     * 获取客户端所有协议方法调用统计的快照
+     * 统计由所有 RpcEngine 的代理和 stub 始终记录，包括调用次数、失败次数、延迟直方图和请求/响应字节数
+     * @return key 为 "协议名#方法名"，按 key 排序
+     */
+    public static Map<String, MethodMetrics.Snapshot> getMetricsSnapshot() {
+        return RpcMetrics.snapshot();
+    }
+
+    /**
+     * 服务端执行某种 RpcKind 的请求，由 RpcEngine 注册到 {@link com.rchen102.ipc.Server}
+     */
+    public interface RpcInvoker {
+        /**
+         * 注册协议时调用，预先解析协议的所有方法
+         * 返回的方法表保存在 {@link ProtoClassProtoImpl#methodTable} 中，调用时只需要查表
+         * @param protocolClass 协议接口
+         * @param protocolImpl 协议的实现
+         * @return 方法表
+         * @throws IllegalArgumentException 协议的实现不符合该 RpcEngine 的要求
+         */
+        Object buildMethodTable(Class<?> protocolClass, Object protocolImpl);
+
+        /**
+         * @param server 收到请求的服务端
+         * @param protocol 连接上下文中的协议名
+         * @param rpcRequest 反序列化后的请求
+         * @param receiveTime 收到请求的时间
+         * @return 响应
+         */
+        Writable call(Server server, String protocol, Writable rpcRequest,
+                      long receiveTime) throws Exception;
+    }
+
+    /**
+     * 构造服务端
+     */
+    public static class Builder {
+        private Class<?> protocol = null;
+        private Object instance = null;
+        private String bindAddress = "0.0.0.0";
+        private int port = 0;
+        private int numHandlers = 1;
+        private int numReaders = -1;
+        private int queueSizePerHandler = -1;
+        private final Configuration conf;
+
+        public Builder(Configuration conf) {
+            this.conf = conf;
+        }
+
+        /** 协议接口，同时决定使用的 RpcEngine */
+        public Builder setProtocol(Class<?> protocol) {
+            this.protocol = protocol;
+            return this;
+        }
+
+        /** 协议的实现，Protocol Buffer 协议为 BlockingService */
+        public Builder setInstance(Object instance) {
+            this.instance = instance;
+            return this;
+        }
+
+        public Builder setBindAddress(String bindAddress) {
+            this.bindAddress = bindAddress;
+            return this;
+        }
+
+        public Builder setPort(int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Builder setNumHandlers(int numHandlers) {
+            this.numHandlers = numHandlers;
+            return this;
+        }
+
+        public Builder setNumReaders(int numReaders) {
+            this.numReaders = numReaders;
+            return this;
+        }
+
+        public Builder setQueueSizePerHandler(int queueSizePerHandler) {
+            this.queueSizePerHandler = queueSizePerHandler;
+            return this;
+        }
+
+        public Server build() throws IOException {
+            if (this.conf == null) {
+                throw new IllegalArgumentException("conf is not set");
+            }
+            if (this.protocol == null) {
+                throw new IllegalArgumentException("protocol is not set");
+            }
+            if (this.instance == null) {
+                throw new IllegalArgumentException("instance is not set");
+            }
+            return getProtocolEngine(this.protocol, this.conf).getServer(this.protocol,
+                    this.instance, this.bindAddress, this.port, this.numHandlers,
+                    this.numReaders, this.queueSizePerHandler, this.conf);
+        }
+    }
+
+    /**
+     * 协议名 + 版本号，唯一确定服务端的一个协议实现
+     */
+    static class ProtoNameVer {
+        final String protocol;
+        final long version;
+
+        ProtoNameVer(String protocol, long version) {
+            this.protocol = protocol;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof ProtoNameVer)) {
+                return false;
+            }
+            ProtoNameVer pv = (ProtoNameVer) o;
+            return pv.protocol.equals(protocol) && pv.version == version;
+        }
+
+        @Override
+        public int hashCode() {
+            return protocol.hashCode() * 37 + (int) version;
+        }
+    }
+
+    /**
+     * 协议接口及其实现
+     */
+    static class ProtoClassProtoImpl {
+        final Class<?> protocolClass;
+        final Object protocolImpl;
+        /** 由 {@link RpcInvoker#buildMethodTable} 构造，具体类型由 RpcEngine 决定 */
+        final Object methodTable;
+
+        ProtoClassProtoImpl(Class<?> protocolClass, Object protocolImpl, Object methodTable) {
+            this.protocolClass = protocolClass;
+            this.protocolImpl = protocolImpl;
+            this.methodTable = methodTable;
+        }
+    }
+
+    /**
+     * RPC 服务端，一个服务端可以同时提供多个协议（见 {@link #addProtocol}），
+     * 请求按照 RpcKind 交给对应 RpcEngine 的 {@link RpcInvoker} 执行
+     */
+    public abstract static class Server extends com.rchen102.ipc.Server {
+        /** 下标为 RpcKind.ordinal()，协议需要在 start 之前注册 */
+        private final List<Map<ProtoNameVer, ProtoClassProtoImpl>> protocolImplMapArray =
+                new ArrayList<>(RpcKind.MAX_INDEX);
+
+        protected Server(String bindAddress, int port, int numHandlers, int numReaders,
+                         int queueSizePerHandler, Configuration conf, String serverName)
+                throws IOException {
+            super(bindAddress, port, numHandlers, numReaders, queueSizePerHandler, conf, serverName);
+            for (int i = 0; i < RpcKind.values().length; i++) {
+                protocolImplMapArray.add(new HashMap<ProtoNameVer, ProtoClassProtoImpl>(10));
+            }
+            // 同一个服务端可以提供不同 RpcEngine 的协议，确保所有 RpcEngine 都已注册 RpcInvoker
+            ProtobufRpcEngine.ensureInitialized();
+            SerializableRpcEngine.ensureInitialized();
+        }
+
+        Map<ProtoNameVer, ProtoClassProtoImpl> getProtocolImplMap(RpcKind rpcKind) {
+            return protocolImplMapArray.get(rpcKind.ordinal());
+        }
+
+        void registerProtocolAndImpl(RpcKind rpcKind, Class<?> protocolClass,
+                                     Object protocolImpl) {
+            String protocolName = RPC.getProtocolName(protocolClass);
+            long version = RPC.getProtocolVersion(protocolClass);
+            RpcInvoker invoker = getRpcInvoker(rpcKind);
+            if (invoker == null) {
+                throw new IllegalArgumentException("Unsupported rpcKind: " + rpcKind);
+            }
+            // 注册时解析方法，调用时不再查找方法
+            Object methodTable = invoker.buildMethodTable(protocolClass, protocolImpl);
+            getProtocolImplMap(rpcKind).put(new ProtoNameVer(protocolName, version),
+                    new ProtoClassProtoImpl(protocolClass, protocolImpl, methodTable));
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("RpcKind = " + rpcKind + " Protocol Name = " + protocolName +
+                        " version=" + version + " ProtocolImpl=" + protocolImpl.getClass().getName() +
+                        " protocolClass=" + protocolClass.getName());
+            }
+        }
+
+        /**
+         * 查找协议实现
+         * @throws IOException 服务端没有提供该协议
+         */
+        ProtoClassProtoImpl getProtocolImpl(RpcKind rpcKind, String protocolName,
+                                            long clientVersion) throws IOException {
+            ProtoClassProtoImpl impl = getProtocolImplMap(rpcKind).get(
+                    new ProtoNameVer(protocolName, clientVersion));
+            if (impl == null) {
+                throw new IOException("Unknown protocol: " + protocolName +
+                        " version: " + clientVersion + " for rpcKind: " + rpcKind);
+            }
+            return impl;
+        }
+
+        /**
+         * 增加一个协议
+         * @param rpcKind 协议使用的 RPC 类型
+         * @param protocolClass 协议接口
+         * @param protocolImpl 协议的实现，Protocol Buffer 协议为 BlockingService
+         * @return this
+         */
+        public Server addProtocol(RpcKind rpcKind, Class<?> protocolClass, Object protocolImpl) {
+            registerProtocolAndImpl(rpcKind, protocolClass, protocolImpl);
+            return this;
+        }
+
+        @Override
+        public Writable call(RpcKind rpcKind, String protocol, Writable rpcRequest,
+                             long receiveTime) throws Exception {
+            RpcInvoker invoker = getRpcInvoker(rpcKind);
+            if (invoker == null) {
+                throw new IOException("Unsupported rpcKind: " + rpcKind);
+            }
+            return invoker.call(this, protocol, rpcRequest, receiveTime);
+        }
+    }
 }
@@ -0,0 +1,28 @@
+package com.rchen102.ipc;
+
+import java.io.IOException;
+
+/**
+ * 服务端执行调用时抛出的异常，由服务端在响应头中返回
+ * 客户端将其包装为 RemoteException 抛给调用者
+ */
+public class RemoteException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /** 服务端异常的类名 */
+    private final String className;
+
+    public RemoteException(String className, String msg) {
+        super(msg);
+        this.className = className;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "(" + className + "): " + getMessage();
+    }
+}
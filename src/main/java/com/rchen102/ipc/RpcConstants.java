@@ -8,7 +8,44 @@ public class RpcConstants {
     /** RPC 连接发送 header 的头四个字节 */
     public static final ByteBuffer HEADER = ByteBuffer.wrap("mrpc".getBytes());
 
-    public static final byte CURRENT_VERSION = 1;
+    /**
+     * 版本 1：每个请求头都携带 clientId，以及完整的方法名、协议名和协议版本
+     * 服务端仍然接受该版本的连接
+     */
+    public static final byte VERSION_FULL_HEADER = 1;
+
+    /**
+     * 版本 2：clientId、协议名和协议版本在连接上下文中绑定，只发送一次，
+     * 之后的 protobuf 请求只携带方法在 service 中的下标
+     */
+    public static final byte VERSION_BOUND_CONTEXT = 2;
+
+    /**
+     * 版本 3：一个连接承载多个协议，每个协议用额外的连接上下文绑定到一个编号，
+     * 请求头中携带协议编号
+     */
+    public static final byte VERSION_MULTIPLEXED = 3;
+
+    /**
+     * 版本 4：请求头为定长的二进制格式，见 {@link RpcRequestHeader}，
+     * 连接上的所有请求（包括连接上下文）都使用该格式，响应头不变
+     */
+    public static final byte VERSION_FIXED_HEADER = 4;
+
+    /**
+     * 版本 5：可以在连接上下文中协商压缩 codec，
+     * 超过阈值的请求和响应压缩后发送，是否压缩由每个 frame 的请求头（响应头）标记
+     */
+    public static final byte VERSION_COMPRESSION = 5;
+
+    /**
+     * 版本 6：超过 IPC_STREAM_CHUNK_SIZE_KEY 的请求和响应拆分为多个 frame 发送，
+     * 请求的中间 frame 为 RPC_CONTINUATION_PACKET，响应的中间 frame 在响应头中标记 continuation，
+     * 不同调用的 frame 可以在同一个连接上交错
+     */
+    public static final byte VERSION_STREAMING = 6;
+
+    public static final byte CURRENT_VERSION = VERSION_STREAMING;
 
     public static final int INVALID_RETRY_COUNT = -1;
 
@@ -25,4 +25,21 @@ public interface RpcEngine {
                    Configuration conf,
                    SocketFactory factory,
                    int rpcTimeOut) throws IOException;
+
+    /**
+     * 获取服务端对象
+     * @param protocol 协议接口
+     * @param instance 协议的实现
+     * @param bindAddress 绑定的地址
+     * @param port 绑定的端口，0 表示使用临时端口
+     * @param numHandlers Handler 线程数
+     * @param numReaders Reader 线程数，-1 表示使用配置
+     * @param queueSizePerHandler 每个 Handler 对应的调用队列长度，-1 表示使用配置
+     * @param conf
+     * @return 服务端对象，需要调用 start 启动
+     * @throws IOException
+     */
+    RPC.Server getServer(Class<?> protocol, Object instance, String bindAddress, int port,
+                         int numHandlers, int numReaders, int queueSizePerHandler,
+                         Configuration conf) throws IOException;
 }
@@ -0,0 +1,160 @@
+package com.rchen102.ipc;
+
+import com.rchen102.ipc.protobuf.RpcHeaderProtos.RpcKindProto;
+import com.rchen102.ipc.protobuf.RpcHeaderProtos.RpcRequestHeaderProto;
+import com.rchen102.ipc.protobuf.RpcHeaderProtos.RpcRequestHeaderProto.OperationProto;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * 定长的 RPC 请求头，连接版本 >= {@link RpcConstants#VERSION_FIXED_HEADER} 时代替 RpcRequestHeaderProto
+ * 请求头中的字段都是固定宽度的整数，编码和解码不需要构造 protobuf 对象，
+ * clientId 在连接上下文中发送，请求头中不再携带
+ *
+ * 格式:
+ * +----------------------------------+
+ * |  rpcKind (1 byte)                |  RpcKindProto 的编号
+ * +----------------------------------+
+ * |  rpcOp (1 byte)                  |  OperationProto 的编号
+ * +----------------------------------+
+ * |  flags (1 byte)                  |  下面可选字段是否存在，以及请求是否压缩
+ * +----------------------------------+
+ * |  callId (4 bytes)                |
+ * +----------------------------------+
+ * |  protocolId (2 bytes，可选)       |  FLAG_PROTOCOL_ID，不存在时为 0
+ * +----------------------------------+
+ * |  retryCount (4 bytes，可选)       |  FLAG_RETRY_COUNT，不存在时为 INVALID_RETRY_COUNT
+ * +----------------------------------+
+ * FLAG_COMPRESSED 表示请求头之后的请求是压缩的，格式见 {@link com.rchen102.io.compress.CodecFactory}
+ */
+public class RpcRequestHeader {
+    /** 必需字段的长度 */
+    public static final int FIXED_LENGTH = 7;
+    /** rpcOp 在请求头中的位置，分块发送的请求在确定是否为最后一个 frame 后回填 */
+    public static final int RPC_OP_OFFSET = 1;
+
+    static final int FLAG_PROTOCOL_ID = 0x01;
+    static final int FLAG_RETRY_COUNT = 0x02;
+    static final int FLAG_COMPRESSED = 0x04;
+    /** 协议编号的最大值，编码为 2 字节的无符号数 */
+    static final int MAX_PROTOCOL_ID = 0xFFFF;
+
+    /** 未知的 rpcKind 为 null */
+    private final RpcKindProto rpcKind;
+    /** 未知的 rpcOp 为 null */
+    private final OperationProto rpcOp;
+    private final int callId;
+    private final int retryCount;
+    private final int protocolId;
+    private final boolean compressed;
+
+    public RpcRequestHeader(RpcKindProto rpcKind, OperationProto rpcOp, int callId,
+                            int retryCount, int protocolId) {
+        this(rpcKind, rpcOp, callId, retryCount, protocolId, false);
+    }
+
+    /**
+     * @param compressed 请求是否压缩
+     */
+    public RpcRequestHeader(RpcKindProto rpcKind, OperationProto rpcOp, int callId,
+                            int retryCount, int protocolId, boolean compressed) {
+        if (protocolId < 0 || protocolId > MAX_PROTOCOL_ID) {
+            throw new IllegalArgumentException("Illegal protocol id " + protocolId);
+        }
+        this.rpcKind = rpcKind;
+        this.rpcOp = rpcOp;
+        this.callId = callId;
+        this.retryCount = retryCount;
+        this.protocolId = protocolId;
+        this.compressed = compressed;
+    }
+
+    /**
+     * 按旧版本的 protobuf 请求头构造，服务端用同一种方式处理不同版本的请求
+     */
+    public static RpcRequestHeader fromProto(RpcRequestHeaderProto header) {
+        return new RpcRequestHeader(header.hasRpcKind() ? header.getRpcKind() : null,
+                header.getRpcOp(), header.getCallId(), header.getRetryCount(),
+                header.hasProtocolId() ? header.getProtocolId() : 0);
+    }
+
+    /**
+     * @param in 输入，从请求头的第一个字节开始
+     * @throws java.io.EOFException 请求头不完整
+     */
+    public static RpcRequestHeader readFrom(DataInput in) throws IOException {
+        RpcKindProto rpcKind = RpcKindProto.valueOf(in.readUnsignedByte());
+        OperationProto rpcOp = OperationProto.valueOf(in.readUnsignedByte());
+        int flags = in.readUnsignedByte();
+        int callId = in.readInt();
+        int protocolId = (flags & FLAG_PROTOCOL_ID) != 0 ? in.readUnsignedShort() : 0;
+        int retryCount = (flags & FLAG_RETRY_COUNT) != 0 ?
+                in.readInt() : RpcConstants.INVALID_RETRY_COUNT;
+        return new RpcRequestHeader(rpcKind, rpcOp, callId, retryCount, protocolId,
+                (flags & FLAG_COMPRESSED) != 0);
+    }
+
+    /**
+     * @return 除 compressed 外相同的请求头
+     */
+    public RpcRequestHeader withCompressed(boolean compressed) {
+        return new RpcRequestHeader(rpcKind, rpcOp, callId, retryCount, protocolId, compressed);
+    }
+
+    public void write(DataOutput out) throws IOException {
+        int flags = 0;
+        if (protocolId != 0) {
+            flags |= FLAG_PROTOCOL_ID;
+        }
+        if (retryCount != RpcConstants.INVALID_RETRY_COUNT) {
+            flags |= FLAG_RETRY_COUNT;
+        }
+        if (compressed) {
+            flags |= FLAG_COMPRESSED;
+        }
+        out.writeByte(rpcKind.getNumber());
+        out.writeByte(rpcOp.getNumber());
+        out.writeByte(flags);
+        out.writeInt(callId);
+        if (protocolId != 0) {
+            out.writeShort(protocolId);
+        }
+        if (retryCount != RpcConstants.INVALID_RETRY_COUNT) {
+            out.writeInt(retryCount);
+        }
+    }
+
+    /**
+     * @return 编码后的长度
+     */
+    public int getLength() {
+        return FIXED_LENGTH + (protocolId != 0 ? 2 : 0)
+                + (retryCount != RpcConstants.INVALID_RETRY_COUNT ? 4 : 0);
+    }
+
+    public RpcKindProto getRpcKind() {
+        return rpcKind;
+    }
+
+    public OperationProto getRpcOp() {
+        return rpcOp;
+    }
+
+    public int getCallId() {
+        return callId;
+    }
+
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    public int getProtocolId() {
+        return protocolId;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+}
@@ -1,31 +1,57 @@
 package com.rchen102.ipc;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.rchen102.conf.Configuration;
 import com.rchen102.io.ObjectWritable;
 import com.rchen102.io.Writable;
+import com.rchen102.ipc.metrics.MethodMetrics;
+import com.rchen102.ipc.metrics.RpcMetrics;
+import com.rchen102.util.ProtoUtil;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import javax.net.SocketFactory;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class SerializableRpcEngine implements RpcEngine {
     public static final Log LOG = LogFactory.getLog(SerializableRpcEngine.class);
 
+    static {
+        // 注册服务端的请求类型和 RpcInvoker
+        com.rchen102.ipc.Server.registerProtocolEngine(RPC.RpcKind.RPC_SERIALIZABLE,
+                Invocation.class, new Server.SerializableRpcInvoker());
+        // 注册客户端的响应类型
+        Client.registerRpcResponseWrapper(RPC.RpcKind.RPC_SERIALIZABLE, ObjectWritable.class);
+    }
+
+    /**
+     * 确保类已经初始化，即已经向服务端注册
+     */
+    static void ensureInitialized() {
+    }
+
     /**
      * Invocation 类用于封装请求
      * 对应的  ObjectWritable 用于封装返回值
      */
-    private static class Invocation implements Writable {
+    static class Invocation implements Writable {
         private String methodName;
         private Class<?>[] parameterClasses;
         private Object[] parameters;
@@ -41,7 +67,8 @@ public class SerializableRpcEngine implements RpcEngine {
         public Invocation(Method method, Object[] args, long clientVersion) {
             this.methodName = method.getName();
             this.parameterClasses = method.getParameterTypes();
-            this.parameters = args;
+            // 无参方法通过动态代理调用时 args 为 null
+            this.parameters = args == null ? new Object[0] : args;
             this.declaringClassProtocolName =
                     RPC.getProtocolName(method.getDeclaringClass());
             this.clientVersion = clientVersion;
@@ -67,40 +94,32 @@ public class SerializableRpcEngine implements RpcEngine {
             return clientVersion;
         }
 
+        /**
+         * 不使用 Java 序列化，参数通过 ObjectWritable 的紧凑编码写入，
+         * 参数类型同时作为每个参数的声明类型写入
+         */
         @Override
         public void write(DataOutput out) throws IOException {
-            ByteArrayOutputStream byteArrOut = new ByteArrayOutputStream();
-            ObjectOutputStream objOut = new ObjectOutputStream(byteArrOut);
-
-            objOut.writeObject(declaringClassProtocolName);
-            objOut.writeObject(methodName);
-            objOut.writeLong(clientVersion);
-            objOut.writeObject(parameters);
-            objOut.writeObject(parameterClasses);
-            objOut.flush();
-
-            out.writeInt(byteArrOut.toByteArray().length);
-            out.write(byteArrOut.toByteArray());
+            ObjectWritable.writeString(out, declaringClassProtocolName);
+            ObjectWritable.writeString(out, methodName);
+            out.writeLong(clientVersion);
+            ProtoUtil.writeRawVarInt32(out, parameterClasses.length);
+            for (int i = 0; i < parameterClasses.length; i++) {
+                ObjectWritable.writeObject(out, parameters[i], parameterClasses[i]);
+            }
         }
 
         @Override
         public void readFields(DataInput in) throws IOException {
-            int length = in.readInt();
-            byte[] byteArr = new byte[length];
-            in.readFully(byteArr);
-
-            ByteArrayInputStream byteArrIn = new ByteArrayInputStream(byteArr);
-            ObjectInputStream objIn = new ObjectInputStream(byteArrIn);
-
-            try {
-                declaringClassProtocolName = (String) objIn.readObject();
-                methodName = (String) objIn.readObject();
-                clientVersion = objIn.readLong();
-                parameters = (Object []) objIn.readObject();
-                parameterClasses = (Class<?>[])objIn.readObject();
-            } catch (ClassNotFoundException e) {
-                e.printStackTrace();
-                throw new IOException("Class not found when deserialize.");
+            declaringClassProtocolName = ObjectWritable.readString(in);
+            methodName = ObjectWritable.readString(in);
+            clientVersion = in.readLong();
+            parameters = new Object[ProtoUtil.readRawVarInt32(in)];
+            parameterClasses = new Class<?>[parameters.length];
+            ObjectWritable objectWritable = new ObjectWritable();
+            for (int i = 0; i < parameters.length; i++) {
+                parameters[i] = ObjectWritable.readObject(in, objectWritable);
+                parameterClasses[i] = objectWritable.getDeclaredClass();
             }
         }
 
@@ -123,36 +142,168 @@ public class SerializableRpcEngine implements RpcEngine {
 
     private static class Invoker implements RpcInvocationHandler{
         private Client client;
+        private boolean isClosed = false;
         private Client.ConnectionId remoteId;
         private final long clientProtocolVersion;
+        private final MethodMetricsTable metrics;
 
         private Invoker(Class<?> protocol, InetSocketAddress address,
                         Configuration conf, SocketFactory factory,
                         int rpcTimeout) throws IOException {
             this.remoteId = new Client.ConnectionId(address, protocol, rpcTimeout, conf);
-            this.client = new Client(ObjectWritable.class, conf, factory);
+            this.client = RPC.CLIENTS.getClient(conf, factory);
             this.clientProtocolVersion = RPC.getProtocolVersion(protocol);
+            this.metrics = new MethodMetricsTable(protocol);
         }
 
+        /**
+         * 返回值类型为 {@link ListenableFuture} 的方法为异步方法，发送请求后立即返回，
+         * 返回值或异常在收到响应后设置到返回的 Future 中
+         */
         @Override
         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-            long startTime = 0;
+            long startTime = System.nanoTime();
+            MethodMetrics methodMetrics = metrics.get(method);
+            if (RPC.isAsync(method)) {
+                ListenableFuture<Object> future;
+                try {
+                    future = invokeAsync(method, args, startTime, methodMetrics);
+                } catch (Throwable t) {
+                    methodMetrics.recordCall(startTime, false);
+                    throw t;
+                }
+                methodMetrics.recordCallWhenDone(future, startTime);
+                return future;
+            }
+            ObjectWritable value;
+            try {
+                value = (ObjectWritable) client.call(RPC.RpcKind.RPC_SERIALIZABLE,
+                        new Invocation(method, args, clientProtocolVersion), this.remoteId,
+                        methodMetrics);
+            } catch (Throwable t) {
+                methodMetrics.recordCall(startTime, false);
+                throw t;
+            }
+            methodMetrics.recordCall(startTime, true);
             if (LOG.isDebugEnabled()) {
-                startTime = System.currentTimeMillis();
+                long callTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+                LOG.debug("Call " + method.getName() + " " + callTime);
             }
+            return value.get();
+        }
+
+        private ListenableFuture<Object> invokeAsync(final Method method, Object[] args,
+                                                     final long startTime,
+                                                     MethodMetrics methodMetrics)
+                throws IOException {
+            ListenableFuture<Writable> future = client.callAsync(RPC.RpcKind.RPC_SERIALIZABLE,
+                    new Invocation(method, args, clientProtocolVersion), this.remoteId,
+                    methodMetrics);
+            return Futures.transform(future, new Function<Writable, Object>() {
+                @Override
+                public Object apply(Writable value) {
+                    if (LOG.isDebugEnabled()) {
+                        long callTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+                        LOG.debug("Async call " + method.getName() + " " + callTime);
+                    }
+                    return ((ObjectWritable) value).get();
+                }
+            });
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (!isClosed) {
+                isClosed = true;
+                RPC.CLIENTS.stopClient(client);
+            }
+        }
+    }
+
+    /**
+     * 协议方法对应的调用统计，创建代理时查找好，调用时不再访问 {@link RpcMetrics}
+     */
+    private static class MethodMetricsTable {
+        private final String protocolName;
+        private final Map<Method, MethodMetrics> metrics = new HashMap<>();
+
+        MethodMetricsTable(Class<?> protocol) {
+            this.protocolName = RPC.getProtocolName(protocol);
+            for (Method method : protocol.getMethods()) {
+                metrics.put(method, RpcMetrics.getMethodMetrics(protocolName, method.getName()));
+            }
+        }
+
+        MethodMetrics get(Method method) {
+            MethodMetrics methodMetrics = metrics.get(method);
+            // 不属于协议的方法（不会出现在正常的调用中），直接查找
+            return methodMetrics != null ? methodMetrics :
+                    RpcMetrics.getMethodMetrics(protocolName, method.getName());
+        }
+    }
+
+    /**
+     * 获取具体 stub 类使用的 channel，stub 直接调用 {@link RpcChannel#call}，不经过动态代理
+     * 见 {@link com.rchen102.protocol.ManagerManisDbProtocolSerializableStub}
+     */
+    public static RpcChannel getRpcChannel(Class<?> protocol, InetSocketAddress address,
+                                           Configuration conf, SocketFactory factory,
+                                           int rpcTimeOut) {
+        return new RpcChannel(protocol, address, conf, factory, rpcTimeOut);
+    }
+
+    /**
+     * 供具体 stub 类使用的 channel
+     * stub 在类加载时解析好协议方法，调用时直接传入，不需要 InvocationHandler
+     */
+    public static class RpcChannel implements Closeable {
+        private final Client client;
+        private boolean isClosed = false;
+        private final Client.ConnectionId remoteId;
+        private final long clientProtocolVersion;
+        private final MethodMetricsTable metrics;
+
+        private RpcChannel(Class<?> protocol, InetSocketAddress address,
+                           Configuration conf, SocketFactory factory, int rpcTimeOut) {
+            this.remoteId = new Client.ConnectionId(address, protocol, rpcTimeOut, conf);
+            this.client = RPC.CLIENTS.getClient(conf, factory);
+            this.clientProtocolVersion = RPC.getProtocolVersion(protocol);
+            this.metrics = new MethodMetricsTable(protocol);
+        }
+
+        /**
+         * 调用远程方法
+         * @param method 协议方法
+         * @param args 参数
+         * @return 返回值
+         * @throws IOException 网络异常或者远程代码执行异常
+         */
+        public Object call(Method method, Object[] args) throws IOException {
+            long startTime = System.nanoTime();
+            MethodMetrics methodMetrics = metrics.get(method);
             ObjectWritable value;
-            value = (ObjectWritable) client.call(RPC.RpcKind.RPC_SERIALIZABLE,
-                    new Invocation(method, args, clientProtocolVersion), this.remoteId);
+            try {
+                value = (ObjectWritable) client.call(RPC.RpcKind.RPC_SERIALIZABLE,
+                        new Invocation(method, args, clientProtocolVersion), remoteId,
+                        methodMetrics);
+            } catch (IOException e) {
+                methodMetrics.recordCall(startTime, false);
+                throw e;
+            }
+            methodMetrics.recordCall(startTime, true);
             if (LOG.isDebugEnabled()) {
-                long callTime = System.currentTimeMillis() - startTime;
+                long callTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
                 LOG.debug("Call " + method.getName() + " " + callTime);
             }
             return value.get();
         }
 
         @Override
-        public void close() throws IOException {
-            client.stop();
+        public synchronized void close() throws IOException {
+            if (!isClosed) {
+                isClosed = true;
+                RPC.CLIENTS.stopClient(client);
+            }
         }
     }
 
@@ -165,4 +316,142 @@ public class SerializableRpcEngine implements RpcEngine {
         final Invoker invoker = new Invoker(protocol, address, conf, factory, rpcTimeOut);
         return (T) Proxy.newProxyInstance(protocol.getClassLoader(), new Class[]{protocol}, invoker);
     }
+
+    @Override
+    public RPC.Server getServer(Class<?> protocol, Object protocolImpl, String bindAddress,
+                                int port, int numHandlers, int numReaders,
+                                int queueSizePerHandler, Configuration conf) throws IOException {
+        return new Server(protocol, protocolImpl, conf, bindAddress, port, numHandlers,
+                numReaders, queueSizePerHandler);
+    }
+
+    /**
+     * Serializable 协议的服务端，协议的实现为实现了协议接口的对象
+     */
+    public static class Server extends RPC.Server {
+        public Server(Class<?> protocolClass, Object protocolImpl, Configuration conf,
+                      String bindAddress, int port, int numHandlers, int numReaders,
+                      int queueSizePerHandler) throws IOException {
+            super(bindAddress, port, numHandlers, numReaders, queueSizePerHandler, conf,
+                    protocolImpl.getClass().getName());
+            registerProtocolAndImpl(RPC.RpcKind.RPC_SERIALIZABLE, protocolClass, protocolImpl);
+        }
+
+        /**
+         * 服务端的一个方法，注册时解析
+         */
+        static class ServerMethod {
+            final Class<?>[] parameterTypes;
+            final Class<?> returnType;
+            /**
+             * 绑定了协议实现的 MethodHandle，类型为 (Object[])Object，
+             * 参数数组展开后调用，不经过 Method.invoke
+             */
+            final MethodHandle handle;
+
+            ServerMethod(Method method, Object protocolImpl) {
+                // 协议实现可以只实现方法所在的接口，如 ManagerProtocol 而不是其子接口
+                if (!method.getDeclaringClass().isInstance(protocolImpl)) {
+                    throw new IllegalArgumentException(protocolImpl.getClass().getName() +
+                            " does not implement " + method.getDeclaringClass().getName());
+                }
+                this.parameterTypes = method.getParameterTypes();
+                this.returnType = method.getReturnType();
+                method.setAccessible(true);
+                try {
+                    this.handle = MethodHandles.lookup().unreflect(method)
+                            .bindTo(protocolImpl)
+                            .asSpreader(Object[].class, parameterTypes.length)
+                            .asType(MethodType.methodType(Object.class, Object[].class));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalArgumentException("Cannot access method " + method, e);
+                }
+            }
+        }
+
+        /**
+         * 协议的方法表，方法名 -> 同名的方法（重载）
+         */
+        static class ServerMethodTable {
+            final Map<String, ServerMethod[]> methodsByName;
+
+            ServerMethodTable(Class<?> protocolClass, Object protocolImpl) {
+                Map<String, List<ServerMethod>> methods = new HashMap<>();
+                for (Method method : protocolClass.getMethods()) {
+                    List<ServerMethod> overloads = methods.get(method.getName());
+                    if (overloads == null) {
+                        overloads = new ArrayList<>(1);
+                        methods.put(method.getName(), overloads);
+                    }
+                    overloads.add(new ServerMethod(method, protocolImpl));
+                }
+                this.methodsByName = new HashMap<>(methods.size() * 2);
+                for (Map.Entry<String, List<ServerMethod>> entry : methods.entrySet()) {
+                    methodsByName.put(entry.getKey(),
+                            entry.getValue().toArray(new ServerMethod[entry.getValue().size()]));
+                }
+            }
+
+            ServerMethod get(String methodName, Class<?>[] parameterTypes) {
+                ServerMethod[] overloads = methodsByName.get(methodName);
+                if (overloads != null) {
+                    for (ServerMethod method : overloads) {
+                        if (Arrays.equals(method.parameterTypes, parameterTypes)) {
+                            return method;
+                        }
+                    }
+                }
+                return null;
+            }
+        }
+
+        static class SerializableRpcInvoker implements RPC.RpcInvoker {
+            @Override
+            public Object buildMethodTable(Class<?> protocolClass, Object protocolImpl) {
+                return new ServerMethodTable(protocolClass, protocolImpl);
+            }
+
+            /**
+             * 根据 Invocation 中的协议名、版本号找到方法表，再根据方法名和参数类型查表找到方法并调用
+             */
+            @Override
+            public Writable call(RPC.Server server, String connectionProtocolName,
+                                 Writable rpcRequest, long receiveTime) throws Exception {
+                Invocation call = (Invocation) rpcRequest;
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Call: " + call + " connectionProtocolName=" +
+                            connectionProtocolName);
+                }
+
+                RPC.ProtoClassProtoImpl protocolImpl = server.getProtocolImpl(
+                        RPC.RpcKind.RPC_SERIALIZABLE, call.getDeclaringClassProtocolName(),
+                        call.getClientVersion());
+                ServerMethod method = ((ServerMethodTable) protocolImpl.methodTable)
+                        .get(call.getMethodName(), call.getParameterClasses());
+                if (method == null) {
+                    throw new IOException("Unknown method " + call.getMethodName() +
+                            " called on " + call.getDeclaringClassProtocolName() + " protocol.");
+                }
+
+                long startTime = System.currentTimeMillis();
+                Object value;
+                try {
+                    value = (Object) method.handle.invokeExact(call.getParameters());
+                } catch (IOException e) {
+                    throw e;
+                } catch (Throwable target) {
+                    // 实现中抛出的其他异常
+                    IOException ioe = new IOException(target.toString());
+                    ioe.setStackTrace(target.getStackTrace());
+                    throw ioe;
+                }
+                if (LOG.isDebugEnabled()) {
+                    long processingTime = System.currentTimeMillis() - startTime;
+                    LOG.debug("Served: " + call.getMethodName() + " queueTime= " +
+                            (startTime - receiveTime) + " procesingTime= " + processingTime);
+                }
+                return new ObjectWritable(method.returnType, value);
+            }
+        }
+    }
 }
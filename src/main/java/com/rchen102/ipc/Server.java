@@ -0,0 +1,1332 @@
+package com.rchen102.ipc;
+
+import com.google.protobuf.CodedOutputStream;
+import com.rchen102.conf.CommonConfigurationKeysPublic;
+import com.rchen102.conf.Configuration;
+import com.rchen102.io.DataOutputBuffer;
+import com.rchen102.io.IOUtils;
+import com.rchen102.io.Writable;
+import com.rchen102.io.compress.Codec;
+import com.rchen102.io.compress.CodecFactory;
+import com.rchen102.ipc.protobuf.IpcConnectionContextProtos.IpcConnectionContextProto;
+import com.rchen102.ipc.protobuf.RpcHeaderProtos.RpcRequestHeaderProto;
+import com.rchen102.ipc.protobuf.RpcHeaderProtos.RpcResponseHeaderProto;
+import com.rchen102.ipc.protobuf.RpcHeaderProtos.RpcResponseHeaderProto.RpcStatusProto;
+import com.rchen102.util.ProtoUtil;
+import com.rchen102.util.ReflectionUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RPC 服务端
+ *
+ * 线程模型（multi-reactor）：
+ * 1. Listener：一个线程，负责 accept 新连接，并将连接轮流分配给 Reader
+ * 2. Reader：N 个线程，每个 Reader 使用一个 selector 读取分配给它的所有连接，
+ *    按照 RpcHeader.proto 中的格式解析请求，构造 Call 放入 callQueue
+ * 3. Handler：M 个线程，从 callQueue 中取出 Call，调用 {@link #call} 执行，并构造响应
+ * 4. Responder：一个线程，负责发送 Handler 没能一次写完的响应
+ *
+ * 连接不占用单独的线程，因此可以同时维持大量的客户端连接
+ * callQueue 有界，队列满时 Reader 阻塞，不再读取新的请求（反压）
+ */
+public abstract class Server {
+    public static final Log LOG = LogFactory.getLog(Server.class);
+
+    /**
+     * 读写 channel 时每次最多处理的字节数
+     * JDK 会为堆内的 ByteBuffer 分配同样大小的临时 direct buffer，限制大小可以避免占用过多的直接内存
+     */
+    private static final int NIO_BUFFER_LIMIT = 8 * 1024;
+
+    /** Handler 构造响应时使用的缓冲区的初始大小，超过最大值后不再复用 */
+    private static final int INITIAL_RESP_BUF_SIZE = 10240;
+    private static final int MAX_RESP_BUF_SIZE = 1024 * 1024;
+
+    /**
+     * 每种 RpcKind 对应的请求类型和 RpcInvoker
+     * 由各个 RpcEngine 在类初始化时注册，见 {@link #registerProtocolEngine}
+     */
+    static class RpcKindMapValue {
+        final Class<? extends Writable> rpcRequestWrapperClass;
+        final RPC.RpcInvoker rpcInvoker;
+
+        RpcKindMapValue(Class<? extends Writable> rpcRequestWrapperClass,
+                        RPC.RpcInvoker rpcInvoker) {
+            this.rpcRequestWrapperClass = rpcRequestWrapperClass;
+            this.rpcInvoker = rpcInvoker;
+        }
+    }
+
+    private static final Map<RPC.RpcKind, RpcKindMapValue> rpcKindMap =
+            new ConcurrentHashMap<>(4);
+
+    /**
+     * 注册 RpcEngine
+     * @param rpcKind RPC 类型
+     * @param rpcRequestWrapperClass 请求的类型，用于反序列化请求
+     * @param rpcInvoker 执行请求
+     */
+    public static void registerProtocolEngine(RPC.RpcKind rpcKind,
+                                              Class<? extends Writable> rpcRequestWrapperClass,
+                                              RPC.RpcInvoker rpcInvoker) {
+        RpcKindMapValue old = rpcKindMap.put(rpcKind,
+                new RpcKindMapValue(rpcRequestWrapperClass, rpcInvoker));
+        if (old != null) {
+            rpcKindMap.put(rpcKind, old);
+            throw new IllegalArgumentException("ReRegistration of rpcKind: " + rpcKind);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("rpcKind=" + rpcKind + ", rpcRequestWrapperClass=" +
+                    rpcRequestWrapperClass + ", rpcInvoker=" + rpcInvoker);
+        }
+    }
+
+    public static Class<? extends Writable> getRpcRequestWrapper(RPC.RpcKind rpcKind) {
+        RpcKindMapValue val = rpcKind == null ? null : rpcKindMap.get(rpcKind);
+        return val == null ? null : val.rpcRequestWrapperClass;
+    }
+
+    public static RPC.RpcInvoker getRpcInvoker(RPC.RpcKind rpcKind) {
+        RpcKindMapValue val = rpcKind == null ? null : rpcKindMap.get(rpcKind);
+        return val == null ? null : val.rpcInvoker;
+    }
+
+    private final String bindAddress;
+    private int port;
+    private final String serverName;
+    private final int handlerCount;
+    private final int readThreads;
+    private final int maxDataLength;
+    private final boolean tcpNoDelay;
+    private final int maxConnections;
+    /** 连接空闲（没有未完成的调用）超过该时间后关闭，<= 0 时不关闭空闲连接 */
+    private final int maxIdleTime;
+    /** 服务端支持的压缩 codec，客户端在连接上下文中选择 */
+    private final CodecFactory codecFactory;
+    /** 响应值超过该字节数时才压缩，见 IPC_COMPRESSION_THRESHOLD_KEY */
+    private final int compressionThreshold;
+    /** 响应值超过该字节数时拆分为多个 frame，见 IPC_STREAM_CHUNK_SIZE_KEY */
+    private final int streamChunkSize;
+    protected final Configuration conf;
+
+    private volatile boolean running = true;
+    private final BlockingQueue<Call> callQueue;
+
+    /** Handler 线程当前正在执行的调用 */
+    private static final ThreadLocal<Call> CurCall = new ThreadLocal<>();
+
+    /**
+     * 获取当前 Handler 线程正在执行的调用在连接上绑定的协议版本
+     * 供 RpcInvoker 在请求本身没有携带协议版本时使用
+     * @return 协议版本，没有绑定或者不在 Handler 线程中调用时返回 -1
+     */
+    public static long getCurProtocolVersion() {
+        Call call = CurCall.get();
+        return call == null ? -1 : call.protocolVersion;
+    }
+    private final Set<Connection> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+
+    private Listener listener;
+    private Responder responder;
+    private Handler[] handlers;
+
+    /**
+     * 构造时即绑定端口，port 为 0 时使用临时端口，实际端口见 {@link #getListenerAddress()}
+     * @param bindAddress 绑定的地址
+     * @param port 绑定的端口
+     * @param handlerCount Handler 线程数
+     * @param numReaders Reader 线程数，-1 表示使用配置
+     * @param queueSizePerHandler 每个 Handler 对应的调用队列长度，-1 表示使用配置
+     * @param serverName 服务名，用于线程名
+     */
+    protected Server(String bindAddress, int port, int handlerCount, int numReaders,
+                     int queueSizePerHandler, Configuration conf, String serverName)
+            throws IOException {
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.conf = conf;
+        this.serverName = serverName;
+        this.handlerCount = handlerCount;
+        if (queueSizePerHandler == -1) {
+            queueSizePerHandler = conf.getInt(
+                    CommonConfigurationKeysPublic.IPC_SERVER_HANDLER_QUEUE_SIZE_KEY,
+                    CommonConfigurationKeysPublic.IPC_SERVER_HANDLER_QUEUE_SIZE_DEFAULT);
+        }
+        this.callQueue = new LinkedBlockingQueue<>(handlerCount * queueSizePerHandler);
+        if (numReaders == -1) {
+            numReaders = conf.getInt(
+                    CommonConfigurationKeysPublic.IPC_SERVER_RPC_READ_THREADS_KEY,
+                    CommonConfigurationKeysPublic.IPC_SERVER_RPC_READ_THREADS_DEFAULT);
+        }
+        this.readThreads = numReaders;
+        this.maxDataLength = conf.getInt(CommonConfigurationKeysPublic.IPC_MAXIMUM_DATA_LENGTH,
+                CommonConfigurationKeysPublic.IPC_MAXIMUM_DATA_LENGTH_DEFAULT);
+        this.tcpNoDelay = conf.getBoolean(CommonConfigurationKeysPublic.IPC_SERVER_TCPNODELAY_KEY,
+                CommonConfigurationKeysPublic.IPC_SERVER_TCPNODELAY_DEFAULT);
+        this.maxConnections = conf.getInt(CommonConfigurationKeysPublic.IPC_SERVER_MAX_CONNECTIONS_KEY,
+                CommonConfigurationKeysPublic.IPC_SERVER_MAX_CONNECTIONS_DEFAULT);
+        // 与 Hadoop 相同，取客户端最大空闲时间的两倍，一般由客户端先关闭空闲连接；
+        // 客户端配置为 <= 0 时不关闭空闲连接，服务端也保持连接
+        int clientMaxIdleTime = conf.getInt(
+                CommonConfigurationKeysPublic.IPC_CLIENT_CONNECTION_MAXIDLETIME_KEY,
+                CommonConfigurationKeysPublic.IPC_CLIENT_CONNECTION_MAXIDLETIME_DEFAULT);
+        this.maxIdleTime = clientMaxIdleTime > 0 ? 2 * clientMaxIdleTime : 0;
+        this.codecFactory = new CodecFactory(conf);
+        this.compressionThreshold = conf.getInt(
+                CommonConfigurationKeysPublic.IPC_COMPRESSION_THRESHOLD_KEY,
+                CommonConfigurationKeysPublic.IPC_COMPRESSION_THRESHOLD_DEFAULT);
+        this.streamChunkSize = conf.getInt(CommonConfigurationKeysPublic.IPC_STREAM_CHUNK_SIZE_KEY,
+                CommonConfigurationKeysPublic.IPC_STREAM_CHUNK_SIZE_DEFAULT);
+
+        this.listener = new Listener();
+        this.port = listener.getAddress().getPort();
+        this.responder = new Responder();
+    }
+
+    /**
+     * 执行一次调用，由 Handler 线程调用
+     * @param rpcKind RPC 类型
+     * @param protocol 请求在连接上绑定的协议名
+     * @param param 反序列化后的请求
+     * @param receiveTime 收到请求的时间
+     * @return 响应
+     */
+    public abstract Writable call(RPC.RpcKind rpcKind, String protocol,
+                                  Writable param, long receiveTime) throws Exception;
+
+    /**
+     * 服务端收到的一次调用
+     */
+    static class Call {
+        private final int callId;
+        private final int retryCount;
+        /** 反序列化后的请求，发生致命错误时为 null */
+        private final Writable rpcRequest;
+        private final Connection connection;
+        private final RPC.RpcKind rpcKind;
+        /** 请求在连接上绑定的协议名和协议版本，没有时分别为 null 和 -1 */
+        private final String protocolName;
+        private final long protocolVersion;
+        /** 收到请求的时间 */
+        private final long timestamp;
+        /** 序列化后的响应，包括长度前缀；响应分为多个 frame 时为正在写出的 frame */
+        private ByteBuffer rpcResponse;
+        /** 响应分为多个 frame 时，rpcResponse 之后还没有写出的 frame，见 setupResponse */
+        private LinkedList<ByteBuffer> moreResponse;
+
+        Call(int callId, int retryCount, Writable rpcRequest, Connection connection,
+             RPC.RpcKind rpcKind) {
+            this(callId, retryCount, rpcRequest, connection, rpcKind, null, -1);
+        }
+
+        Call(int callId, int retryCount, Writable rpcRequest, Connection connection,
+             RPC.RpcKind rpcKind, String protocolName, long protocolVersion) {
+            this.callId = callId;
+            this.retryCount = retryCount;
+            this.rpcRequest = rpcRequest;
+            this.connection = connection;
+            this.rpcKind = rpcKind;
+            this.protocolName = protocolName;
+            this.protocolVersion = protocolVersion;
+            this.timestamp = System.currentTimeMillis();
+        }
+
+        @Override
+        public String toString() {
+            return rpcRequest + " from " + connection + " Call#" + callId +
+                    " Retry#" + retryCount;
+        }
+    }
+
+    /**
+     * 连接上绑定的一个协议，见 IpcConnectionContextProto 的 protocolId
+     */
+    private static class ProtocolBinding {
+        final String protocolName;
+        /** 没有绑定协议版本时为 -1 */
+        final long protocolVersion;
+
+        ProtocolBinding(String protocolName, long protocolVersion) {
+            this.protocolName = protocolName;
+            this.protocolVersion = protocolVersion;
+        }
+    }
+
+    /**
+     * 连接头或请求格式错误，向客户端返回 FATAL 响应后关闭连接
+     */
+    static class FatalRpcServerException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FatalRpcServerException(String msg) {
+            super(msg);
+        }
+    }
+
+    /**
+     * 监听端口，接受新连接，并将连接轮流分配给 Reader
+     * 同时定期关闭空闲的连接
+     */
+    private class Listener extends Thread {
+        private final ServerSocketChannel acceptChannel;
+        private final Selector selector;
+        private final Reader[] readers;
+        private int currentReader = 0;
+        private final InetSocketAddress address;
+        private long lastCleanupRunTime = 0;
+
+        Listener() throws IOException {
+            int backlogLength = conf.getInt(
+                    CommonConfigurationKeysPublic.IPC_SERVER_LISTEN_QUEUE_SIZE_KEY,
+                    CommonConfigurationKeysPublic.IPC_SERVER_LISTEN_QUEUE_SIZE_DEFAULT);
+            acceptChannel = ServerSocketChannel.open();
+            acceptChannel.configureBlocking(false);
+            acceptChannel.socket().setReuseAddress(true);
+            acceptChannel.socket().bind(new InetSocketAddress(bindAddress, port), backlogLength);
+            address = (InetSocketAddress) acceptChannel.socket().getLocalSocketAddress();
+            selector = Selector.open();
+
+            readers = new Reader[readThreads];
+            for (int i = 0; i < readThreads; i++) {
+                readers[i] = new Reader("Socket Reader #" + (i + 1) + " for port " +
+                        address.getPort());
+            }
+
+            acceptChannel.register(selector, SelectionKey.OP_ACCEPT);
+            setName("IPC Server listener on " + address.getPort());
+            setDaemon(true);
+        }
+
+        InetSocketAddress getAddress() {
+            return address;
+        }
+
+        @Override
+        public void run() {
+            LOG.info(getName() + ": starting");
+            for (Reader reader : readers) {
+                reader.start();
+            }
+            while (running) {
+                try {
+                    selector.select(maxIdleTime > 0 ? Math.max(maxIdleTime / 2, 1000) : 1000);
+                    Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        if (key.isValid() && key.isAcceptable()) {
+                            doAccept(key);
+                        }
+                    }
+                    cleanupIdleConnections();
+                } catch (OutOfMemoryError e) {
+                    // 连接过多时可能内存不足，稍等一会儿让 GC 回收
+                    LOG.warn("Out of Memory in server select", e);
+                    try {
+                        Thread.sleep(60000);
+                    } catch (InterruptedException ie) {
+                        // 服务端正在关闭
+                    }
+                } catch (Exception e) {
+                    if (running) {
+                        LOG.warn(getName() + " caught an exception", e);
+                    }
+                }
+            }
+            LOG.info("Stopping " + getName());
+
+            IOUtils.cleanup(LOG, acceptChannel, selector);
+            for (Reader reader : readers) {
+                reader.shutdown();
+            }
+            for (Connection c : connections) {
+                closeConnection(c);
+            }
+        }
+
+        private void doAccept(SelectionKey key) throws IOException {
+            ServerSocketChannel server = (ServerSocketChannel) key.channel();
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                if (maxConnections > 0 && connections.size() >= maxConnections) {
+                    LOG.warn("Connection from " + channel.socket().getRemoteSocketAddress() +
+                            " rejected, " + connections.size() + " connections already open");
+                    IOUtils.cleanup(LOG, channel);
+                    continue;
+                }
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(tcpNoDelay);
+                channel.socket().setKeepAlive(true);
+
+                Connection c = new Connection(channel, System.currentTimeMillis());
+                connections.add(c);
+                getReader().addConnection(c);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Server connection from " + c + "; # active connections: " +
+                            connections.size());
+                }
+            }
+        }
+
+        private Reader getReader() {
+            currentReader = (currentReader + 1) % readers.length;
+            return readers[currentReader];
+        }
+
+        /**
+         * 关闭空闲时间超过 maxIdleTime 且没有未完成调用的连接
+         */
+        private void cleanupIdleConnections() {
+            if (maxIdleTime <= 0) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastCleanupRunTime < maxIdleTime / 2) {
+                return;
+            }
+            lastCleanupRunTime = now;
+            for (Connection c : connections) {
+                if (c.isIdle() && now - c.getLastContact() > maxIdleTime) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug(getName() + ": disconnecting idle client " + c);
+                    }
+                    closeConnection(c);
+                }
+            }
+        }
+
+        void doStop() {
+            selector.wakeup();
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 读取连接上的请求，每个 Reader 使用一个 selector
+     */
+    private class Reader extends Thread {
+        /** Listener 新分配的连接，由 Reader 线程自己注册到 selector 上，避免 register 与 select 竞争 */
+        private final Queue<Connection> pendingConnections = new ConcurrentLinkedQueue<>();
+        private final Selector readSelector;
+
+        Reader(String name) throws IOException {
+            super(name);
+            this.readSelector = Selector.open();
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            LOG.info("Starting " + getName());
+            try {
+                doRunLoop();
+            } finally {
+                IOUtils.cleanup(LOG, readSelector);
+            }
+        }
+
+        private void doRunLoop() {
+            while (running) {
+                try {
+                    Connection c;
+                    while ((c = pendingConnections.poll()) != null) {
+                        try {
+                            c.channel.register(readSelector, SelectionKey.OP_READ, c);
+                        } catch (ClosedChannelException e) {
+                            closeConnection(c);
+                        }
+                    }
+                    readSelector.select();
+
+                    Iterator<SelectionKey> iter = readSelector.selectedKeys().iterator();
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            doRead(key);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    if (running) {
+                        LOG.info(getName() + " unexpectedly interrupted", e);
+                    }
+                } catch (CancelledKeyException e) {
+                    // 连接已被关闭
+                } catch (IOException e) {
+                    LOG.error("Error in Reader", e);
+                }
+            }
+        }
+
+        private void doRead(SelectionKey key) throws InterruptedException {
+            Connection c = (Connection) key.attachment();
+            if (c == null) {
+                return;
+            }
+            c.setLastContact(System.currentTimeMillis());
+
+            int count;
+            try {
+                count = c.readAndProcess();
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(getName() + ": readAndProcess from client " + c +
+                            " threw exception [" + e + "]", e);
+                }
+                count = -1;
+            }
+            if (count < 0) {
+                closeConnection(c);
+            } else {
+                c.setLastContact(System.currentTimeMillis());
+            }
+        }
+
+        void addConnection(Connection c) {
+            pendingConnections.add(c);
+            readSelector.wakeup();
+        }
+
+        void shutdown() {
+            readSelector.wakeup();
+            interrupt();
+        }
+    }
+
+    /**
+     * 发送响应
+     * 响应由 Handler 线程直接写入 channel（见 {@link #doRespond}），
+     * 只有 socket 发送缓冲区已满、没能一次写完时，才注册到 Responder 的 selector 上，由 Responder 线程继续写
+     */
+    private class Responder extends Thread {
+        private final Selector writeSelector;
+        /** 正在注册到 writeSelector 上的连接数 */
+        private int pending;
+
+        Responder() throws IOException {
+            setName("IPC Server Responder");
+            setDaemon(true);
+            writeSelector = Selector.open();
+            pending = 0;
+        }
+
+        @Override
+        public void run() {
+            LOG.info(getName() + ": starting");
+            try {
+                while (running) {
+                    try {
+                        waitPending();
+                        writeSelector.select();
+                        Iterator<SelectionKey> iter = writeSelector.selectedKeys().iterator();
+                        while (iter.hasNext()) {
+                            SelectionKey key = iter.next();
+                            iter.remove();
+                            try {
+                                if (key.isValid() && key.isWritable()) {
+                                    doAsyncWrite(key);
+                                }
+                            } catch (CancelledKeyException e) {
+                                // 连接已被关闭
+                            } catch (IOException e) {
+                                LOG.info(getName() + ": doAsyncWrite threw exception " + e);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        if (running) {
+                            LOG.info(getName() + " unexpectedly interrupted", e);
+                        }
+                    } catch (Exception e) {
+                        LOG.warn("Exception in Responder", e);
+                    }
+                }
+            } finally {
+                LOG.info("Stopping " + getName());
+                IOUtils.cleanup(LOG, writeSelector);
+            }
+        }
+
+        private void doAsyncWrite(SelectionKey key) throws IOException {
+            Connection c = (Connection) key.attachment();
+            if (c == null) {
+                return;
+            }
+            synchronized (c.responseQueue) {
+                if (processResponse(c, false)) {
+                    // 响应已经全部写完，不再关注可写事件
+                    key.interestOps(0);
+                }
+            }
+        }
+
+        /**
+         * 尽可能多地写出连接上排队的响应，调用者需要持有 responseQueue 的锁
+         * @param inHandler 是否在 Handler 线程中调用
+         * @return 响应是否全部写完
+         */
+        private boolean processResponse(Connection c, boolean inHandler) throws IOException {
+            boolean error = true;
+            boolean done = false;
+            Call call = null;
+            try {
+                while (true) {
+                    call = c.responseQueue.peekFirst();
+                    if (call == null) {
+                        done = true;
+                        break;
+                    }
+                    channelWrite(c.channel, call.rpcResponse);
+                    if (call.rpcResponse.hasRemaining()) {
+                        // socket 发送缓冲区已满，由 Responder 线程继续写
+                        if (inHandler) {
+                            incPending();
+                            try {
+                                writeSelector.wakeup();
+                                c.channel.register(writeSelector, SelectionKey.OP_WRITE, c);
+                            } catch (ClosedChannelException e) {
+                                done = true;
+                            } finally {
+                                decPending();
+                            }
+                        }
+                        break;
+                    }
+                    c.responseQueue.removeFirst();
+                    if (call.moreResponse != null && !call.moreResponse.isEmpty()) {
+                        // 分为多个 frame 的响应每次只写一个 frame，然后排到队尾，
+                        // 同一连接上的其他响应不必等待整个响应写完
+                        call.rpcResponse = call.moreResponse.removeFirst();
+                        c.responseQueue.addLast(call);
+                        continue;
+                    }
+                    call.rpcResponse = null;
+                    call.moreResponse = null;
+                    if (call.rpcRequest != null) {
+                        c.decRpcCount();
+                    }
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug(getName() + ": responding to " + call);
+                    }
+                }
+                error = false;
+            } finally {
+                if (error) {
+                    LOG.warn(getName() + ", call " + call + ": output error");
+                    done = true;
+                    closeConnection(c);
+                }
+            }
+            return done;
+        }
+
+        /**
+         * 将响应加入连接的响应队列，队列中没有其他响应时直接在当前线程写出
+         */
+        void doRespond(Call call) throws IOException {
+            Connection c = call.connection;
+            synchronized (c.responseQueue) {
+                c.responseQueue.addLast(call);
+                if (c.responseQueue.size() == 1) {
+                    processResponse(c, true);
+                }
+            }
+        }
+
+        private synchronized void incPending() {
+            pending++;
+        }
+
+        private synchronized void decPending() {
+            pending--;
+            notify();
+        }
+
+        private synchronized void waitPending() throws InterruptedException {
+            while (pending > 0) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * 服务端的一个客户端连接
+     *
+     * 连接上的数据格式：
+     * 1. 连接头："mrpc" + version + service class + auth protocol，见 Client.Connection#writeConnectionHeader
+     * 2. 连接上下文：callId 为 CONNECTION_CONTEXT_CALL_ID 的请求，包含 IpcConnectionContextProto
+     * 3. 请求：4 字节长度 + 请求头 + 请求（Writable 序列化）
+     *    请求头在版本 >= VERSION_FIXED_HEADER 时为定长的 {@link RpcRequestHeader}，
+     *    否则为 delimited 的 RpcRequestHeaderProto；连接上下文也使用同样的请求头
+     *    版本 >= VERSION_STREAMING 时一个请求可以分为多个 frame，
+     *    前面的 frame 为 RPC_CONTINUATION_PACKET，最后一个为 RPC_FINAL_PACKET
+     */
+    public class Connection {
+        private final SocketChannel channel;
+        private final Socket socket;
+        private final String hostAddress;
+        private final int remotePort;
+
+        private boolean connectionHeaderRead = false;
+        private boolean connectionContextRead = false;
+        /** 先用于读取连接头的 "mrpc"，之后用于读取每个请求的长度 */
+        private final ByteBuffer dataLengthBuffer = ByteBuffer.allocate(4);
+        /** 连接头中 "mrpc" 之后的部分：version + service class + auth protocol */
+        private ByteBuffer connectionHeaderBuf = null;
+        private ByteBuffer data = null;
+
+        /** 等待发送的响应 */
+        private final LinkedList<Call> responseQueue = new LinkedList<>();
+        /** 未完成的调用数 */
+        private final AtomicInteger rpcCount = new AtomicInteger();
+        private volatile long lastContact;
+
+        private int serviceClass;
+        /** 连接头中的版本 */
+        private int version;
+        /** 连接上下文中的协议名 */
+        private String protocolName;
+        /** 连接上下文中的协议版本，没有绑定时为 -1 */
+        private long protocolVersion = -1;
+        /**
+         * 客户端在连接上下文中选择的压缩 codec，没有选择时为 null
+         * 由 Reader 线程在处理连接上下文时设置，之后 Handler 线程读取，
+         * 连接上下文之后的请求经过 callQueue 才到达 Handler，因此不需要 volatile
+         */
+        private Codec codec;
+        /**
+         * 连接上绑定的协议，下标为协议编号，编号 0 为第一个连接上下文中的协议
+         * 只由负责该连接的 Reader 线程访问
+         */
+        private final List<ProtocolBinding> protocols = new ArrayList<>();
+        /**
+         * 还没有收到最后一个 frame 的请求，key 为 callId
+         * 只由负责该连接的 Reader 线程访问
+         */
+        private final Map<Integer, DataOutputBuffer> partialRequests = new HashMap<>();
+        /** partialRequests 中的总字节数，不超过 maxDataLength */
+        private int partialRequestBytes;
+
+        Connection(SocketChannel channel, long lastContact) {
+            this.channel = channel;
+            this.socket = channel.socket();
+            this.lastContact = lastContact;
+            InetSocketAddress remote = (InetSocketAddress) socket.getRemoteSocketAddress();
+            this.hostAddress = remote == null ? "*Unknown*" : remote.getAddress().getHostAddress();
+            this.remotePort = remote == null ? 0 : remote.getPort();
+        }
+
+        @Override
+        public String toString() {
+            return hostAddress + ":" + remotePort;
+        }
+
+        public String getHostAddress() {
+            return hostAddress;
+        }
+
+        public String getProtocolName() {
+            return protocolName;
+        }
+
+        /**
+         * 连接上下文中绑定的协议版本（连接版本 >= 2）
+         * @return 协议版本，没有绑定时返回 -1
+         */
+        public long getProtocolVersion() {
+            return protocolVersion;
+        }
+
+        void setLastContact(long lastContact) {
+            this.lastContact = lastContact;
+        }
+
+        long getLastContact() {
+            return lastContact;
+        }
+
+        boolean isIdle() {
+            return rpcCount.get() == 0;
+        }
+
+        void incRpcCount() {
+            rpcCount.incrementAndGet();
+        }
+
+        void decRpcCount() {
+            rpcCount.decrementAndGet();
+        }
+
+        /**
+         * 读取 channel 中当前可读的数据，每读到一个完整的请求就处理一个
+         * @return 最后一次读取的字节数，小于 0 表示需要关闭连接
+         */
+        int readAndProcess() throws IOException, InterruptedException {
+            while (true) {
+                int count;
+                if (dataLengthBuffer.remaining() > 0) {
+                    count = channelRead(channel, dataLengthBuffer);
+                    if (count < 0 || dataLengthBuffer.remaining() > 0) {
+                        return count;
+                    }
+                }
+
+                if (!connectionHeaderRead) {
+                    if (connectionHeaderBuf == null) {
+                        connectionHeaderBuf = ByteBuffer.allocate(3);
+                    }
+                    count = channelRead(channel, connectionHeaderBuf);
+                    if (count < 0 || connectionHeaderBuf.remaining() > 0) {
+                        return count;
+                    }
+                    version = connectionHeaderBuf.get(0);
+                    serviceClass = connectionHeaderBuf.get(1) & 0xFF;
+                    int authProtocol = connectionHeaderBuf.get(2);
+                    dataLengthBuffer.flip();
+                    // 同时接受旧版本的客户端，请求头中携带的信息不同，见 RpcConstants
+                    if (!RpcConstants.HEADER.equals(dataLengthBuffer)) {
+                        LOG.warn("Incorrect header from " + this);
+                        return -1;
+                    }
+                    if (version < RpcConstants.VERSION_FULL_HEADER ||
+                            version > RpcConstants.CURRENT_VERSION) {
+                        LOG.warn("Version mismatch from " + this + " got version " + version +
+                                " expected version " + RpcConstants.VERSION_FULL_HEADER +
+                                " to " + RpcConstants.CURRENT_VERSION);
+                        return -1;
+                    }
+                    if (authProtocol != 0) {
+                        // 暂不支持授权协议
+                        LOG.warn("Unsupported auth protocol " + authProtocol + " from " + this);
+                        return -1;
+                    }
+                    dataLengthBuffer.clear();
+                    connectionHeaderBuf = null;
+                    connectionHeaderRead = true;
+                    continue;
+                }
+
+                if (data == null) {
+                    dataLengthBuffer.flip();
+                    int dataLength = dataLengthBuffer.getInt();
+                    if (dataLength < 0 || dataLength > maxDataLength) {
+                        LOG.warn("Requested data length " + dataLength + " from " + this +
+                                " is invalid, max length is " + maxDataLength);
+                        return -1;
+                    }
+                    data = ByteBuffer.allocate(dataLength);
+                }
+
+                count = channelRead(channel, data);
+                if (data.remaining() > 0) {
+                    return count;
+                }
+                dataLengthBuffer.clear();
+                byte[] frame = data.array();
+                data = null;
+                processOneRpc(frame);
+                // 继续读取 socket 缓冲区中后续的请求
+            }
+        }
+
+        /**
+         * 处理一个完整的请求帧
+         */
+        private void processOneRpc(byte[] buf) throws IOException, InterruptedException {
+            int callId = -1;
+            int retryCount = RpcConstants.INVALID_RETRY_COUNT;
+            try {
+                DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buf));
+                RpcRequestHeader header;
+                if (version >= RpcConstants.VERSION_FIXED_HEADER) {
+                    if (buf.length < RpcRequestHeader.FIXED_LENGTH) {
+                        throw new FatalRpcServerException("Missing RPC request header");
+                    }
+                    header = RpcRequestHeader.readFrom(dis);
+                } else {
+                    RpcRequestHeaderProto headerProto = RpcRequestHeaderProto.parseDelimitedFrom(dis);
+                    if (headerProto == null) {
+                        throw new FatalRpcServerException("Missing RPC request header");
+                    }
+                    header = RpcRequestHeader.fromProto(headerProto);
+                }
+                callId = header.getCallId();
+                retryCount = header.getRetryCount();
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(" got #" + callId);
+                }
+                if (header.getRpcOp() == null) {
+                    // 无法判断是否为最后一个 frame，不能当作完整的请求处理
+                    LOG.warn("Unknown rpc op in rpc header #" + callId + " from client " + this);
+                    throw new FatalRpcServerException("Unknown rpc op in rpc header");
+                }
+                // 请求头之后的部分为 data[offset, end)
+                byte[] data = buf;
+                int offset = buf.length - dis.available();
+                int end = buf.length;
+                if (header.isCompressed()) {
+                    data = decompress(buf, offset);
+                    offset = 0;
+                    end = data.length;
+                }
+
+                if (header.getRpcOp() == RpcRequestHeaderProto.OperationProto.RPC_CONTINUATION_PACKET) {
+                    addPartialRequest(callId, data, offset, end - offset);
+                    return;
+                }
+                DataOutputBuffer partial = partialRequests.isEmpty() ? null :
+                        partialRequests.remove(callId);
+                if (partial != null) {
+                    // 最后一个 frame，拼接之前收到的部分
+                    partialRequestBytes -= partial.getLength();
+                    if (partial.getLength() + end - offset > maxDataLength) {
+                        throw new FatalRpcServerException("Request exceeds max data length " +
+                                maxDataLength);
+                    }
+                    partial.write(data, offset, end - offset);
+                    data = partial.getData();
+                    offset = 0;
+                    end = partial.getLength();
+                }
+                if (data != buf) {
+                    dis = new DataInputStream(new ByteArrayInputStream(data, offset, end - offset));
+                }
+
+                if (callId < 0) {
+                    if (callId == RpcConstants.CONNECTION_CONTEXT_CALL_ID) {
+                        processConnectionContext(dis);
+                    } else {
+                        throw new FatalRpcServerException("Unknown out of band call #" + callId);
+                    }
+                } else {
+                    if (!connectionContextRead) {
+                        throw new FatalRpcServerException("Connection context not established");
+                    }
+                    processRpcRequest(header, dis);
+                }
+            } catch (FatalRpcServerException e) {
+                Call call = new Call(callId, retryCount, null, this, null);
+                setupResponse(new DataOutputBuffer(), call, RpcStatusProto.FATAL, null,
+                        e.getClass().getName(), e.getMessage());
+                responder.doRespond(call);
+                throw e;
+            }
+        }
+
+        /**
+         * 保存请求的一个中间 frame（RPC_CONTINUATION_PACKET），收到最后一个 frame 时再一起处理
+         */
+        private void addPartialRequest(int callId, byte[] data, int offset, int length)
+                throws IOException {
+            if (version < RpcConstants.VERSION_STREAMING) {
+                throw new FatalRpcServerException("Continuation packet on version " + version +
+                        " connection");
+            }
+            if (callId < 0) {
+                throw new FatalRpcServerException("Continuation packet for out of band call #" +
+                        callId);
+            }
+            if (partialRequestBytes + length > maxDataLength) {
+                throw new FatalRpcServerException("Partial requests exceed max data length " +
+                        maxDataLength);
+            }
+            DataOutputBuffer partial = partialRequests.get(callId);
+            if (partial == null) {
+                partial = new DataOutputBuffer(length * 2);
+                partialRequests.put(callId, partial);
+            }
+            partial.write(data, offset, length);
+            partialRequestBytes += length;
+        }
+
+        /**
+         * 解压请求头之后的部分，格式见 {@link CodecFactory}
+         * @param offset 请求头之后的第一个字节
+         */
+        private byte[] decompress(byte[] buf, int offset) throws IOException {
+            if (codec == null) {
+                throw new FatalRpcServerException("Compressed request without codec");
+            }
+            try {
+                return CodecFactory.decompress(codec, buf, offset, buf.length - offset, maxDataLength);
+            } catch (IOException e) {
+                throw new FatalRpcServerException("Unable to decompress request: " + e.getMessage());
+            }
+        }
+
+        /**
+         * 处理连接上下文
+         * 第一个连接上下文绑定编号为 0 的协议；版本 >= 3 的连接可以继续发送连接上下文，
+         * 按顺序绑定新的协议编号，见 IpcConnectionContextProto
+         */
+        private void processConnectionContext(DataInputStream dis) throws IOException {
+            IpcConnectionContextProto connectionContext =
+                    IpcConnectionContextProto.parseDelimitedFrom(dis);
+            if (connectionContext == null) {
+                throw new FatalRpcServerException("Missing connection context");
+            }
+            if (connectionContextRead && (version < RpcConstants.VERSION_MULTIPLEXED ||
+                    !connectionContext.hasProtocolId())) {
+                throw new FatalRpcServerException("Connection context already processed");
+            }
+            int protocolId = connectionContext.hasProtocolId() ? connectionContext.getProtocolId() : 0;
+            if (protocolId != protocols.size()) {
+                throw new FatalRpcServerException("Unexpected protocol id " + protocolId +
+                        ", expected " + protocols.size());
+            }
+            String name = connectionContext.hasProtocol() ? connectionContext.getProtocol() : null;
+            long boundVersion = -1;
+            if (version >= RpcConstants.VERSION_BOUND_CONTEXT && connectionContext.hasProtocolVersion()) {
+                boundVersion = connectionContext.getProtocolVersion();
+            }
+            protocols.add(new ProtocolBinding(name, boundVersion));
+            if (!connectionContextRead) {
+                if (version >= RpcConstants.VERSION_COMPRESSION && connectionContext.hasCodec()) {
+                    codec = codecFactory.getCodec(connectionContext.getCodec());
+                    if (codec == null) {
+                        throw new FatalRpcServerException("Unsupported compression codec " +
+                                connectionContext.getCodec());
+                    }
+                }
+                protocolName = name;
+                protocolVersion = boundVersion;
+                connectionContextRead = true;
+            }
+        }
+
+        /**
+         * 反序列化请求，放入 callQueue
+         * callQueue 已满时阻塞，该 Reader 上的所有连接都暂停读取
+         */
+        private void processRpcRequest(RpcRequestHeader header, DataInputStream dis)
+                throws IOException, InterruptedException {
+            RPC.RpcKind rpcKind = header.getRpcKind() != null ?
+                    ProtoUtil.convertRpcKind(header.getRpcKind()) : null;
+            Class<? extends Writable> rpcRequestClass = getRpcRequestWrapper(rpcKind);
+            if (rpcRequestClass == null) {
+                LOG.warn("Unknown rpc kind " + header.getRpcKind() + " from client " + this);
+                throw new FatalRpcServerException("Unknown rpc kind in rpc header " +
+                        header.getRpcKind());
+            }
+
+            Writable rpcRequest;
+            try {
+                rpcRequest = ReflectionUtils.newInstance(rpcRequestClass);
+                rpcRequest.readFields(dis);
+            } catch (Throwable t) {
+                LOG.warn("Unable to read call parameters for client " + this +
+                        " on connection protocol " + protocolName + " for rpcKind " + rpcKind, t);
+                throw new FatalRpcServerException("IPC server unable to read call parameters: " +
+                        t.getMessage());
+            }
+
+            int protocolId = header.getProtocolId();
+            if (protocolId >= protocols.size()) {
+                throw new FatalRpcServerException("Unknown protocol id " + protocolId);
+            }
+            ProtocolBinding protocol = protocols.get(protocolId);
+            Call call = new Call(header.getCallId(), header.getRetryCount(), rpcRequest, this,
+                    rpcKind, protocol.protocolName, protocol.protocolVersion);
+            incRpcCount();
+            callQueue.put(call);
+        }
+
+        private void close() {
+            IOUtils.cleanup(null, channel);
+        }
+    }
+
+    /**
+     * 从 callQueue 中取出 Call 并执行
+     */
+    private class Handler extends Thread {
+        Handler(int instanceNumber) {
+            setDaemon(true);
+            setName("IPC Server handler " + instanceNumber + " on " + port);
+        }
+
+        @Override
+        public void run() {
+            LOG.debug(getName() + ": starting");
+            DataOutputBuffer buf = new DataOutputBuffer(INITIAL_RESP_BUF_SIZE);
+            while (running) {
+                try {
+                    Call call = callQueue.take();
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug(getName() + ": " + call + " for RpcKind " + call.rpcKind);
+                    }
+                    if (!call.connection.channel.isOpen()) {
+                        LOG.info(getName() + ": skipped " + call);
+                        continue;
+                    }
+
+                    RpcStatusProto status = RpcStatusProto.SUCCESS;
+                    Writable value = null;
+                    String errorClass = null;
+                    String error = null;
+                    CurCall.set(call);
+                    try {
+                        value = call(call.rpcKind, call.protocolName,
+                                call.rpcRequest, call.timestamp);
+                    } catch (Throwable e) {
+                        if (e instanceof UndeclaredThrowableException && e.getCause() != null) {
+                            e = e.getCause();
+                        }
+                        if (e instanceof IOException) {
+                            LOG.info(getName() + ", call " + call + ": error: " + e);
+                        } else {
+                            LOG.info(getName() + ", call " + call + ": error: " + e, e);
+                        }
+                        status = RpcStatusProto.ERROR;
+                        errorClass = e.getClass().getName();
+                        error = e.getMessage() == null ? e.toString() : e.getMessage();
+                    } finally {
+                        CurCall.set(null);
+                    }
+
+                    setupResponse(buf, call, status, value, errorClass, error);
+                    // 避免一直持有过大的缓冲区
+                    if (buf.getCapacity() > MAX_RESP_BUF_SIZE) {
+                        LOG.warn("Large response size " + buf.getLength() + " for call " + call);
+                        buf = new DataOutputBuffer(INITIAL_RESP_BUF_SIZE);
+                    }
+                    responder.doRespond(call);
+                } catch (InterruptedException e) {
+                    if (running) {
+                        LOG.info(getName() + " unexpectedly interrupted", e);
+                    }
+                } catch (Exception e) {
+                    LOG.info(getName() + " caught an exception", e);
+                }
+            }
+            LOG.debug(getName() + ": exiting");
+        }
+    }
+
+    /**
+     * 构造响应，格式见 RpcHeader.proto 中的 RpcResponseHeaderProto
+     * 连接版本 >= VERSION_STREAMING 且响应值超过 streamChunkSize 时，响应值拆分为多个 frame，
+     * 除最后一个之外的 frame 在响应头中标记 continuation
+     * 连接协商了 codec 时，每个 frame 的响应值超过阈值且压缩后变小才压缩
+     * @param responseBuf 序列化响应值使用的缓冲区，响应会拷贝出来，缓冲区可以复用
+     */
+    private void setupResponse(DataOutputBuffer responseBuf, Call call, RpcStatusProto status,
+                               Writable rv, String errorClass, String error) throws IOException {
+        responseBuf.reset();
+        RpcResponseHeaderProto.Builder headerBuilder = RpcResponseHeaderProto.newBuilder()
+                .setCallId(call.callId)
+                .setStatus(status)
+                .setRetryCount(call.retryCount);
+        if (status != RpcStatusProto.SUCCESS) {
+            headerBuilder.setExceptionClassName(errorClass);
+            headerBuilder.setErrorMsg(error);
+        } else if (rv != null) {
+            rv.write(responseBuf);
+        }
+
+        int length = responseBuf.getLength();
+        int chunkSize = length;
+        if (streamChunkSize > 0 && length > streamChunkSize &&
+                call.connection.version >= RpcConstants.VERSION_STREAMING) {
+            chunkSize = streamChunkSize;
+        }
+        int offset = 0;
+        do {
+            int n = Math.min(chunkSize, length - offset);
+            ByteBuffer frame = setupResponseFrame(headerBuilder, call.connection.codec,
+                    responseBuf.getData(), offset, n, offset + n < length);
+            if (offset == 0) {
+                call.rpcResponse = frame;
+            } else {
+                if (call.moreResponse == null) {
+                    call.moreResponse = new LinkedList<>();
+                }
+                call.moreResponse.add(frame);
+            }
+            offset += n;
+        } while (offset < length);
+    }
+
+    /**
+     * 构造一个响应 frame：4 字节长度 + 响应头 + value[offset, offset + length)
+     * @param codec 连接协商的 codec，没有时为 null
+     * @param continuation 是否还有后续的 frame
+     */
+    private ByteBuffer setupResponseFrame(RpcResponseHeaderProto.Builder headerBuilder, Codec codec,
+                                          byte[] value, int offset, int length,
+                                          boolean continuation) throws IOException {
+        boolean compressed = false;
+        if (codec != null && length > compressionThreshold) {
+            DataOutputBuffer compressedBuf = new DataOutputBuffer(length / 2 + 4);
+            if (CodecFactory.compress(codec, value, offset, length, compressedBuf)) {
+                value = compressedBuf.getData();
+                offset = 0;
+                length = compressedBuf.getLength();
+                compressed = true;
+            }
+        }
+        if (compressed) {
+            headerBuilder.setCompressed(true);
+        } else {
+            headerBuilder.clearCompressed();
+        }
+        if (continuation) {
+            headerBuilder.setContinuation(true);
+        } else {
+            headerBuilder.clearContinuation();
+        }
+        RpcResponseHeaderProto header = headerBuilder.build();
+        int headerLen = header.getSerializedSize();
+        int frameLen = CodedOutputStream.computeRawVarint32Size(headerLen) + headerLen + length;
+        DataOutputBuffer frame = new DataOutputBuffer(4 + frameLen);
+        frame.writeInt(frameLen);
+        header.writeDelimitedTo(frame);
+        frame.write(value, offset, length);
+        return ByteBuffer.wrap(frame.getData(), 0, frame.getLength());
+    }
+
+    private void closeConnection(Connection connection) {
+        if (connections.remove(connection)) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(getName() + ": disconnecting client " + connection +
+                        ". Number of active connections: " + connections.size());
+            }
+            connection.close();
+        }
+    }
+
+    private String getName() {
+        return serverName + " on " + port;
+    }
+
+    /**
+     * 启动服务
+     */
+    public synchronized void start() {
+        responder.start();
+        listener.start();
+        handlers = new Handler[handlerCount];
+        for (int i = 0; i < handlerCount; i++) {
+            handlers[i] = new Handler(i);
+            handlers[i].start();
+        }
+    }
+
+    /**
+     * 停止服务，关闭所有连接
+     */
+    public synchronized void stop() {
+        LOG.info("Stopping server on " + port);
+        running = false;
+        if (handlers != null) {
+            for (Handler handler : handlers) {
+                if (handler != null) {
+                    handler.interrupt();
+                }
+            }
+        }
+        listener.interrupt();
+        listener.doStop();
+        responder.interrupt();
+        notifyAll();
+    }
+
+    /**
+     * 等待服务停止
+     */
+    public synchronized void join() throws InterruptedException {
+        while (running) {
+            wait();
+        }
+    }
+
+    /**
+     * @return 服务端实际监听的地址
+     */
+    public synchronized InetSocketAddress getListenerAddress() {
+        return listener.getAddress();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getNumOpenConnections() {
+        return connections.size();
+    }
+
+    public int getCallQueueLen() {
+        return callQueue.size();
+    }
+
+    private static int channelWrite(WritableByteChannel channel, ByteBuffer buffer)
+            throws IOException {
+        return buffer.remaining() <= NIO_BUFFER_LIMIT ?
+                channel.write(buffer) : channelIO(null, channel, buffer);
+    }
+
+    private static int channelRead(ReadableByteChannel channel, ByteBuffer buffer)
+            throws IOException {
+        return buffer.remaining() <= NIO_BUFFER_LIMIT ?
+                channel.read(buffer) : channelIO(channel, null, buffer);
+    }
+
+    /**
+     * 每次最多读写 NIO_BUFFER_LIMIT 字节，直到 buffer 处理完或者 channel 暂时不可读写
+     */
+    private static int channelIO(ReadableByteChannel readCh, WritableByteChannel writeCh,
+                                 ByteBuffer buf) throws IOException {
+        int originalLimit = buf.limit();
+        int initialRemaining = buf.remaining();
+        int ret = 0;
+
+        while (buf.remaining() > 0) {
+            try {
+                int ioSize = Math.min(buf.remaining(), NIO_BUFFER_LIMIT);
+                buf.limit(buf.position() + ioSize);
+                ret = (readCh == null) ? writeCh.write(buf) : readCh.read(buf);
+                if (ret < ioSize) {
+                    break;
+                }
+            } finally {
+                buf.limit(originalLimit);
+            }
+        }
+
+        int nBytes = initialRemaining - buf.remaining();
+        return (nBytes > 0) ? nBytes : ret;
+    }
+}
@@ -0,0 +1,9 @@
+package com.rchen102.ipc.metrics;
+
+/**
+ * 一个 Client 所有连接的汇总统计，注册为 com.rchen102.ipc:type=Client,name=...
+ */
+public interface ClientStatsMXBean extends ConnectionCounters {
+    /** 建立过连接的服务端地址数 */
+    int getRemoteAddressCount();
+}
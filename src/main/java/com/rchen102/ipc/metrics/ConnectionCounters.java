@@ -0,0 +1,47 @@
+package com.rchen102.ipc.metrics;
+
+/**
+ * 客户端连接的 I/O 统计，时间都是累计值，平均值按次数计算
+ * 计数在连接的整个生命周期内累加，连接关闭后不清零
+ */
+public interface ConnectionCounters {
+    /** 当前打开的连接数 */
+    int getOpenConnections();
+
+    /** 当前已发送、尚未收到响应的调用数 */
+    int getOutstandingCalls();
+
+    /** 当前 sendQueue 中等待写出的 frame 数 */
+    int getSendQueueLength();
+
+    /** 发送的字节数，包括长度字段和连接上下文 */
+    long getBytesSent();
+
+    /** 接收的字节数，包括长度字段 */
+    long getBytesReceived();
+
+    long getFramesSent();
+
+    long getFramesReceived();
+
+    /** frame 从放入 sendQueue 到写出的累计等待时间，单位：微秒 */
+    long getSendQueueWaitTimeMicros();
+
+    /** 每个 frame 在 sendQueue 中的平均等待时间，单位：微秒 */
+    double getAvgSendQueueWaitTimeMicros();
+
+    /** 建立成功的连接数 */
+    long getConnectionsOpened();
+
+    /** 建立失败的连接数 */
+    long getConnectFailures();
+
+    /** 之前的连接关闭后再建立的连接数 */
+    long getReconnects();
+
+    /** 建立 socket 连接（包括超时重试）的累计时间，单位：毫秒 */
+    long getSetupConnectionTimeMillis();
+
+    /** 每次建立 socket 连接的平均时间，单位：毫秒 */
+    double getAvgSetupConnectionTimeMillis();
+}
@@ -0,0 +1,10 @@
+package com.rchen102.ipc.metrics;
+
+/**
+ * 一个 Client 到一个服务端地址的所有连接的统计，
+ * 注册为 com.rchen102.ipc:type=ClientConnection,client=...,remote=...
+ */
+public interface ConnectionStatsMXBean extends ConnectionCounters {
+    /** 服务端地址，host:port */
+    String getRemoteAddress();
+}
@@ -0,0 +1,149 @@
+package com.rchen102.ipc.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 延迟的直方图，单位：纳秒，无锁
+ *
+ * 桶的划分与 HdrHistogram 相同，为对数-线性：每个 2 的幂区间 [2^k, 2^(k+1)) 再等分为 8 个子桶，
+ * 因此任意值的相对误差不超过 1/8；小于 8ns 的值每个值一个桶，不小于 2^40ns（约 18 分钟）的值记入最后一个桶
+ * 记录时按线程分段（见 {@link Stripes}），读取时合并所有段
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    /** 第 i 段的第 j 个桶位于 i * BUCKET_COUNT + j */
+    private final AtomicLongArray counts =
+            new AtomicLongArray(Stripes.COUNT * BUCKET_COUNT);
+    private final StripedCounter sum = new StripedCounter();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 记录一个延迟
+     * @param nanos 延迟，单位：纳秒，小于 0 时按 0 记录
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(Stripes.current() * BUCKET_COUNT + bucketIndex(nanos));
+        sum.add(nanos);
+        long currentMax = max.get();
+        while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+            currentMax = max.get();
+        }
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * @return 桶中的最小值
+     */
+    static long lowerBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKET_COUNT;
+        return (long) (SUB_BUCKET_COUNT + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @return 合并所有段后的快照，并发记录时不是精确的快照
+     */
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < Stripes.COUNT; i++) {
+            for (int j = 0; j < BUCKET_COUNT; j++) {
+                long c = counts.get(i * BUCKET_COUNT + j);
+                buckets[j] += c;
+                count += c;
+            }
+        }
+        return new Snapshot(buckets, count, sum.get(), max.get());
+    }
+
+    /**
+     * 直方图的快照，只读
+     */
+    public static class Snapshot {
+        private final long[] buckets;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] buckets, long count, long sum, long max) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /** 平均值，单位：纳秒 */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /** 最大值，单位：纳秒 */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * 百分位数，返回所在桶的上界（不超过最大值），单位：纳秒
+         * @param percentile 百分位，范围 [0, 100]
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100 * count);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    long upper = i + 1 < BUCKET_COUNT ? lowerBound(i + 1) - 1 : max;
+                    return Math.min(upper, max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count
+                    + ", mean=" + formatMicros((long) getMean())
+                    + ", p50=" + formatMicros(getPercentile(50))
+                    + ", p99=" + formatMicros(getPercentile(99))
+                    + ", p999=" + formatMicros(getPercentile(99.9))
+                    + ", max=" + formatMicros(max);
+        }
+
+        private static String formatMicros(long nanos) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+        }
+    }
+}
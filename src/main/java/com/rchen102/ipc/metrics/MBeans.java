@@ -0,0 +1,54 @@
+package com.rchen102.ipc.metrics;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * 在平台 MBeanServer 上注册、注销 MBean
+ * 注册失败只记录日志，统计不可见不影响 RPC 调用
+ */
+public class MBeans {
+    private static final Log LOG = LogFactory.getLog(MBeans.class);
+
+    public static final String DOMAIN = "com.rchen102.ipc";
+
+    private MBeans() {
+    }
+
+    /**
+     * @param properties ObjectName 的 key 属性，如 "type=Client,name=client-1"
+     * @param mbean MBean 对象
+     * @return 注册的名字，失败时返回 null
+     */
+    public static ObjectName register(String properties, Object mbean) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            server.registerMBean(mbean, name);
+            return name;
+        } catch (JMException e) {
+            LOG.warn("Failed to register MBean " + properties, e);
+            return null;
+        }
+    }
+
+    /**
+     * @param name register 返回的名字，为 null 时忽略
+     */
+    public static void unregister(ObjectName name) {
+        if (name == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(name);
+        } catch (JMException e) {
+            LOG.warn("Failed to unregister MBean " + name, e);
+        }
+    }
+}
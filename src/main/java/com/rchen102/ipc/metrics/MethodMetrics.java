@@ -0,0 +1,132 @@
+package com.rchen102.ipc.metrics;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * 客户端一个协议方法的调用统计：调用次数、失败次数、延迟直方图、请求和响应的字节数
+ * 延迟在 RpcEngine 的 invoker 中记录，包括序列化请求和解析响应的时间；
+ * 字节数在 {@link com.rchen102.ipc.Client} 中记录，为实际发送和接收的 frame 长度，
+ * 合并的调用（见 {@link com.rchen102.ipc.ProtocolInfo#idempotentMethods}）只记录一次
+ * 线程安全
+ */
+public class MethodMetrics {
+    private final String protocolName;
+    private final String methodName;
+
+    private final StripedCounter calls = new StripedCounter();
+    private final StripedCounter errors = new StripedCounter();
+    private final StripedCounter requestBytes = new StripedCounter();
+    private final StripedCounter responseBytes = new StripedCounter();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    MethodMetrics(String protocolName, String methodName) {
+        this.protocolName = protocolName;
+        this.methodName = methodName;
+    }
+
+    /**
+     * 记录一次完成的调用
+     * @param startNanos 调用开始时 {@link System#nanoTime()} 的值
+     * @param success 调用是否成功
+     */
+    public void recordCall(long startNanos, boolean success) {
+        latency.record(System.nanoTime() - startNanos);
+        calls.increment();
+        if (!success) {
+            errors.increment();
+        }
+    }
+
+    /**
+     * 异步调用完成时记录
+     * @param future 异步调用的结果
+     * @param startNanos 调用开始时 {@link System#nanoTime()} 的值
+     */
+    public void recordCallWhenDone(ListenableFuture<?> future, final long startNanos) {
+        Futures.addCallback(future, new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(Object result) {
+                recordCall(startNanos, true);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                recordCall(startNanos, false);
+            }
+        });
+    }
+
+    public void addRequestBytes(long bytes) {
+        requestBytes.add(bytes);
+    }
+
+    public void addResponseBytes(long bytes) {
+        responseBytes.add(bytes);
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(protocolName, methodName, calls.get(), errors.get(),
+                requestBytes.get(), responseBytes.get(), latency.snapshot());
+    }
+
+    /**
+     * 调用统计的快照，只读
+     */
+    public static class Snapshot {
+        private final String protocolName;
+        private final String methodName;
+        private final long calls;
+        private final long errors;
+        private final long requestBytes;
+        private final long responseBytes;
+        private final LatencyHistogram.Snapshot latency;
+
+        Snapshot(String protocolName, String methodName, long calls, long errors,
+                 long requestBytes, long responseBytes, LatencyHistogram.Snapshot latency) {
+            this.protocolName = protocolName;
+            this.methodName = methodName;
+            this.calls = calls;
+            this.errors = errors;
+            this.requestBytes = requestBytes;
+            this.responseBytes = responseBytes;
+            this.latency = latency;
+        }
+
+        public String getProtocolName() {
+            return protocolName;
+        }
+
+        public String getMethodName() {
+            return methodName;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getRequestBytes() {
+            return requestBytes;
+        }
+
+        public long getResponseBytes() {
+            return responseBytes;
+        }
+
+        public LatencyHistogram.Snapshot getLatency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return protocolName + "#" + methodName + ": calls=" + calls + ", errors=" + errors
+                    + ", requestBytes=" + requestBytes + ", responseBytes=" + responseBytes
+                    + ", latency{" + latency + "}";
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.rchen102.ipc.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 客户端所有协议方法的调用统计，进程内共享
+ * invoker 在创建代理时获取方法对应的 {@link MethodMetrics}，调用时不再查找
+ */
+public class RpcMetrics {
+    private static final ConcurrentHashMap<String, MethodMetrics> METHODS =
+            new ConcurrentHashMap<>();
+
+    private RpcMetrics() {
+    }
+
+    /**
+     * 获取方法的调用统计，不存在时创建
+     * @param protocolName 协议名，见 {@link com.rchen102.ipc.RPC#getProtocolName}
+     * @param methodName 方法名
+     * @return 调用统计
+     */
+    public static MethodMetrics getMethodMetrics(String protocolName, String methodName) {
+        String key = key(protocolName, methodName);
+        MethodMetrics metrics = METHODS.get(key);
+        if (metrics == null) {
+            MethodMetrics newMetrics = new MethodMetrics(protocolName, methodName);
+            metrics = METHODS.putIfAbsent(key, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @return 所有方法调用统计的快照，key 为 "协议名#方法名"，按 key 排序
+     */
+    public static Map<String, MethodMetrics.Snapshot> snapshot() {
+        Map<String, MethodMetrics.Snapshot> snapshots = new TreeMap<>();
+        for (Map.Entry<String, MethodMetrics> entry : METHODS.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return snapshots;
+    }
+
+    public static String key(String protocolName, String methodName) {
+        return protocolName + "#" + methodName;
+    }
+}
@@ -0,0 +1,38 @@
+package com.rchen102.ipc.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 分段的计数器，无锁
+ * 不同线程按线程 id 累加到不同的段，避免所有线程 CAS 同一个变量；读取时把所有段相加
+ * 每个段独占一个缓存行，避免伪共享
+ */
+public class StripedCounter {
+    /** 每个段之间间隔的 long 个数，8 * 8 字节为一个缓存行 */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells;
+
+    public StripedCounter() {
+        cells = new AtomicLongArray(Stripes.COUNT * PADDING);
+    }
+
+    public void add(long delta) {
+        cells.addAndGet(Stripes.current() * PADDING, delta);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * @return 所有段的和，并发累加时不是精确的快照
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < Stripes.COUNT; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+}
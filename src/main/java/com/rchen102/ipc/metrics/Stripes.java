@@ -0,0 +1,36 @@
+package com.rchen102.ipc.metrics;
+
+/**
+ * 分段记录时段的数量和当前线程对应的段
+ */
+final class Stripes {
+    /** 段的数量，不小于 CPU 核数的 2 的幂，最多 64 */
+    static final int COUNT;
+    private static final int SHIFT;
+
+    static {
+        int count = 1;
+        int shift = 0;
+        int processors = Runtime.getRuntime().availableProcessors();
+        while (count < processors && count < 64) {
+            count <<= 1;
+            shift++;
+        }
+        COUNT = count;
+        SHIFT = shift;
+    }
+
+    private Stripes() {
+    }
+
+    /**
+     * 当前线程对应的段，线程 id 经过斐波那契散列后取高位
+     */
+    static int current() {
+        if (SHIFT == 0) {
+            return 0;
+        }
+        int h = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        return h >>> (32 - SHIFT);
+    }
+}
@@ -1,8 +1,11 @@
 package com.rchen102.net;
 
+import com.rchen102.conf.CommonConfigurationKeysPublic;
+import com.rchen102.conf.Configuration;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import javax.net.SocketFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -14,6 +17,19 @@ import java.net.SocketAddress;
 public class NetUtils {
     private static final Log LOG = LogFactory.getLog(NetUtils.class);
 
+    private static final SocketFactory CHANNEL_SOCKET_FACTORY = new StandardSocketFactory();
+
+    /**
+     * 按照配置返回默认的 SocketFactory
+     * 客户端使用 NIO 传输时 socket 必须关联 channel，返回 {@link StandardSocketFactory}；
+     * 否则返回 {@link SocketFactory#getDefault()}，阻塞读依赖 socket 的读超时，channel 的输入流不支持
+     */
+    public static SocketFactory getDefaultSocketFactory(Configuration conf) {
+        return conf.getBoolean(CommonConfigurationKeysPublic.IPC_CLIENT_NIO_ENABLED_KEY,
+                CommonConfigurationKeysPublic.IPC_CLIENT_NIO_ENABLED_DEFAULT) ?
+                CHANNEL_SOCKET_FACTORY : SocketFactory.getDefault();
+    }
+
     /**
      * {@link Socket#connect(SocketAddress, int)}的替代函数
      * 调用 <code>socket.connect(endpoint, timeout)</code> 进行连接
@@ -55,4 +71,19 @@ public class NetUtils {
     public static OutputStream getOutputStream(Socket socket) throws IOException {
         return socket.getOutputStream();
     }
+
+    /**
+     * 如果 socket 关联了 channel，返回基于非阻塞 channel 的 {@link SocketOutputStream}
+     * 否则返回 socket 自身的输出流
+     *
+     * @param socket socket
+     * @param timeout 等待 channel 可写的超时时间，单位：ms，0 表示一直等待
+     * @return 输出流
+     * @throws IOException
+     */
+    public static OutputStream getOutputStream(Socket socket, long timeout)
+            throws IOException {
+        return (socket.getChannel() == null) ?
+                socket.getOutputStream() : new SocketOutputStream(socket.getChannel(), timeout);
+    }
 }
@@ -0,0 +1,82 @@
+package com.rchen102.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 基于非阻塞 {@link SocketChannel} 的输出流
+ * channel 处于非阻塞模式时不能使用 socket.getOutputStream()，
+ * 因此写不进去时（发送缓冲区满），使用 selector 等待 channel 可写
+ */
+public class SocketOutputStream extends OutputStream {
+    private final SocketChannel channel;
+    /** 等待 channel 可写的超时时间，单位：毫秒，0 表示一直等待 */
+    private final long timeout;
+    /** 等待可写时使用的 selector，只在发送缓冲区满时才创建 */
+    private Selector selector;
+
+    public SocketOutputStream(SocketChannel channel, long timeout) throws IOException {
+        channel.configureBlocking(false);
+        this.channel = channel;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * 将 buffer 中剩余的数据全部写出
+     * @param buf 待写出的数据
+     * @throws IOException 超时或者连接异常
+     */
+    public void write(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.write(buf) == 0) {
+                waitForWritable();
+            }
+        }
+    }
+
+    private void waitForWritable() throws IOException {
+        if (selector == null) {
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_WRITE);
+        }
+        int ready = timeout > 0 ? selector.select(timeout) : selector.select();
+        selector.selectedKeys().clear();
+        if (ready == 0 && timeout > 0) {
+            throw new SocketTimeoutException(timeout +
+                    " millis timeout while waiting for channel to be ready for write");
+        }
+        if (!channel.isOpen()) {
+            throw new IOException("Channel is closed");
+        }
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.rchen102.protocol;
+
+import com.rchen102.ipc.RPC;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在客户端缓存 getTableCount 结果的 ClientProtocol
+ * 同一个 (dbName, tbName) 在 ttl 内的重复查询直接返回缓存的结果，不再访问服务端
+ * 缓存的条目数有上限，超过时按 LRU 淘汰；调用失败的结果不缓存
+ * 线程安全
+ */
+public class CachingClientProtocol implements ClientProtocol, Closeable {
+    private final ClientProtocol proxy;
+    /** 条目的有效时间，单位：毫秒 */
+    private final long ttl;
+    private final LruMap cache;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param proxy 实际访问服务端的 ClientProtocol
+     * @param maxSize 最多缓存的条目数
+     * @param ttl 条目的有效时间，单位：毫秒
+     */
+    public CachingClientProtocol(ClientProtocol proxy, int maxSize, long ttl) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Illegal cache size: " + maxSize);
+        }
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Illegal cache ttl: " + ttl);
+        }
+        this.proxy = proxy;
+        this.ttl = ttl;
+        this.cache = new LruMap(maxSize);
+    }
+
+    @Override
+    public int getTableCount(String dbName, String tbName) throws IOException {
+        TableName key = new TableName(dbName, tbName);
+        long now = System.currentTimeMillis();
+        synchronized (cache) {
+            Entry entry = cache.get(key);
+            if (entry != null) {
+                if (now < entry.expireTime) {
+                    hitCount.incrementAndGet();
+                    return entry.value;
+                }
+                cache.remove(key);
+            }
+        }
+        missCount.incrementAndGet();
+
+        // 访问服务端时不持有锁，不同表的查询互不阻塞
+        int value = proxy.getTableCount(dbName, tbName);
+        synchronized (cache) {
+            cache.put(key, new Entry(value, System.currentTimeMillis() + ttl));
+        }
+        return value;
+    }
+
+    /**
+     * 批量查询不经过缓存，直接访问服务端
+     */
+    @Override
+    public int[] getTableCounts(List<TableName> tables) throws IOException {
+        return proxy.getTableCounts(tables);
+    }
+
+    /**
+     * 清空缓存，之后的查询都会访问服务端
+     */
+    public void invalidateAll() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /** 因为超过条目数上限而被淘汰的条目数，过期的条目不计入 */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        RPC.stopProxy(proxy);
+    }
+
+    @Override
+    public String toString() {
+        return "CachingClientProtocol{hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + ", size=" + size() + "}";
+    }
+
+    private static class Entry {
+        final int value;
+        /** 过期的时间点 */
+        final long expireTime;
+
+        Entry(int value, long expireTime) {
+            this.value = value;
+            this.expireTime = expireTime;
+        }
+    }
+
+    /**
+     * 按访问顺序排列的 LinkedHashMap，超过上限时移除最久没有访问的条目
+     * 调用者需要持有该对象的锁
+     */
+    private class LruMap extends LinkedHashMap<TableName, Entry> {
+        private static final long serialVersionUID = 1L;
+        private final int maxSize;
+
+        LruMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TableName, Entry> eldest) {
+            if (size() > maxSize) {
+                evictionCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.rchen102.protocol;
 
 import java.io.IOException;
+import java.util.List;
 
 public interface ClientProtocol {
 
@@ -12,4 +13,13 @@ public interface ClientProtocol {
      * @throws IOException
      */
     public int getTableCount(String dbName, String tbName) throws IOException;
+
+    /**
+     * Get meta information for multiple tables in one call
+     * @param tables tables to query
+     * @return number of records existing in each table, in the same order as tables,
+     *         {@link ManisConstants#TABLE_NOT_FOUND} if the table does not exist
+     * @throws IOException
+     */
+    public int[] getTableCounts(List<TableName> tables) throws IOException;
 }
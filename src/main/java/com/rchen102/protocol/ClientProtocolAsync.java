@@ -0,0 +1,30 @@
+package com.rchen102.protocol;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * {@link ClientProtocol} 的异步版本，方法发送请求后立即返回 Future
+ */
+public interface ClientProtocolAsync {
+
+    /**
+     * Get meta information for target table asynchronously
+     * @param dbName database name
+     * @param tbName table name
+     * @return future of the number of records existing in the table
+     * @throws IOException
+     */
+    public ListenableFuture<Integer> getTableCount(String dbName, String tbName) throws IOException;
+
+    /**
+     * Get meta information for multiple tables in one call asynchronously
+     * @param tables tables to query
+     * @return future of the number of records existing in each table,
+     *         see {@link ClientProtocol#getTableCounts}
+     * @throws IOException
+     */
+    public ListenableFuture<int[]> getTableCounts(List<TableName> tables) throws IOException;
+}
@@ -0,0 +1,51 @@
+package com.rchen102.protocol;
+
+import com.rchen102.ipc.SerializableRpcEngine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+
+/**
+ * {@link ManagerManisDbProtocolSerializable} 的具体 stub 类，代替动态代理
+ * 写法与 protoc 生成的 BlockingStub 相同：协议方法在类加载时解析一次，
+ * 每个方法直接调用 channel，JIT 可以内联，不经过 InvocationHandler
+ *
+ * 协议增加方法时需要同步修改该类
+ * @author rchen102
+ */
+public class ManagerManisDbProtocolSerializableStub
+        implements ManagerManisDbProtocolSerializable, Closeable {
+    private static final Method SET_MAX_TABLE =
+            getMethod("setMaxTable", int.class);
+
+    private final SerializableRpcEngine.RpcChannel channel;
+
+    public ManagerManisDbProtocolSerializableStub(SerializableRpcEngine.RpcChannel channel) {
+        this.channel = channel;
+    }
+
+    private static Method getMethod(String name, Class<?>... parameterTypes) {
+        try {
+            return ManagerManisDbProtocolSerializable.class.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @Override
+    public boolean setMaxTable(int tableNum) {
+        try {
+            return (Boolean) channel.call(SET_MAX_TABLE, new Object[]{tableNum});
+        } catch (IOException e) {
+            // 与动态代理的行为一致，方法没有声明的异常包装为 UndeclaredThrowableException
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
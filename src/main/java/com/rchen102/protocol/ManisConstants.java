@@ -5,4 +5,7 @@ public class ManisConstants {
             "com.rchen102.protocol.ClientProtocol";
     public static final String MANAGER_MANISDB_PROTOCOL_NAME =
             "com.rchen102.protocol.ManagerProtocol";
+
+    /** 批量查询表的记录数时，不存在的表对应的结果 */
+    public static final int TABLE_NOT_FOUND = -1;
 }
@@ -0,0 +1,47 @@
+package com.rchen102.protocol;
+
+/**
+ * 表的完整名称：数据库名 + 表名
+ */
+public class TableName {
+    private final String dbName;
+    private final String tbName;
+
+    public TableName(String dbName, String tbName) {
+        if (dbName == null || tbName == null) {
+            throw new IllegalArgumentException("Null database or table name");
+        }
+        this.dbName = dbName;
+        this.tbName = tbName;
+    }
+
+    public String getDbName() {
+        return dbName;
+    }
+
+    public String getTbName() {
+        return tbName;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof TableName)) {
+            return false;
+        }
+        TableName that = (TableName) obj;
+        return dbName.equals(that.dbName) && tbName.equals(that.tbName);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * dbName.hashCode() + tbName.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return dbName + "." + tbName;
+    }
+}
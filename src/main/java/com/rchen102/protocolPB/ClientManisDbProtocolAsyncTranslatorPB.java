@@ -0,0 +1,88 @@
+package com.rchen102.protocolPB;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ServiceException;
+import com.rchen102.ipc.RPC;
+import com.rchen102.protocol.ClientProtocolAsync;
+import com.rchen102.protocol.TableName;
+import com.rchen102.protocol.proto.ClientManisDbProtocolProtos;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+public class ClientManisDbProtocolAsyncTranslatorPB implements
+        ClientProtocolAsync, Closeable {
+    private ClientManisDbProtocolPBAsync rpcProxy;
+
+    public ClientManisDbProtocolAsyncTranslatorPB(ClientManisDbProtocolPBAsync proxy) {
+        rpcProxy = proxy;
+    }
+
+    @Override
+    public ListenableFuture<Integer> getTableCount(String dbName, String tbName) throws IOException {
+        ClientManisDbProtocolProtos.GetTableCountRequestProto request = ClientManisDbProtocolProtos.GetTableCountRequestProto.newBuilder()
+                .setDbName(dbName)
+                .setTbName(tbName)
+                .build();
+        ListenableFuture<ClientManisDbProtocolProtos.GetTableCountResponseProto> future;
+        try {
+            future = rpcProxy.getTableCount(null, request);
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        }
+
+        // 与同步版本一致，ServiceException 转换为 IOException
+        final SettableFuture<Integer> result = SettableFuture.create();
+        Futures.addCallback(future,
+                new FutureCallback<ClientManisDbProtocolProtos.GetTableCountResponseProto>() {
+                    @Override
+                    public void onSuccess(ClientManisDbProtocolProtos.GetTableCountResponseProto response) {
+                        result.set(response.getResult());
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        result.setException(new IOException(t));
+                    }
+                });
+        return result;
+    }
+
+    @Override
+    public ListenableFuture<int[]> getTableCounts(final List<TableName> tables) throws IOException {
+        ListenableFuture<ClientManisDbProtocolProtos.GetTableCountsResponseProto> future;
+        try {
+            future = rpcProxy.getTableCounts(null, ClientManisDbProtocolTranslatorPB.convert(tables));
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        }
+
+        final SettableFuture<int[]> result = SettableFuture.create();
+        Futures.addCallback(future,
+                new FutureCallback<ClientManisDbProtocolProtos.GetTableCountsResponseProto>() {
+                    @Override
+                    public void onSuccess(ClientManisDbProtocolProtos.GetTableCountsResponseProto response) {
+                        try {
+                            result.set(ClientManisDbProtocolTranslatorPB.convert(tables, response));
+                        } catch (IOException e) {
+                            result.setException(e);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        result.setException(new IOException(t));
+                    }
+                });
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        RPC.stopProxy(rpcProxy);
+    }
+}
@@ -8,7 +8,8 @@ import com.rchen102.protocol.proto.ClientManisDbProtocolProtos;
  * @author rchen102
  */
 @ProtocolInfo(protocolName = ManisConstants.CLIENT_MANISDB_PROTOCOL_NAME,
-        protocolVersion = 1)
+        protocolVersion = 1,
+        idempotentMethods = {"getTableCount"})
 public interface ClientManisDbProtocolPB extends
         ClientManisDbProtocolProtos.ClientManisDbProtocol.BlockingInterface {
 }
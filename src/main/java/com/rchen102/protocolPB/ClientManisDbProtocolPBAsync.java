@@ -0,0 +1,29 @@
+package com.rchen102.protocolPB;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+import com.rchen102.ipc.ProtocolInfo;
+import com.rchen102.protocol.ManisConstants;
+import com.rchen102.protocol.proto.ClientManisDbProtocolProtos.GetTableCountRequestProto;
+import com.rchen102.protocol.proto.ClientManisDbProtocolProtos.GetTableCountResponseProto;
+import com.rchen102.protocol.proto.ClientManisDbProtocolProtos.GetTableCountsRequestProto;
+import com.rchen102.protocol.proto.ClientManisDbProtocolProtos.GetTableCountsResponseProto;
+
+/**
+ * {@link ClientManisDbProtocolPB} 的异步版本
+ * 协议名称与版本同 ClientManisDbProtocolPB，方法名与参数同 BlockingInterface，返回值为 Future
+ * @author rchen102
+ */
+@ProtocolInfo(protocolName = ManisConstants.CLIENT_MANISDB_PROTOCOL_NAME,
+        protocolVersion = 1,
+        idempotentMethods = {"getTableCount"})
+public interface ClientManisDbProtocolPBAsync {
+    ListenableFuture<GetTableCountResponseProto> getTableCount(
+            RpcController controller, GetTableCountRequestProto request)
+            throws ServiceException;
+
+    ListenableFuture<GetTableCountsResponseProto> getTableCounts(
+            RpcController controller, GetTableCountsRequestProto request)
+            throws ServiceException;
+}
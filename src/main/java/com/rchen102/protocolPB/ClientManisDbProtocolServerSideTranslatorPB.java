@@ -0,0 +1,60 @@
+package com.rchen102.protocolPB;
+
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+import com.rchen102.protocol.ClientProtocol;
+import com.rchen102.protocol.TableName;
+import com.rchen102.protocol.proto.ClientManisDbProtocolProtos;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 服务端使用，与 {@link ClientManisDbProtocolTranslatorPB} 对应
+ * 将 Protocol Buffer 的请求转换为对 {@link ClientProtocol} 的调用
+ */
+public class ClientManisDbProtocolServerSideTranslatorPB implements ClientManisDbProtocolPB {
+    private final ClientProtocol server;
+
+    public ClientManisDbProtocolServerSideTranslatorPB(ClientProtocol server) {
+        this.server = server;
+    }
+
+    @Override
+    public ClientManisDbProtocolProtos.GetTableCountResponseProto getTableCount(
+            RpcController controller,
+            ClientManisDbProtocolProtos.GetTableCountRequestProto request)
+            throws ServiceException {
+        try {
+            int result = server.getTableCount(request.getDbName(), request.getTbName());
+            return ClientManisDbProtocolProtos.GetTableCountResponseProto.newBuilder()
+                    .setResult(result)
+                    .build();
+        } catch (IOException e) {
+            throw new ServiceException(e);
+        }
+    }
+
+    @Override
+    public ClientManisDbProtocolProtos.GetTableCountsResponseProto getTableCounts(
+            RpcController controller,
+            ClientManisDbProtocolProtos.GetTableCountsRequestProto request)
+            throws ServiceException {
+        List<TableName> tables = new ArrayList<>(request.getTablesCount());
+        for (ClientManisDbProtocolProtos.TableNameProto table : request.getTablesList()) {
+            tables.add(new TableName(table.getDbName(), table.getTbName()));
+        }
+        try {
+            int[] results = server.getTableCounts(tables);
+            ClientManisDbProtocolProtos.GetTableCountsResponseProto.Builder builder =
+                    ClientManisDbProtocolProtos.GetTableCountsResponseProto.newBuilder();
+            for (int result : results) {
+                builder.addResults(result);
+            }
+            return builder.build();
+        } catch (IOException e) {
+            throw new ServiceException(e);
+        }
+    }
+}
@@ -3,17 +3,34 @@ package com.rchen102.protocolPB;
 import com.google.protobuf.ServiceException;
 import com.rchen102.ipc.RPC;
 import com.rchen102.protocol.ClientProtocol;
+import com.rchen102.protocol.TableName;
 import com.rchen102.protocol.proto.ClientManisDbProtocolProtos;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.List;
 
 public class ClientManisDbProtocolTranslatorPB implements
         ClientProtocol, Closeable {
-    private ClientManisDbProtocolPB rpcProxy;
+    private ClientManisDbProtocolProtos.ClientManisDbProtocol.BlockingInterface rpcProxy;
+    /** 关闭时需要停止的对象：动态代理本身，或者生成的 stub 所使用的 channel */
+    private Object rpcProxyToStop;
 
     public ClientManisDbProtocolTranslatorPB(ClientManisDbProtocolPB proxy) {
         rpcProxy = proxy;
+        rpcProxyToStop = proxy;
+    }
+
+    /**
+     * 使用 protoc 生成的 BlockingStub
+     * @param stub <code>ClientManisDbProtocol.newBlockingStub(channel)</code> 返回的 stub
+     * @param channel stub 使用的 channel
+     */
+    public ClientManisDbProtocolTranslatorPB(
+            ClientManisDbProtocolProtos.ClientManisDbProtocol.BlockingInterface stub,
+            Closeable channel) {
+        rpcProxy = stub;
+        rpcProxyToStop = channel;
     }
 
     @Override
@@ -28,8 +45,45 @@ public class ClientManisDbProtocolTranslatorPB implements
             throw new IOException(e);
         }
     }
+    @Override
+    public int[] getTableCounts(List<TableName> tables) throws IOException {
+        try {
+            return convert(tables, rpcProxy.getTableCounts(null, convert(tables)));
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        }
+    }
+
+    static ClientManisDbProtocolProtos.GetTableCountsRequestProto convert(List<TableName> tables) {
+        ClientManisDbProtocolProtos.GetTableCountsRequestProto.Builder builder =
+                ClientManisDbProtocolProtos.GetTableCountsRequestProto.newBuilder();
+        for (TableName table : tables) {
+            builder.addTables(ClientManisDbProtocolProtos.TableNameProto.newBuilder()
+                    .setDbName(table.getDbName())
+                    .setTbName(table.getTbName()));
+        }
+        return builder.build();
+    }
+
+    /**
+     * 响应中的结果与请求中的表一一对应
+     */
+    static int[] convert(List<TableName> tables,
+                         ClientManisDbProtocolProtos.GetTableCountsResponseProto response)
+            throws IOException {
+        if (response.getResultsCount() != tables.size()) {
+            throw new IOException("Expected " + tables.size() + " results, got " +
+                    response.getResultsCount());
+        }
+        int[] results = new int[tables.size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = response.getResults(i);
+        }
+        return results;
+    }
+
     @Override
     public void close() throws IOException {
-        RPC.stopProxy(rpcProxy);
+        RPC.stopProxy(rpcProxyToStop);
     }
 }
@@ -1,16 +1,69 @@
 package com.rchen102.server.manisdb;
 
+import com.rchen102.conf.Configuration;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
 
 public class ManisDb {
+    public static final Log LOG = LogFactory.getLog(ManisDb.class);
+
     private static final String MANIS_URI_SCHEMA = "manis";
-    private static final int DEFAULT_PORT = 8866;
+    public static final int DEFAULT_PORT = 8866;
+
+    /** RPC 服务端口，0 表示使用临时端口 */
+    public static final String MANISDB_RPC_PORT_KEY = "manis.db.rpc.port";
+    /** RPC 服务绑定的地址 */
+    public static final String MANISDB_RPC_BIND_HOST_KEY = "manis.db.rpc.bind.host";
+    public static final String MANISDB_RPC_BIND_HOST_DEFAULT = "0.0.0.0";
+    /** RPC 服务的 Handler 线程数 */
+    public static final String MANISDB_HANDLER_COUNT_KEY = "manis.db.handler.count";
+    public static final int    MANISDB_HANDLER_COUNT_DEFAULT = 10;
+
+    private final ManisDbRpcServer rpcServer;
+
+    /**
+     * 创建并启动 ManisDb
+     */
+    public ManisDb(Configuration conf) throws IOException {
+        this.rpcServer = new ManisDbRpcServer(conf);
+        rpcServer.start();
+        LOG.info("ManisDb RPC up at: " + rpcServer.getRpcAddress());
+    }
+
+    public ManisDbRpcServer getRpcServer() {
+        return rpcServer;
+    }
+
+    /**
+     * @return RPC 服务实际监听的地址
+     */
+    public InetSocketAddress getRpcAddress() {
+        return rpcServer.getRpcAddress();
+    }
+
+    public void stop() {
+        rpcServer.stop();
+    }
+
+    public void join() throws InterruptedException {
+        rpcServer.join();
+    }
 
     public static InetSocketAddress getAddress(String host) {
-        return new InetSocketAddress(host, DEFAULT_PORT);
+        return getAddress(host, DEFAULT_PORT);
     }
 
+    public static InetSocketAddress getAddress(String host, int port) {
+        return new InetSocketAddress(host, port);
+    }
+
+    /**
+     * URI 中没有端口时使用默认端口
+     */
     public static InetSocketAddress getAddress(URI manisDbUri) {
         String host = manisDbUri.getHost();
         if (host == null) {
@@ -23,6 +76,12 @@ public class ManisDb {
                     "Invalid URI for NameNode address: %s is not of scheme '%s'.",
                     manisDbUri.toString(), MANIS_URI_SCHEMA));
         }
-        return getAddress(host);
+        int port = manisDbUri.getPort();
+        return port == -1 ? getAddress(host) : getAddress(host, port);
+    }
+
+    public static void main(String[] args) throws Exception {
+        ManisDb manisDb = new ManisDb(new Configuration());
+        manisDb.join();
     }
 }
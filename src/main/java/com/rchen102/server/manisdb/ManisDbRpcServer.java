@@ -0,0 +1,132 @@
+package com.rchen102.server.manisdb;
+
+import com.google.protobuf.BlockingService;
+import com.rchen102.conf.Configuration;
+import com.rchen102.ipc.ProtobufRpcEngine;
+import com.rchen102.ipc.RPC;
+import com.rchen102.ipc.SerializableRpcEngine;
+import com.rchen102.protocol.ClientProtocol;
+import com.rchen102.protocol.ManagerManisDbProtocolSerializable;
+import com.rchen102.protocol.ManagerProtocol;
+import com.rchen102.protocol.ManisConstants;
+import com.rchen102.protocol.TableName;
+import com.rchen102.protocol.proto.ClientManisDbProtocolProtos;
+import com.rchen102.protocolPB.ClientManisDbProtocolPB;
+import com.rchen102.protocolPB.ClientManisDbProtocolServerSideTranslatorPB;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ManisDb 的 RPC 服务，同一个端口上同时提供
+ * ClientProtocol（Protocol Buffer）和 ManagerProtocol（Serializable）
+ *
+ * 表信息只保存在内存中
+ */
+public class ManisDbRpcServer implements ClientProtocol, ManagerProtocol {
+    public static final Log LOG = LogFactory.getLog(ManisDbRpcServer.class);
+
+    private final RPC.Server rpcServer;
+
+    /** 表名（dbName.tbName） -> 记录数 */
+    private final ConcurrentHashMap<String, Integer> tables = new ConcurrentHashMap<>();
+    private volatile int maxTable = Integer.MAX_VALUE;
+
+    public ManisDbRpcServer(Configuration conf) throws IOException {
+        int handlerCount = conf.getInt(ManisDb.MANISDB_HANDLER_COUNT_KEY,
+                ManisDb.MANISDB_HANDLER_COUNT_DEFAULT);
+        String bindHost = conf.get(ManisDb.MANISDB_RPC_BIND_HOST_KEY,
+                ManisDb.MANISDB_RPC_BIND_HOST_DEFAULT);
+        int port = conf.getInt(ManisDb.MANISDB_RPC_PORT_KEY, ManisDb.DEFAULT_PORT);
+
+        RPC.setProtocolEngine(conf, ClientManisDbProtocolPB.class, ProtobufRpcEngine.class);
+        BlockingService clientService = ClientManisDbProtocolProtos.ClientManisDbProtocol
+                .newReflectiveBlockingService(new ClientManisDbProtocolServerSideTranslatorPB(this));
+
+        this.rpcServer = new RPC.Builder(conf)
+                .setProtocol(ClientManisDbProtocolPB.class)
+                .setInstance(clientService)
+                .setBindAddress(bindHost)
+                .setPort(port)
+                .setNumHandlers(handlerCount)
+                .build();
+        rpcServer.addProtocol(RPC.RpcKind.RPC_SERIALIZABLE,
+                ManagerManisDbProtocolSerializable.class, this);
+        RPC.setProtocolEngine(conf, ManagerManisDbProtocolSerializable.class,
+                SerializableRpcEngine.class);
+    }
+
+    void start() {
+        rpcServer.start();
+    }
+
+    void stop() {
+        rpcServer.stop();
+    }
+
+    void join() throws InterruptedException {
+        rpcServer.join();
+    }
+
+    InetSocketAddress getRpcAddress() {
+        return rpcServer.getListenerAddress();
+    }
+
+    /**
+     * @return 当前打开的客户端连接数
+     */
+    public int getNumOpenConnections() {
+        return rpcServer.getNumOpenConnections();
+    }
+
+    /**
+     * 设置表的记录数，表不存在时创建
+     * @throws IOException 表的数量已经达到上限
+     */
+    public void putTable(String dbName, String tbName, int count) throws IOException {
+        String name = tableName(dbName, tbName);
+        if (!tables.containsKey(name) && tables.size() >= maxTable) {
+            throw new IOException("Too many tables, max is " + maxTable);
+        }
+        tables.put(name, count);
+    }
+
+    @Override
+    public int getTableCount(String dbName, String tbName) throws IOException {
+        Integer count = tables.get(tableName(dbName, tbName));
+        if (count == null) {
+            throw new IOException("Table not found: " + tableName(dbName, tbName));
+        }
+        return count;
+    }
+
+    @Override
+    public int[] getTableCounts(List<TableName> tables) {
+        int[] results = new int[tables.size()];
+        for (int i = 0; i < results.length; i++) {
+            TableName table = tables.get(i);
+            Integer count = this.tables.get(tableName(table.getDbName(), table.getTbName()));
+            results[i] = count == null ? ManisConstants.TABLE_NOT_FOUND : count;
+        }
+        return results;
+    }
+
+    @Override
+    public boolean setMaxTable(int tableNum) {
+        if (tableNum < tables.size()) {
+            LOG.warn("Failed to set max table to " + tableNum + ", " + tables.size() +
+                    " tables already exist");
+            return false;
+        }
+        maxTable = tableNum;
+        return true;
+    }
+
+    private static String tableName(String dbName, String tbName) {
+        return dbName + "." + tbName;
+    }
+}
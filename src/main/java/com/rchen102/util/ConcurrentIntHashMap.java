@@ -0,0 +1,213 @@
+package com.rchen102.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 以 int 为 key 的线程安全哈希表
+ * key 不装箱，每个段是一个开放寻址（线性探测）的哈希表，由段自己的锁保护，
+ * 不同段的操作互不阻塞。连续的 key（如自增的 callId）分散到不同的段
+ * value 不能为 null
+ */
+public class ConcurrentIntHashMap<V> {
+    /** 段的数量，2 的幂 */
+    private static final int SEGMENT_SHIFT = 4;
+    private static final int SEGMENT_COUNT = 1 << SEGMENT_SHIFT;
+
+    private final Segment<V>[] segments;
+    private final AtomicInteger size = new AtomicInteger();
+
+    public ConcurrentIntHashMap() {
+        this(16);
+    }
+
+    /**
+     * @param initialSegmentCapacity 每个段的初始容量，会向上取整为 2 的幂
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentIntHashMap(int initialSegmentCapacity) {
+        int capacity = 2;
+        while (capacity < initialSegmentCapacity) {
+            capacity <<= 1;
+        }
+        segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment<>(capacity);
+        }
+    }
+
+    /**
+     * 斐波那契散列，低位用于选择段，高位用于段内的位置
+     */
+    private static int hash(int key) {
+        return key * 0x9E3779B9;
+    }
+
+    private Segment<V> segmentFor(int hash) {
+        return segments[hash & (SEGMENT_COUNT - 1)];
+    }
+
+    /**
+     * @return 原来的 value，不存在时返回 null
+     */
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException("null value");
+        }
+        int h = hash(key);
+        V old = segmentFor(h).put(key, h >>> SEGMENT_SHIFT, value);
+        if (old == null) {
+            size.incrementAndGet();
+        }
+        return old;
+    }
+
+    public V get(int key) {
+        int h = hash(key);
+        return segmentFor(h).get(key, h >>> SEGMENT_SHIFT);
+    }
+
+    /**
+     * @return 被移除的 value，不存在时返回 null
+     */
+    public V remove(int key) {
+        int h = hash(key);
+        V old = segmentFor(h).remove(key, h >>> SEGMENT_SHIFT);
+        if (old != null) {
+            size.decrementAndGet();
+        }
+        return old;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    /**
+     * 移除所有的元素
+     * @return 被移除的 value
+     */
+    public List<V> removeAll() {
+        List<V> removed = new ArrayList<>();
+        for (Segment<V> segment : segments) {
+            int count = segment.removeAll(removed);
+            size.addAndGet(-count);
+        }
+        return removed;
+    }
+
+    /**
+     * 开放寻址的哈希表，value 为 null 的位置为空
+     */
+    private static final class Segment<V> {
+        private int[] keys;
+        private Object[] values;
+        private int count;
+
+        Segment(int capacity) {
+            keys = new int[capacity];
+            values = new Object[capacity];
+        }
+
+        private int indexOf(int key, int hash) {
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            while (values[i] != null) {
+                if (keys[i] == key) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V get(int key, int hash) {
+            int i = indexOf(key, hash);
+            return i < 0 ? null : (V) values[i];
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V put(int key, int hash, V value) {
+            int i = indexOf(key, hash);
+            if (i >= 0) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+            // 装载因子不超过 0.5，保证探测长度较短
+            if ((count + 1) * 2 > keys.length) {
+                resize();
+            }
+            insert(key, hash, value);
+            count++;
+            return null;
+        }
+
+        private void insert(int key, int hash, Object value) {
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            while (values[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        private void resize() {
+            int[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new Object[oldValues.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null) {
+                    insert(oldKeys[i], hash(oldKeys[i]) >>> SEGMENT_SHIFT, oldValues[i]);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V remove(int key, int hash) {
+            int i = indexOf(key, hash);
+            if (i < 0) {
+                return null;
+            }
+            V old = (V) values[i];
+            values[i] = null;
+            count--;
+            // 向前移动之后的元素，填补空位，避免使用删除标记
+            int mask = keys.length - 1;
+            int j = (i + 1) & mask;
+            while (values[j] != null) {
+                int home = (hash(keys[j]) >>> SEGMENT_SHIFT) & mask;
+                // 元素 j 的探测路径经过空位 i 时，将其移到 i
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    values[j] = null;
+                    i = j;
+                }
+                j = (j + 1) & mask;
+            }
+            return old;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized int removeAll(List<V> removed) {
+            int removedCount = count;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    removed.add((V) values[i]);
+                    values[i] = null;
+                }
+            }
+            count = 0;
+            return removedCount;
+        }
+    }
+}
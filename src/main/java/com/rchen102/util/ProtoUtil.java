@@ -2,10 +2,12 @@ package com.rchen102.util;
 
 import com.google.protobuf.ByteString;
 import com.rchen102.ipc.RPC;
+import com.rchen102.ipc.RpcConstants;
 import com.rchen102.ipc.protobuf.IpcConnectionContextProtos;
 import com.rchen102.ipc.protobuf.RpcHeaderProtos;
 
 import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 
 /**
@@ -54,6 +56,21 @@ public class ProtoUtil {
         return result;
     }
 
+    /**
+     * 向输出流写入变长编码的 int，编码方式同 {@link #readRawVarInt32(DataInput)}
+     * 负数需要 5 个字节，因此该方法只用于写非负数（如长度）
+     * @param out 输出流
+     * @param value 写入的值
+     * @throws IOException
+     */
+    public static void writeRawVarInt32(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
     public static IpcConnectionContextProtos.IpcConnectionContextProto makeIpcConnectionContext(
             final String protocolName) {
         IpcConnectionContextProtos.IpcConnectionContextProto.Builder retBuilder = IpcConnectionContextProtos.IpcConnectionContextProto.newBuilder();
@@ -65,7 +82,42 @@ public class ProtoUtil {
         return retBuilder.build();
     }
 
-    static RpcHeaderProtos.RpcKindProto convertRpcKind(RPC.RpcKind rpcKind) {
+    /**
+     * 构造连接上下文，同时绑定 clientId 和协议版本
+     * 连接版本 >= 2 时使用，之后的请求头不再携带这些信息
+     * @param protocolName 协议名
+     * @param clientId 全局唯一的 client ID
+     * @param protocolVersion 协议版本，协议没有声明版本时为 -1，此时不发送
+     */
+    public static IpcConnectionContextProtos.IpcConnectionContextProto makeIpcConnectionContext(
+            final String protocolName, byte[] clientId, long protocolVersion) {
+        return makeIpcConnectionContext(protocolName, clientId, protocolVersion, 0);
+    }
+
+    /**
+     * 构造连接上下文，将协议绑定到连接上的编号（连接版本 >= 3）
+     * @param protocolName 协议名
+     * @param clientId 全局唯一的 client ID，只在连接的第一个上下文中发送，之后为 null
+     * @param protocolVersion 协议版本，协议没有声明版本时为 -1，此时不发送
+     * @param protocolId 协议在连接上的编号，0 时不发送
+     */
+    public static IpcConnectionContextProtos.IpcConnectionContextProto makeIpcConnectionContext(
+            final String protocolName, byte[] clientId, long protocolVersion, int protocolId) {
+        IpcConnectionContextProtos.IpcConnectionContextProto.Builder retBuilder =
+                makeIpcConnectionContext(protocolName).toBuilder();
+        if (clientId != null) {
+            retBuilder.setClientId(ByteString.copyFrom(clientId));
+        }
+        if (protocolVersion != -1) {
+            retBuilder.setProtocolVersion(protocolVersion);
+        }
+        if (protocolId != 0) {
+            retBuilder.setProtocolId(protocolId);
+        }
+        return retBuilder.build();
+    }
+
+    public static RpcHeaderProtos.RpcKindProto convertRpcKind(RPC.RpcKind rpcKind) {
         switch (rpcKind) {
             case RPC_BUILTIN: return RpcHeaderProtos.RpcKindProto.RPC_BUILTIN;
             case RPC_SERIALIZABLE: return RpcHeaderProtos.RpcKindProto.RPC_SERIALIZABLE;
@@ -83,14 +135,37 @@ public class ProtoUtil {
         }
     }
 
+    /**
+     * 构造请求头
+     * clientId 为 null 时不设置（已在连接上下文中绑定），
+     * retryCount 为默认值 {@link RpcConstants#INVALID_RETRY_COUNT} 时也不设置，以减少请求头的长度
+     */
     public static RpcHeaderProtos.RpcRequestHeaderProto makeRpcRequestHeader(RPC.RpcKind rpcKind,
                                                                              RpcHeaderProtos.RpcRequestHeaderProto.OperationProto operation,
                                                                              int callId, int retryCount, byte[] clientId) {
+        return makeRpcRequestHeader(rpcKind, operation, callId, retryCount, clientId, 0);
+    }
+
+    /**
+     * 构造请求头，protocolId 为请求的协议在连接上绑定的编号，0 时不设置
+     */
+    public static RpcHeaderProtos.RpcRequestHeaderProto makeRpcRequestHeader(RPC.RpcKind rpcKind,
+                                                                             RpcHeaderProtos.RpcRequestHeaderProto.OperationProto operation,
+                                                                             int callId, int retryCount, byte[] clientId,
+                                                                             int protocolId) {
         RpcHeaderProtos.RpcRequestHeaderProto.Builder retBuilder = RpcHeaderProtos.RpcRequestHeaderProto.newBuilder();
 
         retBuilder.setRpcKind(convertRpcKind(rpcKind)).setRpcOp(operation)
-                .setCallId(callId).setRetryCount(retryCount)
-                .setClientId(ByteString.copyFrom(clientId));
+                .setCallId(callId);
+        if (retryCount != RpcConstants.INVALID_RETRY_COUNT) {
+            retBuilder.setRetryCount(retryCount);
+        }
+        if (clientId != null) {
+            retBuilder.setClientId(ByteString.copyFrom(clientId));
+        }
+        if (protocolId != 0) {
+            retBuilder.setProtocolId(protocolId);
+        }
 
         return retBuilder.build();
     }
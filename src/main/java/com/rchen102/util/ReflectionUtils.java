@@ -0,0 +1,37 @@
+package com.rchen102.util;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 反射相关的工具方法
+ */
+public class ReflectionUtils {
+    private static final Class<?>[] EMPTY_ARRAY = new Class[]{};
+
+    /**
+     * 缓存类的无参构造方法，避免每次实例化都重新查找
+     */
+    private static final ConcurrentHashMap<Class<?>, Constructor<?>> CONSTRUCTOR_CACHE =
+            new ConcurrentHashMap<>();
+
+    /**
+     * 通过无参构造方法实例化对象
+     * @param theClass 需要实例化的类
+     * @return 新的对象
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T newInstance(Class<T> theClass) {
+        try {
+            Constructor<T> meth = (Constructor<T>) CONSTRUCTOR_CACHE.get(theClass);
+            if (meth == null) {
+                meth = theClass.getDeclaredConstructor(EMPTY_ARRAY);
+                meth.setAccessible(true);
+                CONSTRUCTOR_CACHE.put(theClass, meth);
+            }
+            return meth.newInstance();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.rchen102;
+
+import com.rchen102.conf.CommonConfigurationKeysPublic;
+import com.rchen102.conf.Configuration;
+import com.rchen102.ipc.RemoteException;
+import com.rchen102.protocol.CachingClientProtocol;
+import com.rchen102.protocol.ManisConstants;
+import com.rchen102.protocol.TableName;
+import com.rchen102.server.manisdb.ManisDb;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 启动 ManisDb，通过 ManisClient 和 Manager 端到端地调用
+ */
+public class TestManisDb {
+    private ManisDb manisDb;
+    private URI uri;
+
+    @Before
+    public void setUp() throws IOException {
+        Configuration conf = new Configuration();
+        conf.setInt(ManisDb.MANISDB_RPC_PORT_KEY, 0);
+        conf.set(ManisDb.MANISDB_RPC_BIND_HOST_KEY, "localhost");
+        manisDb = new ManisDb(conf);
+        manisDb.getRpcServer().putTable("db1", "tb1", 100);
+        uri = URI.create("manis://localhost:" + manisDb.getRpcAddress().getPort());
+    }
+
+    @After
+    public void tearDown() {
+        manisDb.stop();
+    }
+
+    @Test(timeout = 60000)
+    public void testClient() throws Exception {
+        runClient(new Configuration());
+    }
+
+    @Test(timeout = 60000)
+    public void testClientWithStub() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setBoolean(CommonConfigurationKeysPublic.IPC_CLIENT_STUB_ENABLED_KEY, true);
+        runClient(conf);
+    }
+
+    private void runClient(Configuration conf) throws Exception {
+        ManisClient client = new ManisClient(uri, conf);
+        try {
+            assertEquals(100, client.getTableCount("db1", "tb1"));
+            assertEquals(100, (int) client.getTableCountAsync("db1", "tb1").get());
+            try {
+                client.getTableCount("db1", "missing");
+                fail("Expected exception for missing table");
+            } catch (IOException e) {
+                // 同步调用通过 ServiceException 包装 RemoteException
+                Throwable cause = e instanceof RemoteException ? e : e.getCause();
+                while (cause != null && !(cause instanceof RemoteException)) {
+                    cause = cause.getCause();
+                }
+                assertTrue("Unexpected exception " + e, cause instanceof RemoteException);
+                assertEquals(IOException.class.getName(), ((RemoteException) cause).getClassName());
+            }
+        } finally {
+            client.close();
+        }
+
+        Manager manager = new Manager(uri, conf);
+        try {
+            assertFalse(manager.setMaxTable(0));
+            assertTrue(manager.setMaxTable(10));
+        } finally {
+            manager.close();
+        }
+    }
+
+    /**
+     * 批量查询分成多个请求并发发送，结果按请求的顺序返回
+     */
+    @Test(timeout = 60000)
+    public void testGetTableCounts() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setInt(ManisClient.MANIS_CLIENT_TABLECOUNTS_BATCH_SIZE_KEY, 3);
+        conf.setInt(ManisClient.MANIS_CLIENT_TABLECOUNTS_PARALLELISM_KEY, 2);
+        List<TableName> tables = new ArrayList<>();
+        int[] expected = new int[20];
+        for (int i = 0; i < expected.length; i++) {
+            tables.add(new TableName("db2", "tb" + i));
+            if (i % 4 == 0) {
+                expected[i] = ManisConstants.TABLE_NOT_FOUND;
+            } else {
+                manisDb.getRpcServer().putTable("db2", "tb" + i, i * 10);
+                expected[i] = i * 10;
+            }
+        }
+        ManisClient client = new ManisClient(uri, conf);
+        try {
+            assertArrayEquals(expected, client.getTableCounts(tables));
+            assertArrayEquals(new int[]{100}, client.getTableCounts(
+                    Collections.singletonList(new TableName("db1", "tb1"))));
+            assertEquals(0, client.getTableCounts(Collections.<TableName>emptyList()).length);
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * 直接通过同步代理批量查询，不存在的表返回 TABLE_NOT_FOUND，不影响其他表的结果
+     */
+    @Test(timeout = 60000)
+    public void testGetTableCountsNotFound() throws Exception {
+        Configuration stubConf = new Configuration();
+        stubConf.setBoolean(CommonConfigurationKeysPublic.IPC_CLIENT_STUB_ENABLED_KEY, true);
+        for (Configuration conf : Arrays.asList(new Configuration(), stubConf)) {
+            ManisClient client = new ManisClient(uri, conf);
+            try {
+                assertArrayEquals(new int[]{100, ManisConstants.TABLE_NOT_FOUND},
+                        client.manisDb.getTableCounts(Arrays.asList(
+                                new TableName("db1", "tb1"), new TableName("db1", "missing"))));
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * 开启 getTableCount 缓存：ttl 内的重复查询不访问服务端，超过条目数上限时按 LRU 淘汰
+     */
+    @Test(timeout = 60000)
+    public void testTableCountCache() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setInt(ManisClient.MANIS_CLIENT_TABLECOUNT_CACHE_SIZE_KEY, 1);
+        conf.setInt(ManisClient.MANIS_CLIENT_TABLECOUNT_CACHE_TTL_KEY, 60000);
+        manisDb.getRpcServer().putTable("db1", "tb2", 200);
+        ManisClient client = new ManisClient(uri, conf);
+        try {
+            CachingClientProtocol cache = (CachingClientProtocol) client.manisDb;
+            assertEquals(100, client.getTableCount("db1", "tb1"));
+            manisDb.getRpcServer().putTable("db1", "tb1", 150);
+            assertEquals(100, client.getTableCount("db1", "tb1"));
+            // tb2 淘汰 tb1
+            assertEquals(200, client.getTableCount("db1", "tb2"));
+            assertEquals(150, client.getTableCount("db1", "tb1"));
+            assertEquals(1, cache.getHitCount());
+            assertEquals(3, cache.getMissCount());
+            assertEquals(2, cache.getEvictionCount());
+            assertEquals(1, cache.size());
+        } finally {
+            client.close();
+        }
+
+        conf.setInt(ManisClient.MANIS_CLIENT_TABLECOUNT_CACHE_TTL_KEY, 100);
+        client = new ManisClient(uri, conf);
+        try {
+            assertEquals(150, client.getTableCount("db1", "tb1"));
+            manisDb.getRpcServer().putTable("db1", "tb1", 180);
+            Thread.sleep(200);
+            assertEquals(180, client.getTableCount("db1", "tb1"));
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * 同一进程中的 ManisClient 和 Manager 使用不同的协议和 RpcEngine，共享到 ManisDb 的同一个连接
+     */
+    @Test(timeout = 60000)
+    public void testClientAndManagerShareConnection() throws Exception {
+        Configuration conf = new Configuration();
+        ManisClient client = new ManisClient(uri, conf);
+        Manager manager = new Manager(uri, conf);
+        try {
+            assertEquals(100, client.getTableCount("db1", "tb1"));
+            assertTrue(manager.setMaxTable(10));
+            assertEquals(100, (int) client.getTableCountAsync("db1", "tb1").get());
+            assertFalse(manager.setMaxTable(0));
+            assertEquals(1, manisDb.getRpcServer().getNumOpenConnections());
+        } finally {
+            client.close();
+            manager.close();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.rchen102.io;
+
+import com.rchen102.util.ProtoUtil;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class TestObjectWritable {
+
+    @Test
+    public void testPrimitive() throws IOException {
+        ObjectWritable ow = roundTrip(int.class, 42);
+        assertEquals(int.class, ow.getDeclaredClass());
+        assertEquals(42, ow.get());
+
+        ow = roundTrip(boolean.class, true);
+        assertEquals(true, ow.get());
+
+        ow = roundTrip(void.class, null);
+        assertEquals(void.class, ow.getDeclaredClass());
+        assertNull(ow.get());
+    }
+
+    @Test
+    public void testString() throws IOException {
+        assertEquals("manis", roundTrip(String.class, "manis").get());
+        assertNull(roundTrip(String.class, null).get());
+    }
+
+    @Test
+    public void testArray() throws IOException {
+        assertArrayEquals(new int[]{1, 2, 3}, (int[]) roundTrip(int[].class, new int[]{1, 2, 3}).get());
+        assertArrayEquals(new byte[]{4, 5}, (byte[]) roundTrip(byte[].class, new byte[]{4, 5}).get());
+        String[] strings = new String[]{"a", null, "c"};
+        assertArrayEquals(strings, (String[]) roundTrip(String[].class, strings).get());
+    }
+
+    @Test
+    public void testObject() throws IOException {
+        // 声明类型为 Object 时按实际类型编码
+        ObjectWritable ow = roundTrip(Object.class, 7L);
+        assertEquals(Object.class, ow.getDeclaredClass());
+        assertEquals(7L, ow.get());
+
+        ow = roundTrip(IntWritable.class, new IntWritable(9));
+        assertEquals(IntWritable.class, ow.getDeclaredClass());
+        assertEquals(9, ((IntWritable) ow.get()).value);
+
+        assertEquals(new Date(0), roundTrip(Date.class, new Date(0)).get());
+    }
+
+    /**
+     * 来自网络的非法数据：类型不是 Writable、长度为负数或过大
+     */
+    @Test
+    public void testInvalid() throws IOException {
+        // 以 WRITABLE 编码，类名不是 Writable
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bo);
+        ObjectWritable.writeClass(out, Object.class);
+        out.writeByte(ObjectWritable.WRITABLE);
+        ObjectWritable.writeString(out, NotWritable.class.getName());
+        assertInvalid(bo.toByteArray());
+        assertEquals(0, NotWritable.created);
+
+        // 数组长度为负数
+        bo = new ByteArrayOutputStream();
+        out = new DataOutputStream(bo);
+        ObjectWritable.writeClass(out, int[].class);
+        out.writeByte(ObjectWritable.ARRAY);
+        ObjectWritable.writeClass(out, int.class);
+        ProtoUtil.writeRawVarInt32(out, -1);
+        assertInvalid(bo.toByteArray());
+
+        // 字符串长度过大
+        bo = new ByteArrayOutputStream();
+        out = new DataOutputStream(bo);
+        ObjectWritable.writeClass(out, String.class);
+        out.writeByte(ObjectWritable.STRING);
+        ProtoUtil.writeRawVarInt32(out, Integer.MAX_VALUE);
+        assertInvalid(bo.toByteArray());
+    }
+
+    private static ObjectWritable roundTrip(Class<?> declaredClass, Object instance)
+            throws IOException {
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        new ObjectWritable(declaredClass, instance).write(new DataOutputStream(bo));
+
+        ObjectWritable ow = new ObjectWritable();
+        ow.readFields(new DataInputStream(new ByteArrayInputStream(bo.toByteArray())));
+        return ow;
+    }
+
+    private static void assertInvalid(byte[] data) {
+        try {
+            new ObjectWritable().readFields(new DataInputStream(new ByteArrayInputStream(data)));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // 预期的异常
+        }
+    }
+
+    public static class IntWritable implements Writable {
+        private int value;
+
+        public IntWritable() {}
+
+        IntWritable(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(value);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            value = in.readInt();
+        }
+    }
+
+    public static class NotWritable {
+        static int created = 0;
+
+        public NotWritable() {
+            created++;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.rchen102.io.compress;
+
+import com.rchen102.conf.Configuration;
+import com.rchen102.io.DataOutputBuffer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestCodecFactory {
+
+    @Test
+    public void testDeflate() throws IOException {
+        CodecFactory factory = new CodecFactory(new Configuration());
+        Codec codec = factory.getCodec(DeflateCodec.NAME);
+        assertNull(factory.getCodec("unknown"));
+
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 17);
+        }
+        DataOutputBuffer out = new DataOutputBuffer();
+        out.writeInt(0);
+        assertTrue(CodecFactory.compress(codec, data, 0, data.length, out));
+        // 跳过前面的 4 字节
+        assertArrayEquals(data, CodecFactory.decompress(codec, out.getData(), 4,
+                out.getLength() - 4, data.length));
+
+        // 长度超过上限
+        try {
+            CodecFactory.decompress(codec, out.getData(), 4, out.getLength() - 4, data.length - 1);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // 预期的异常
+        }
+        // 数据不完整
+        try {
+            CodecFactory.decompress(codec, out.getData(), 4, out.getLength() - 10, data.length);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // 预期的异常
+        }
+    }
+
+    /**
+     * 随机数据压缩后不会变小
+     */
+    @Test
+    public void testIncompressible() throws IOException {
+        Codec codec = new DeflateCodec();
+        byte[] data = new byte[10000];
+        new Random(0).nextBytes(data);
+        DataOutputBuffer out = new DataOutputBuffer();
+        assertFalse(CodecFactory.compress(codec, data, 0, data.length, out));
+        assertTrue(Arrays.equals(data, CodecFactory.decompress(codec, out.getData(), 0,
+                out.getLength(), data.length)));
+    }
+}
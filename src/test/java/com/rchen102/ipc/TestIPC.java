@@ -0,0 +1,584 @@
+package com.rchen102.ipc;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.rchen102.conf.CommonConfigurationKeysPublic;
+import com.rchen102.conf.Configuration;
+import com.rchen102.io.Writable;
+import com.rchen102.ipc.metrics.ClientStatsMXBean;
+import com.rchen102.ipc.metrics.ConnectionStatsMXBean;
+import com.rchen102.ipc.metrics.MBeans;
+import com.rchen102.ipc.protobuf.RpcHeaderProtos.RpcRequestHeaderProto;
+import com.rchen102.ipc.protobuf.RpcHeaderProtos.RpcResponseHeaderProto;
+import com.rchen102.net.NetUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.net.SocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 使用一个简单的 stub 服务端测试 {@link Client}
+ * stub 服务端按照 RpcHeader.proto 中定义的格式读取请求，并将请求参数原样返回
+ */
+public class TestIPC {
+    /** 参数为该值时，stub 服务端返回 ERROR 响应 */
+    private static final long ERROR_PARAM = -1;
+
+    private StubServer server;
+    private Configuration conf;
+
+    /**
+     * 测试使用的 Writable，仅包含一个 long 值
+     */
+    public static class LongWritable implements Writable {
+        private long value;
+
+        public LongWritable() {}
+
+        public LongWritable(long value) {
+            this.value = value;
+        }
+
+        public long get() {
+            return value;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            out.writeLong(value);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            value = in.readLong();
+        }
+    }
+
+    /**
+     * stub 服务端，每个连接使用一个线程处理
+     */
+    static class StubServer extends Thread {
+        private final ServerSocket serverSocket;
+        final AtomicInteger connectionCount = new AtomicInteger();
+        /** 被客户端关闭的连接数 */
+        final AtomicInteger closedCount = new AtomicInteger();
+        /** 收到的不是 RPC_FINAL_PACKET 的 frame 数 */
+        final AtomicInteger nonFinalPackets = new AtomicInteger();
+
+        StubServer() throws IOException {
+            serverSocket = new ServerSocket(0);
+            setDaemon(true);
+        }
+
+        InetSocketAddress getAddress() {
+            return new InetSocketAddress("localhost", serverSocket.getLocalPort());
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    connectionCount.incrementAndGet();
+                    Thread handler = new Thread() {
+                        @Override
+                        public void run() {
+                            handle(socket);
+                        }
+                    };
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void handle(Socket socket) {
+            try {
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream()));
+
+                // 连接头："mrpc" + version + service class + auth protocol
+                byte[] connectionHeader = new byte[7];
+                in.readFully(connectionHeader);
+
+                while (true) {
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    DataInputStream request = new DataInputStream(new ByteArrayInputStream(data));
+                    RpcRequestHeader header = RpcRequestHeader.readFrom(request);
+                    if (header.getRpcOp() != RpcRequestHeaderProto.OperationProto.RPC_FINAL_PACKET) {
+                        nonFinalPackets.incrementAndGet();
+                    }
+                    if (header.getCallId() == RpcConstants.CONNECTION_CONTEXT_CALL_ID) {
+                        continue;
+                    }
+
+                    LongWritable param = new LongWritable();
+                    param.readFields(request);
+
+                    RpcResponseHeaderProto.Builder responseHeader = RpcResponseHeaderProto.newBuilder()
+                            .setCallId(header.getCallId());
+                    if (param.get() == ERROR_PARAM) {
+                        responseHeader.setStatus(RpcResponseHeaderProto.RpcStatusProto.ERROR)
+                                .setExceptionClassName(IOException.class.getName())
+                                .setErrorMsg("error param");
+                    } else {
+                        responseHeader.setStatus(RpcResponseHeaderProto.RpcStatusProto.SUCCESS);
+                    }
+
+                    ByteArrayOutputStream bo = new ByteArrayOutputStream();
+                    DataOutputStream response = new DataOutputStream(bo);
+                    responseHeader.build().writeDelimitedTo(response);
+                    if (param.get() != ERROR_PARAM) {
+                        param.write(response);
+                    }
+                    out.writeInt(bo.size());
+                    out.write(bo.toByteArray());
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // 客户端关闭连接
+                closedCount.incrementAndGet();
+            }
+        }
+
+        void shutdown() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        conf = new Configuration();
+        server = new StubServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void testSerial() throws IOException {
+        Client client = new Client(LongWritable.class, conf, NetUtils.getDefaultSocketFactory(conf));
+        Client.ConnectionId remoteId = new Client.ConnectionId(
+                server.getAddress(), TestIPC.class, 0, conf);
+        try {
+            for (long i = 0; i < 10; i++) {
+                LongWritable value = (LongWritable) client.call(
+                        RPC.RpcKind.RPC_SERIALIZABLE, new LongWritable(i), remoteId);
+                assertEquals(i, value.get());
+            }
+        } finally {
+            client.stop();
+        }
+    }
+
+    /**
+     * 多个线程同时在同一个连接上发送请求，每个线程都应该拿到自己的响应
+     */
+    @Test(timeout = 60000)
+    public void testParallel() throws Exception {
+        runParallel(conf);
+    }
+
+    /**
+     * 使用 NIO 传输，多个 Client 共享 selector 线程
+     */
+    @Test(timeout = 60000)
+    public void testParallelNio() throws Exception {
+        conf.setBoolean(CommonConfigurationKeysPublic.IPC_CLIENT_NIO_ENABLED_KEY, true);
+        runParallel(conf);
+        testRemoteError();
+    }
+
+    /**
+     * NIO 传输需要 SocketFactory 创建关联 channel 的 socket，否则构造 Client 时失败
+     */
+    @Test
+    public void testNioRequiresChannelSocketFactory() {
+        conf.setBoolean(CommonConfigurationKeysPublic.IPC_CLIENT_NIO_ENABLED_KEY, true);
+        try {
+            new Client(LongWritable.class, conf, SocketFactory.getDefault());
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(),
+                    e.getMessage().contains(CommonConfigurationKeysPublic.IPC_CLIENT_NIO_ENABLED_KEY));
+        }
+    }
+
+    /**
+     * 直接从接收缓冲区解析响应
+     */
+    @Test(timeout = 60000)
+    public void testParallelZeroCopy() throws Exception {
+        conf.setBoolean(CommonConfigurationKeysPublic.IPC_CLIENT_RESPONSE_ZEROCOPY_KEY, true);
+        runParallel(conf);
+        conf.setBoolean(CommonConfigurationKeysPublic.IPC_CLIENT_NIO_ENABLED_KEY, true);
+        runParallel(conf);
+    }
+
+    private void runParallel(Configuration conf) throws Exception {
+        final Client client = new Client(LongWritable.class, conf, NetUtils.getDefaultSocketFactory(conf));
+        final Client.ConnectionId remoteId = new Client.ConnectionId(
+                server.getAddress(), TestIPC.class, 0, conf);
+        final int threadNum = 10;
+        final int callNum = 200;
+        final List<Throwable> errors = new ArrayList<>();
+        int connectionsBefore = server.connectionCount.get();
+
+        List<Thread> callers = new ArrayList<>();
+        for (int t = 0; t < threadNum; t++) {
+            final long base = t * callNum;
+            Thread caller = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (long i = base; i < base + callNum; i++) {
+                            LongWritable value = (LongWritable) client.call(
+                                    RPC.RpcKind.RPC_SERIALIZABLE, new LongWritable(i), remoteId);
+                            assertEquals(i, value.get());
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            callers.add(caller);
+            caller.start();
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        client.stop();
+
+        assertTrue("Unexpected errors: " + errors, errors.isEmpty());
+        // 所有调用复用同一个连接
+        assertEquals(connectionsBefore + 1, server.connectionCount.get());
+    }
+
+    /**
+     * 一个线程发出大量异步调用，不等待响应
+     */
+    @Test(timeout = 60000)
+    public void testAsync() throws Exception {
+        Client client = new Client(LongWritable.class, conf, NetUtils.getDefaultSocketFactory(conf));
+        Client.ConnectionId remoteId = new Client.ConnectionId(
+                server.getAddress(), TestIPC.class, 0, conf);
+        try {
+            List<ListenableFuture<Writable>> futures = new ArrayList<>();
+            for (long i = 0; i < 1000; i++) {
+                futures.add(client.callAsync(RPC.RpcKind.RPC_SERIALIZABLE,
+                        new LongWritable(i), remoteId));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals(i, ((LongWritable) futures.get(i).get()).get());
+            }
+
+            try {
+                client.callAsync(RPC.RpcKind.RPC_SERIALIZABLE,
+                        new LongWritable(ERROR_PARAM), remoteId).get();
+                fail("Expected RemoteException");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RemoteException);
+            }
+        } finally {
+            client.stop();
+        }
+    }
+
+    /**
+     * 每个 ConnectionId 多个连接：串行调用复用同一个空闲连接，
+     * 大量并发的异步调用使用所有的连接
+     */
+    @Test(timeout = 60000)
+    public void testConnectionStripes() throws Exception {
+        conf.setInt(CommonConfigurationKeysPublic.IPC_CLIENT_CONNECTION_STRIPES_KEY, 3);
+        Client client = new Client(LongWritable.class, conf, NetUtils.getDefaultSocketFactory(conf));
+        Client.ConnectionId remoteId = new Client.ConnectionId(
+                server.getAddress(), TestIPC.class, 0, conf);
+        try {
+            for (long i = 0; i < 10; i++) {
+                LongWritable value = (LongWritable) client.call(
+                        RPC.RpcKind.RPC_SERIALIZABLE, new LongWritable(i), remoteId);
+                assertEquals(i, value.get());
+            }
+            assertEquals(1, server.connectionCount.get());
+
+            List<ListenableFuture<Writable>> futures = new ArrayList<>();
+            for (long i = 0; i < 1000; i++) {
+                futures.add(client.callAsync(RPC.RpcKind.RPC_SERIALIZABLE,
+                        new LongWritable(i), remoteId));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals(i, ((LongWritable) futures.get(i).get()).get());
+            }
+            assertTrue("Too many connections: " + server.connectionCount.get(),
+                    server.connectionCount.get() <= 3);
+            assertTrue("Connections are not striped",
+                    server.connectionCount.get() > 1);
+        } finally {
+            client.stop();
+        }
+    }
+
+    /**
+     * 空闲超过 maxIdleTime 的连接由回收线程关闭，之后的调用重新建立连接
+     */
+    @Test(timeout = 60000)
+    public void testIdleConnectionReaped() throws Exception {
+        conf.setInt(CommonConfigurationKeysPublic.IPC_CLIENT_CONNECTION_MAXIDLETIME_KEY, 200);
+        checkIdleConnectionReaped(conf);
+        conf.setBoolean(CommonConfigurationKeysPublic.IPC_CLIENT_NIO_ENABLED_KEY, true);
+        checkIdleConnectionReaped(conf);
+    }
+
+    private void checkIdleConnectionReaped(Configuration conf) throws Exception {
+        Client client = new Client(LongWritable.class, conf, NetUtils.getDefaultSocketFactory(conf));
+        Client.ConnectionId remoteId = new Client.ConnectionId(
+                server.getAddress(), TestIPC.class, 0, conf);
+        int connectionsBefore = server.connectionCount.get();
+        int closedBefore = server.closedCount.get();
+        try {
+            assertEquals(1, ((LongWritable) client.call(
+                    RPC.RpcKind.RPC_SERIALIZABLE, new LongWritable(1), remoteId)).get());
+            while (server.closedCount.get() == closedBefore) {
+                Thread.sleep(100);
+            }
+            assertEquals(2, ((LongWritable) client.call(
+                    RPC.RpcKind.RPC_SERIALIZABLE, new LongWritable(2), remoteId)).get());
+            assertEquals(connectionsBefore + 2, server.connectionCount.get());
+            ConnectionStatsMXBean stats = client.getConnectionStats(server.getAddress());
+            assertEquals(2, stats.getConnectionsOpened());
+            assertEquals(1, stats.getReconnects());
+        } finally {
+            client.stop();
+        }
+    }
+
+    /**
+     * 长度未知的小请求（Serializable）仍然作为一个 RPC_FINAL_PACKET frame 发送
+     */
+    @Test(timeout = 60000)
+    public void testSmallRequestSingleFrame() throws Exception {
+        Client client = new Client(LongWritable.class, conf, NetUtils.getDefaultSocketFactory(conf));
+        Client.ConnectionId remoteId = new Client.ConnectionId(
+                server.getAddress(), TestIPC.class, 0, conf);
+        try {
+            for (long i = 0; i < 10; i++) {
+                LongWritable value = (LongWritable) client.call(
+                        RPC.RpcKind.RPC_SERIALIZABLE, new LongWritable(i), remoteId);
+                assertEquals(i, value.get());
+            }
+            // 连接上下文和十个请求
+            assertEquals(11L, client.getConnectionStats(server.getAddress()).getFramesSent());
+            assertEquals(0, server.nonFinalPackets.get());
+        } finally {
+            client.stop();
+        }
+    }
+
+    /**
+     * 一个 Client 的连接正在建立（持有连接的锁）时，共享的回收线程仍然能关闭其他 Client 的空闲连接
+     */
+    @Test(timeout = 60000)
+    public void testReapWhileConnecting() throws Exception {
+        final CountDownLatch connectStarted = new CountDownLatch(1);
+        final CountDownLatch releaseConnect = new CountDownLatch(1);
+        SocketFactory blockingFactory = new SocketFactory() {
+            @Override
+            public Socket createSocket() {
+                return new Socket() {
+                    @Override
+                    public void connect(SocketAddress endpoint, int timeout) throws IOException {
+                        connectStarted.countDown();
+                        try {
+                            releaseConnect.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        super.connect(endpoint, timeout);
+                    }
+                };
+            }
+
+            @Override
+            public Socket createSocket(String host, int port) throws IOException {
+                return createSocket(new InetSocketAddress(host, port));
+            }
+
+            @Override
+            public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                    throws IOException {
+                return createSocket(new InetSocketAddress(host, port));
+            }
+
+            @Override
+            public Socket createSocket(InetAddress host, int port) throws IOException {
+                return createSocket(new InetSocketAddress(host, port));
+            }
+
+            @Override
+            public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                                       int localPort) throws IOException {
+                return createSocket(new InetSocketAddress(address, port));
+            }
+
+            private Socket createSocket(InetSocketAddress endpoint) throws IOException {
+                Socket socket = createSocket();
+                socket.connect(endpoint);
+                return socket;
+            }
+        };
+        final Client blocked = new Client(LongWritable.class, conf, blockingFactory);
+        final Client.ConnectionId blockedId = new Client.ConnectionId(
+                server.getAddress(), TestIPC.class, 0, conf);
+        Thread caller = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    blocked.call(RPC.RpcKind.RPC_SERIALIZABLE, new LongWritable(1), blockedId);
+                } catch (IOException e) {
+                    // 连接释放后调用正常完成，这里不关心结果
+                }
+            }
+        };
+        caller.start();
+        connectStarted.await();
+
+        conf.setInt(CommonConfigurationKeysPublic.IPC_CLIENT_CONNECTION_MAXIDLETIME_KEY, 200);
+        try {
+            checkIdleConnectionReaped(conf);
+        } finally {
+            releaseConnect.countDown();
+            caller.join();
+            blocked.stop();
+        }
+    }
+
+    /**
+     * 连接全部关闭后，超过保留数量的空闲地址统计被移除，MBean 注销，汇总统计不变
+     */
+    @Test(timeout = 60000)
+    public void testIdleConnectionStatsRemoved() throws Exception {
+        conf.setInt(CommonConfigurationKeysPublic.IPC_CLIENT_CONNECTION_MAXIDLETIME_KEY, 200);
+        conf.setInt(CommonConfigurationKeysPublic.IPC_CLIENT_STATS_MAX_IDLE_ADDRESSES_KEY, 0);
+        Client client = new Client(LongWritable.class, conf, NetUtils.getDefaultSocketFactory(conf));
+        Client.ConnectionId remoteId = new Client.ConnectionId(
+                server.getAddress(), TestIPC.class, 0, conf);
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pattern = new ObjectName(MBeans.DOMAIN + ":type=ClientConnection,remote="
+                + ObjectName.quote(server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort()) + ",*");
+        int closedBefore = server.closedCount.get();
+        try {
+            client.call(RPC.RpcKind.RPC_SERIALIZABLE, new LongWritable(1), remoteId);
+            assertEquals(1, mbeanServer.queryNames(pattern, null).size());
+            while (server.closedCount.get() == closedBefore) {
+                Thread.sleep(100);
+            }
+            // 连接标记关闭时释放统计，早于 socket 关闭
+            assertNull(client.getConnectionStats(server.getAddress()));
+            assertTrue(mbeanServer.queryNames(pattern, null).isEmpty());
+            ClientStatsMXBean clientStats = client.getClientStats();
+            assertEquals(0, clientStats.getRemoteAddressCount());
+            assertEquals(2L, clientStats.getFramesSent());
+            assertEquals(1L, clientStats.getConnectionsOpened());
+        } finally {
+            client.stop();
+        }
+    }
+
+    @Test
+    public void testConnectionStats() throws Exception {
+        Client client = new Client(LongWritable.class, conf, NetUtils.getDefaultSocketFactory(conf));
+        Client.ConnectionId remoteId = new Client.ConnectionId(
+                server.getAddress(), TestIPC.class, 0, conf);
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pattern = new ObjectName(MBeans.DOMAIN + ":type=ClientConnection,remote="
+                + ObjectName.quote(server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort()) + ",*");
+        try {
+            for (int i = 0; i < 2; i++) {
+                client.call(RPC.RpcKind.RPC_SERIALIZABLE, new LongWritable(i), remoteId);
+            }
+            Set<ObjectName> names = mbeanServer.queryNames(pattern, null);
+            assertEquals(1, names.size());
+            ObjectName name = names.iterator().next();
+            assertEquals(1, mbeanServer.getAttribute(name, "OpenConnections"));
+            assertEquals(0, mbeanServer.getAttribute(name, "OutstandingCalls"));
+            assertEquals(1L, mbeanServer.getAttribute(name, "ConnectionsOpened"));
+            assertEquals(0L, mbeanServer.getAttribute(name, "Reconnects"));
+            // 连接上下文和两个请求
+            assertEquals(3L, mbeanServer.getAttribute(name, "FramesSent"));
+            assertEquals(2L, mbeanServer.getAttribute(name, "FramesReceived"));
+
+            ClientStatsMXBean clientStats = client.getClientStats();
+            assertEquals(1, clientStats.getRemoteAddressCount());
+            assertEquals(mbeanServer.getAttribute(name, "BytesSent"),
+                    clientStats.getBytesSent());
+            assertEquals(mbeanServer.getAttribute(name, "BytesReceived"),
+                    clientStats.getBytesReceived());
+            assertTrue(clientStats.getBytesReceived() > 2 * 8);
+        } finally {
+            client.stop();
+        }
+        assertTrue(mbeanServer.queryNames(pattern, null).isEmpty());
+    }
+
+    @Test
+    public void testRemoteError() throws IOException {
+        Client client = new Client(LongWritable.class, conf, NetUtils.getDefaultSocketFactory(conf));
+        Client.ConnectionId remoteId = new Client.ConnectionId(
+                server.getAddress(), TestIPC.class, 0, conf);
+        try {
+            try {
+                client.call(RPC.RpcKind.RPC_SERIALIZABLE, new LongWritable(ERROR_PARAM), remoteId);
+                fail("Expected RemoteException");
+            } catch (RemoteException e) {
+                assertEquals(IOException.class.getName(), e.getClassName());
+            }
+            // ERROR 状态不影响连接上的后续调用
+            LongWritable value = (LongWritable) client.call(
+                    RPC.RpcKind.RPC_SERIALIZABLE, new LongWritable(1), remoteId);
+            assertEquals(1, value.get());
+        } finally {
+            client.stop();
+        }
+    }
+}
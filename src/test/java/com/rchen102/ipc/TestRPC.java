@@ -0,0 +1,881 @@
+package com.rchen102.ipc;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+import com.rchen102.conf.CommonConfigurationKeysPublic;
+import com.rchen102.conf.Configuration;
+import com.rchen102.io.ByteArrayPool;
+import com.rchen102.io.DataOutputBuffer;
+import com.rchen102.io.ObjectWritable;
+import com.rchen102.ipc.metrics.MethodMetrics;
+import com.rchen102.ipc.metrics.RpcMetrics;
+import com.rchen102.ipc.protobuf.RpcHeaderProtos.RpcKindProto;
+import com.rchen102.ipc.protobuf.RpcHeaderProtos.RpcRequestHeaderProto.OperationProto;
+import com.rchen102.ipc.protobuf.RpcHeaderProtos.RpcResponseHeaderProto;
+import com.rchen102.net.NetUtils;
+import com.rchen102.protocol.ManisConstants;
+import com.rchen102.protocol.proto.ClientManisDbProtocolProtos.ClientManisDbProtocol;
+import com.rchen102.protocol.proto.ClientManisDbProtocolProtos.GetTableCountRequestProto;
+import com.rchen102.protocol.proto.ClientManisDbProtocolProtos.GetTableCountResponseProto;
+import com.rchen102.protocol.proto.ClientManisDbProtocolProtos.GetTableCountsRequestProto;
+import com.rchen102.protocol.proto.ClientManisDbProtocolProtos.GetTableCountsResponseProto;
+import com.rchen102.protocol.proto.ClientManisDbProtocolProtos.TableNameProto;
+import com.rchen102.protocolPB.ClientManisDbProtocolPB;
+import com.rchen102.protocolPB.ClientManisDbProtocolPBAsync;
+import com.rchen102.util.ProtoUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.SocketFactory;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 使用 {@link RPC.Builder} 构造的服务端测试 RPC 调用
+ */
+public class TestRPC {
+    private static final int RPC_TIMEOUT = 10000;
+
+    public interface TestProtocol {
+        long versionID = 1L;
+
+        String echo(String value) throws IOException;
+
+        int add(int a, int b) throws IOException;
+
+        int[] reverse(int[] values) throws IOException;
+
+        void error() throws IOException;
+    }
+
+    public interface TestProtocol2 {
+        long versionID = 1L;
+
+        long ping(long value) throws IOException;
+    }
+
+    /**
+     * 与 TestProtocol 同名同版本，但包含服务端没有的方法
+     */
+    @ProtocolInfo(protocolName = "com.rchen102.ipc.TestRPC$TestProtocol", protocolVersion = 1)
+    public interface TestProtocolUnknownMethod {
+        int add(long a, long b) throws IOException;
+
+        void unknown() throws IOException;
+    }
+
+    /**
+     * 与 ClientManisDbProtocolPB 同名同版本，但返回类型不是具体的 Message，客户端无法解析响应
+     */
+    @ProtocolInfo(protocolName = ManisConstants.CLIENT_MANISDB_PROTOCOL_NAME, protocolVersion = 1)
+    public interface TestProtocolBadReturnType {
+        Message getTableCount(RpcController controller, GetTableCountRequestProto request)
+                throws ServiceException;
+    }
+
+    public static class TestImpl implements TestProtocol, TestProtocol2 {
+        @Override
+        public long ping(long value) {
+            return value;
+        }
+
+        @Override
+        public String echo(String value) {
+            return value;
+        }
+
+        @Override
+        public int add(int a, int b) {
+            return a + b;
+        }
+
+        @Override
+        public int[] reverse(int[] values) {
+            int[] result = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+                result[i] = values[values.length - 1 - i];
+            }
+            return result;
+        }
+
+        @Override
+        public void error() throws IOException {
+            throw new IOException("test error");
+        }
+    }
+
+    private Configuration conf;
+    private RPC.Server server;
+    private InetSocketAddress address;
+
+    @Before
+    public void setUp() throws IOException {
+        conf = new Configuration();
+        server = new RPC.Builder(conf).setProtocol(TestProtocol.class)
+                .setInstance(new TestImpl()).setBindAddress("localhost")
+                .setNumHandlers(4).setNumReaders(2).build();
+        server.addProtocol(RPC.RpcKind.RPC_SERIALIZABLE, TestProtocol2.class, new TestImpl());
+        server.start();
+        address = server.getListenerAddress();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private TestProtocol getProxy() throws IOException {
+        return RPC.getProtocolProxy(TestProtocol.class, TestProtocol.versionID, address,
+                conf, NetUtils.getDefaultSocketFactory(conf), RPC_TIMEOUT);
+    }
+
+    @Test(timeout = 60000)
+    public void testCalls() throws IOException {
+        TestProtocol proxy = getProxy();
+        try {
+            assertEquals("foo", proxy.echo("foo"));
+            assertEquals(null, proxy.echo(null));
+            assertEquals(3, proxy.add(1, 2));
+            assertArrayEquals(new int[]{3, 2, 1}, proxy.reverse(new int[]{1, 2, 3}));
+            try {
+                proxy.error();
+                fail("Expected RemoteException");
+            } catch (RemoteException e) {
+                assertEquals(IOException.class.getName(), e.getClassName());
+                assertEquals("test error", e.getMessage());
+            }
+            // 出错后连接仍然可用
+            assertEquals(5, proxy.add(2, 3));
+        } finally {
+            RPC.stopProxy(proxy);
+        }
+    }
+
+    /**
+     * 代理记录每个方法的调用次数、失败次数、延迟和字节数
+     */
+    @Test(timeout = 60000)
+    public void testMetrics() throws IOException {
+        String protocolName = RPC.getProtocolName(TestProtocol.class);
+        MethodMetrics.Snapshot echoBefore = getMetrics(protocolName, "echo");
+        MethodMetrics.Snapshot errorBefore = getMetrics(protocolName, "error");
+        TestProtocol proxy = getProxy();
+        try {
+            for (int i = 0; i < 10; i++) {
+                assertEquals("foo", proxy.echo("foo"));
+            }
+            try {
+                proxy.error();
+                fail("Expected RemoteException");
+            } catch (RemoteException e) {
+                // 预期的异常
+            }
+        } finally {
+            RPC.stopProxy(proxy);
+        }
+
+        MethodMetrics.Snapshot echo = getMetrics(protocolName, "echo");
+        assertEquals(10, echo.getCalls() - echoBefore.getCalls());
+        assertEquals(0, echo.getErrors() - echoBefore.getErrors());
+        assertEquals(10, echo.getLatency().getCount() - echoBefore.getLatency().getCount());
+        assertTrue(echo.getRequestBytes() - echoBefore.getRequestBytes() > 0);
+        assertTrue(echo.getResponseBytes() - echoBefore.getResponseBytes() > 0);
+        assertTrue(echo.getLatency().getPercentile(50) > 0);
+
+        MethodMetrics.Snapshot error = getMetrics(protocolName, "error");
+        assertEquals(1, error.getCalls() - errorBefore.getCalls());
+        assertEquals(1, error.getErrors() - errorBefore.getErrors());
+    }
+
+    private static MethodMetrics.Snapshot getMetrics(String protocolName, String methodName) {
+        MethodMetrics.Snapshot snapshot =
+                RPC.getMetricsSnapshot().get(RpcMetrics.key(protocolName, methodName));
+        return snapshot != null ? snapshot :
+                RpcMetrics.getMethodMetrics(protocolName, methodName).snapshot();
+    }
+
+    /**
+     * 大量连接同时调用，每个代理使用一个单独的连接
+     */
+    @Test(timeout = 120000)
+    public void testManyConnections() throws Exception {
+        final int connectionNum = 100;
+        final int callNum = 20;
+        final List<Throwable> errors = new ArrayList<>();
+        List<Thread> callers = new ArrayList<>();
+        for (int t = 0; t < connectionNum; t++) {
+            final int base = t;
+            Thread caller = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        TestProtocol proxy = getProxy();
+                        try {
+                            for (int i = 0; i < callNum; i++) {
+                                assertEquals(base + i, proxy.add(base, i));
+                            }
+                        } finally {
+                            RPC.stopProxy(proxy);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            callers.add(caller);
+            caller.start();
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        assertTrue("Unexpected errors: " + errors, errors.isEmpty());
+    }
+
+    /**
+     * 配置相同的代理共享 Client 和连接；超时时间不同的代理使用单独的连接，
+     * 连接条数等连接相关配置不同的代理使用单独的 Client
+     */
+    @Test(timeout = 60000)
+    public void testConnectionSharing() throws IOException {
+        TestProtocol proxy1 = getProxy();
+        TestProtocol proxy2 = getProxy();
+        TestProtocol proxy3 = RPC.getProtocolProxy(TestProtocol.class, TestProtocol.versionID,
+                address, conf, SocketFactory.getDefault(), RPC_TIMEOUT + 1);
+        Configuration stripedConf = new Configuration();
+        stripedConf.setInt(CommonConfigurationKeysPublic.IPC_CLIENT_CONNECTION_STRIPES_KEY, 2);
+        TestProtocol proxy4 = RPC.getProtocolProxy(TestProtocol.class, TestProtocol.versionID,
+                address, stripedConf, SocketFactory.getDefault(), RPC_TIMEOUT);
+        try {
+            assertEquals(3, proxy1.add(1, 2));
+            assertEquals(5, proxy2.add(2, 3));
+            assertEquals(1, server.getNumOpenConnections());
+
+            assertEquals(7, proxy3.add(3, 4));
+            assertEquals(2, server.getNumOpenConnections());
+
+            assertEquals(9, proxy4.add(4, 5));
+            assertEquals(3, server.getNumOpenConnections());
+        } finally {
+            RPC.stopProxy(proxy1);
+            RPC.stopProxy(proxy2);
+            RPC.stopProxy(proxy3);
+            RPC.stopProxy(proxy4);
+        }
+    }
+
+    /**
+     * maxidletime <= 0 时客户端不关闭空闲连接，服务端也不关闭
+     */
+    @Test(timeout = 60000)
+    public void testIdleConnectionKeptWhenMaxIdleTimeDisabled() throws Exception {
+        conf.setInt(CommonConfigurationKeysPublic.IPC_CLIENT_CONNECTION_MAXIDLETIME_KEY, 0);
+        RPC.Server idleServer = new RPC.Builder(conf).setProtocol(TestProtocol.class)
+                .setInstance(new TestImpl()).setBindAddress("localhost").build();
+        idleServer.start();
+        TestProtocol proxy = RPC.getProtocolProxy(TestProtocol.class, TestProtocol.versionID,
+                idleServer.getListenerAddress(), conf, SocketFactory.getDefault(), RPC_TIMEOUT);
+        try {
+            assertEquals(3, proxy.add(1, 2));
+            // 服务端的 Listener 每秒检查一次空闲连接
+            Thread.sleep(2500);
+            assertEquals(1, idleServer.getNumOpenConnections());
+            assertEquals(7, proxy.add(3, 4));
+        } finally {
+            RPC.stopProxy(proxy);
+            idleServer.stop();
+        }
+    }
+
+    /**
+     * 不同协议的代理共享同一个连接，协议在连接上绑定为编号
+     */
+    @Test(timeout = 60000)
+    public void testMultiplexProtocols() throws IOException {
+        TestProtocol proxy = getProxy();
+        TestProtocol2 proxy2 = RPC.getProtocolProxy(TestProtocol2.class, TestProtocol2.versionID,
+                address, conf, SocketFactory.getDefault(), RPC_TIMEOUT);
+        try {
+            assertEquals(3, proxy.add(1, 2));
+            assertEquals(7L, proxy2.ping(7L));
+            assertEquals("foo", proxy.echo("foo"));
+            assertEquals(8L, proxy2.ping(8L));
+            assertEquals(1, server.getNumOpenConnections());
+        } finally {
+            RPC.stopProxy(proxy);
+            RPC.stopProxy(proxy2);
+        }
+    }
+
+    /**
+     * 方法名或参数类型不匹配时，返回错误，连接仍然可用
+     */
+    @Test(timeout = 60000)
+    public void testUnknownMethod() throws IOException {
+        TestProtocolUnknownMethod proxy = RPC.getProtocolProxy(TestProtocolUnknownMethod.class,
+                1L, address, conf, SocketFactory.getDefault(), RPC_TIMEOUT);
+        try {
+            try {
+                proxy.unknown();
+                fail("Expected RemoteException");
+            } catch (RemoteException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Unknown method unknown"));
+            }
+            try {
+                proxy.add(1L, 2L);
+                fail("Expected RemoteException");
+            } catch (RemoteException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Unknown method add"));
+            }
+        } finally {
+            RPC.stopProxy(proxy);
+        }
+    }
+
+    /**
+     * 返回类型无法解析时，同步调用在发送请求之前失败
+     */
+    @Test(timeout = 60000)
+    public void testBadReturnTypeNotSent() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        ClientManisDbProtocol.BlockingInterface impl = new ClientManisDbProtocol.BlockingInterface() {
+            @Override
+            public GetTableCountResponseProto getTableCount(
+                    RpcController controller, GetTableCountRequestProto request) {
+                calls.incrementAndGet();
+                return GetTableCountResponseProto.newBuilder().setResult(1).build();
+            }
+
+            @Override
+            public GetTableCountsResponseProto getTableCounts(
+                    RpcController controller, GetTableCountsRequestProto request) {
+                calls.incrementAndGet();
+                return GetTableCountsResponseProto.getDefaultInstance();
+            }
+        };
+        RPC.setProtocolEngine(conf, ClientManisDbProtocolPB.class, ProtobufRpcEngine.class);
+        RPC.setProtocolEngine(conf, TestProtocolBadReturnType.class, ProtobufRpcEngine.class);
+        RPC.Server pbServer = new RPC.Builder(conf).setProtocol(ClientManisDbProtocolPB.class)
+                .setInstance(ClientManisDbProtocol.newReflectiveBlockingService(impl))
+                .setBindAddress("localhost").setNumHandlers(1).build();
+        pbServer.start();
+        TestProtocolBadReturnType proxy = RPC.getProtocolProxy(TestProtocolBadReturnType.class, 1,
+                pbServer.getListenerAddress(), conf, SocketFactory.getDefault(), RPC_TIMEOUT);
+        try {
+            proxy.getTableCount(null, GetTableCountRequestProto.newBuilder()
+                    .setDbName("db").setTbName("tb").build());
+            fail("Expected ServiceException");
+        } catch (ServiceException e) {
+            // 预期的异常
+        } finally {
+            RPC.stopProxy(proxy);
+            pbServer.stop();
+        }
+        assertEquals(0, calls.get());
+    }
+
+    /**
+     * 同一进程中幂等方法参数相同的并发调用合并为一次请求，参数不同的调用以及非幂等方法的调用不合并
+     */
+    @Test(timeout = 60000)
+    public void testCoalesceIdempotentCalls() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger batchCalls = new AtomicInteger();
+        final CountDownLatch batchRelease = new CountDownLatch(1);
+        ClientManisDbProtocol.BlockingInterface impl = new ClientManisDbProtocol.BlockingInterface() {
+            @Override
+            public GetTableCountResponseProto getTableCount(
+                    RpcController controller, GetTableCountRequestProto request) {
+                calls.incrementAndGet();
+                Uninterruptibles.awaitUninterruptibly(release);
+                return GetTableCountResponseProto.newBuilder()
+                        .setResult(request.getTbName().length()).build();
+            }
+
+            @Override
+            public GetTableCountsResponseProto getTableCounts(
+                    RpcController controller, GetTableCountsRequestProto request) {
+                batchCalls.incrementAndGet();
+                Uninterruptibles.awaitUninterruptibly(batchRelease);
+                GetTableCountsResponseProto.Builder builder = GetTableCountsResponseProto.newBuilder();
+                for (int i = 0; i < request.getTablesCount(); i++) {
+                    builder.addResults(request.getTables(i).getTbName().length());
+                }
+                return builder.build();
+            }
+        };
+        RPC.setProtocolEngine(conf, ClientManisDbProtocolPB.class, ProtobufRpcEngine.class);
+        RPC.setProtocolEngine(conf, ClientManisDbProtocolPBAsync.class, ProtobufRpcEngine.class);
+        RPC.Server pbServer = new RPC.Builder(conf).setProtocol(ClientManisDbProtocolPB.class)
+                .setInstance(ClientManisDbProtocol.newReflectiveBlockingService(impl))
+                .setBindAddress("localhost").setNumHandlers(4).build();
+        pbServer.start();
+        ClientManisDbProtocolPBAsync proxy = RPC.getProtocolProxy(
+                ClientManisDbProtocolPBAsync.class, 1, pbServer.getListenerAddress(),
+                conf, SocketFactory.getDefault(), RPC_TIMEOUT);
+        ClientManisDbProtocolPBAsync proxy2 = RPC.getProtocolProxy(
+                ClientManisDbProtocolPBAsync.class, 1, pbServer.getListenerAddress(),
+                conf, SocketFactory.getDefault(), RPC_TIMEOUT);
+        final ClientManisDbProtocolPB syncProxy = RPC.getProtocolProxy(
+                ClientManisDbProtocolPB.class, 1, pbServer.getListenerAddress(),
+                conf, SocketFactory.getDefault(), RPC_TIMEOUT);
+        try {
+            final GetTableCountRequestProto request = GetTableCountRequestProto.newBuilder()
+                    .setDbName("db").setTbName("tb1").build();
+            List<ListenableFuture<GetTableCountResponseProto>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(proxy.getTableCount(null, request));
+            }
+            ListenableFuture<GetTableCountResponseProto> other = proxy.getTableCount(null,
+                    GetTableCountRequestProto.newBuilder().setDbName("db").setTbName("tb22").build());
+            while (calls.get() < 2) {
+                Thread.sleep(10);
+            }
+            // 其他代理（包括同一协议的同步代理）的相同调用也合并
+            futures.add(proxy2.getTableCount(null, request));
+            final List<Integer> syncResults = new ArrayList<>();
+            Thread syncCaller = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        syncResults.add(syncProxy.getTableCount(null, request).getResult());
+                    } catch (ServiceException e) {
+                        // 结果为空，由主线程检查
+                    }
+                }
+            };
+            syncCaller.start();
+            while (syncCaller.getState() != Thread.State.WAITING) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(200);
+            assertEquals(2, calls.get());
+            release.countDown();
+
+            for (ListenableFuture<GetTableCountResponseProto> future : futures) {
+                assertEquals(3, future.get().getResult());
+            }
+            assertEquals(4, other.get().getResult());
+            syncCaller.join();
+            assertEquals(Collections.singletonList(3), syncResults);
+            assertEquals(2, calls.get());
+
+            // 调用完成后不再合并
+            assertEquals(3, proxy.getTableCount(null, GetTableCountRequestProto.newBuilder()
+                    .setDbName("db").setTbName("tb1").build()).get().getResult());
+            assertEquals(3, calls.get());
+
+            // getTableCounts 不是幂等方法，相同的并发调用不合并
+            GetTableCountsRequestProto batch = GetTableCountsRequestProto.newBuilder()
+                    .addTables(TableNameProto.newBuilder().setDbName("db").setTbName("tb1"))
+                    .build();
+            ListenableFuture<GetTableCountsResponseProto> batch1 = proxy.getTableCounts(null, batch);
+            ListenableFuture<GetTableCountsResponseProto> batch2 = proxy.getTableCounts(null, batch);
+            while (batchCalls.get() < 2) {
+                Thread.sleep(10);
+            }
+            batchRelease.countDown();
+            assertEquals(3, batch1.get().getResults(0));
+            assertEquals(3, batch2.get().getResults(0));
+        } finally {
+            RPC.stopProxy(proxy);
+            RPC.stopProxy(proxy2);
+            RPC.stopProxy(syncProxy);
+            pbServer.stop();
+        }
+    }
+
+    /**
+     * 客户端配置 codec 后，超过阈值的请求和响应压缩传输
+     */
+    @Test(timeout = 60000)
+    public void testCompression() throws IOException {
+        conf.set(CommonConfigurationKeysPublic.IPC_COMPRESSION_CODEC_KEY, "deflate");
+        conf.setInt(CommonConfigurationKeysPublic.IPC_COMPRESSION_THRESHOLD_KEY, 1024);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append("value-").append(i % 10);
+        }
+        String value = sb.toString();
+        String protocolName = RPC.getProtocolName(TestProtocol.class);
+        MethodMetrics.Snapshot before = getMetrics(protocolName, "echo");
+        TestProtocol proxy = getProxy();
+        try {
+            assertEquals(value, proxy.echo(value));
+            // 低于阈值的调用不压缩
+            assertEquals("foo", proxy.echo("foo"));
+        } finally {
+            RPC.stopProxy(proxy);
+        }
+        MethodMetrics.Snapshot echo = getMetrics(protocolName, "echo");
+        assertTrue(echo.getRequestBytes() - before.getRequestBytes() < value.length() / 2);
+        assertTrue(echo.getResponseBytes() - before.getResponseBytes() < value.length() / 2);
+    }
+
+    @Test(timeout = 60000)
+    public void testCompressionZeroCopy() throws IOException {
+        conf.setBoolean(CommonConfigurationKeysPublic.IPC_CLIENT_RESPONSE_ZEROCOPY_KEY, true);
+        testCompression();
+    }
+
+    /**
+     * 直接从接收缓冲区解析的响应只能解析一次，缓冲区归还后不能再解析
+     */
+    @Test
+    public void testResponseWrapperParsedOnce() throws IOException {
+        GetTableCountResponseProto message = GetTableCountResponseProto.newBuilder()
+                .setResult(5).build();
+        DataOutputBuffer buf = new DataOutputBuffer();
+        new ProtobufRpcEngine.RpcResponseWrapper(message).write(buf);
+        ByteArrayPool pool = new ByteArrayPool(1, 1024);
+
+        ProtobufRpcEngine.RpcResponseWrapper wrapper = new ProtobufRpcEngine.RpcResponseWrapper();
+        wrapper.setResponseBuffer(buf.getData(), 0, buf.getLength(), pool);
+        assertEquals(message, wrapper.getResponse(GetTableCountResponseProto.getDefaultInstance()));
+        try {
+            wrapper.getResponse(GetTableCountResponseProto.getDefaultInstance());
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // 预期的异常
+        }
+
+        wrapper = new ProtobufRpcEngine.RpcResponseWrapper();
+        wrapper.setResponseBuffer(buf.getData(), 0, buf.getLength(), pool);
+        wrapper.releaseResponseBuffer();
+        try {
+            wrapper.getResponse(GetTableCountResponseProto.getDefaultInstance());
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // 预期的异常
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testUnknownCompressionCodec() {
+        conf.set(CommonConfigurationKeysPublic.IPC_COMPRESSION_CODEC_KEY, "unknown");
+        try {
+            new Client(conf, SocketFactory.getDefault());
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // 预期的异常
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testNioClient() throws IOException {
+        conf.setBoolean(CommonConfigurationKeysPublic.IPC_CLIENT_NIO_ENABLED_KEY, true);
+        testCalls();
+    }
+
+    /**
+     * 连接头错误时，服务端直接关闭连接
+     */
+    @Test(timeout = 60000)
+    public void testBadConnectionHeader() throws IOException {
+        Socket socket = new Socket(address.getAddress(), address.getPort());
+        try {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write("xrpc".getBytes());
+            out.write(new byte[]{RpcConstants.CURRENT_VERSION, 0, 0});
+            out.flush();
+            assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * 没有连接上下文时发送请求，服务端返回 FATAL 响应并关闭连接
+     */
+    @Test(timeout = 60000)
+    public void testMissingConnectionContext() throws IOException {
+        Socket socket = new Socket(address.getAddress(), address.getPort());
+        try {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write(RpcConstants.HEADER.array());
+            out.write(new byte[]{RpcConstants.CURRENT_VERSION, 0, 0});
+            RpcRequestHeader header = new RpcRequestHeader(RpcKindProto.RPC_SERIALIZABLE,
+                    OperationProto.RPC_FINAL_PACKET, 7, RpcConstants.INVALID_RETRY_COUNT, 0);
+            out.writeInt(header.getLength());
+            header.write(out);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            in.readInt();
+            RpcResponseHeaderProto response = RpcResponseHeaderProto.parseDelimitedFrom(in);
+            assertEquals(7, response.getCallId());
+            assertEquals(RpcResponseHeaderProto.RpcStatusProto.FATAL, response.getStatus());
+            assertEquals(-1, in.read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * 请求头中的 rpcOp 无法识别时，返回 FATAL 并关闭连接
+     */
+    @Test(timeout = 60000)
+    public void testUnknownRpcOp() throws Exception {
+        Socket socket = new Socket(address.getAddress(), address.getPort());
+        try {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write(RpcConstants.HEADER.array());
+            out.write(new byte[]{RpcConstants.CURRENT_VERSION, 0, 0});
+            DataOutputBuffer context = new DataOutputBuffer();
+            ProtoUtil.makeIpcConnectionContext(
+                    RPC.getProtocolName(TestProtocol.class), ClientId.getClientId(),
+                    TestProtocol.versionID).writeDelimitedTo(context);
+            writeFrame(out, RpcConstants.CONNECTION_CONTEXT_CALL_ID, OperationProto.RPC_FINAL_PACKET,
+                    context.getData(), 0, context.getLength());
+
+            // 完整的请求，只是 rpcOp 未知
+            RpcRequestHeader header = new RpcRequestHeader(RpcKindProto.RPC_SERIALIZABLE,
+                    OperationProto.RPC_FINAL_PACKET, 7, RpcConstants.INVALID_RETRY_COUNT, 0);
+            DataOutputBuffer buf = new DataOutputBuffer();
+            header.write(buf);
+            buf.writeByte(RpcRequestHeader.RPC_OP_OFFSET, 100);
+            new SerializableRpcEngine.Invocation(
+                    TestProtocol.class.getMethod("add", int.class, int.class),
+                    new Object[]{1, 2}, TestProtocol.versionID).write(buf);
+            out.writeInt(buf.getLength());
+            out.write(buf.getData(), 0, buf.getLength());
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            in.readInt();
+            RpcResponseHeaderProto response = RpcResponseHeaderProto.parseDelimitedFrom(in);
+            assertEquals(7, response.getCallId());
+            assertEquals(RpcResponseHeaderProto.RpcStatusProto.FATAL, response.getStatus());
+            assertEquals(-1, in.read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * 定长请求头的可选字段只在不是默认值时写出
+     */
+    @Test
+    public void testFixedRequestHeader() throws IOException {
+        checkFixedRequestHeader(7, RpcConstants.INVALID_RETRY_COUNT, 0,
+                RpcRequestHeader.FIXED_LENGTH);
+        checkFixedRequestHeader(RpcConstants.CONNECTION_CONTEXT_CALL_ID, 3, 65535,
+                RpcRequestHeader.FIXED_LENGTH + 6);
+    }
+
+    private void checkFixedRequestHeader(int callId, int retryCount, int protocolId,
+                                         int expectedLength) throws IOException {
+        RpcRequestHeader header = new RpcRequestHeader(RpcKindProto.RPC_PROTOCOL_BUFFER,
+                OperationProto.RPC_FINAL_PACKET, callId, retryCount, protocolId);
+        DataOutputBuffer buf = new DataOutputBuffer();
+        header.write(buf);
+        assertEquals(expectedLength, header.getLength());
+        assertEquals(expectedLength, buf.getLength());
+
+        RpcRequestHeader read = RpcRequestHeader.readFrom(new DataInputStream(
+                new ByteArrayInputStream(buf.getData(), 0, buf.getLength())));
+        assertEquals(header.getRpcKind(), read.getRpcKind());
+        assertEquals(header.getRpcOp(), read.getRpcOp());
+        assertEquals(callId, read.getCallId());
+        assertEquals(retryCount, read.getRetryCount());
+        assertEquals(protocolId, read.getProtocolId());
+    }
+
+    /**
+     * 版本 1 的客户端在每个请求头中携带 clientId，连接上下文中只有协议名，服务端仍然接受
+     */
+    @Test(timeout = 60000)
+    public void testVersion1Client() throws Exception {
+        Socket socket = new Socket(address.getAddress(), address.getPort());
+        try {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write(RpcConstants.HEADER.array());
+            out.write(new byte[]{RpcConstants.VERSION_FULL_HEADER, 0, 0});
+
+            byte[] contextHeader = ProtoUtil.makeRpcRequestHeader(
+                    RPC.RpcKind.RPC_PROTOCOL_BUFFER,
+                    OperationProto.RPC_FINAL_PACKET,
+                    RpcConstants.CONNECTION_CONTEXT_CALL_ID, RpcConstants.INVALID_RETRY_COUNT,
+                    ClientId.getClientId()).toByteArray();
+            byte[] context = ProtoUtil.makeIpcConnectionContext(
+                    RPC.getProtocolName(TestProtocol.class)).toByteArray();
+            out.writeInt(2 + contextHeader.length + context.length);
+            out.write(contextHeader.length);
+            out.write(contextHeader);
+            out.write(context.length);
+            out.write(context);
+
+            byte[] header = ProtoUtil.makeRpcRequestHeader(
+                    RPC.RpcKind.RPC_SERIALIZABLE,
+                    OperationProto.RPC_FINAL_PACKET,
+                    7, RpcConstants.INVALID_RETRY_COUNT, ClientId.getClientId()).toByteArray();
+            DataOutputBuffer request = new DataOutputBuffer();
+            new SerializableRpcEngine.Invocation(
+                    TestProtocol.class.getMethod("add", int.class, int.class),
+                    new Object[]{1, 2}, TestProtocol.versionID).write(request);
+            out.writeInt(1 + header.length + request.getLength());
+            out.write(header.length);
+            out.write(header);
+            out.write(request.getData(), 0, request.getLength());
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            in.readInt();
+            RpcResponseHeaderProto response = RpcResponseHeaderProto.parseDelimitedFrom(in);
+            assertEquals(7, response.getCallId());
+            assertEquals(RpcResponseHeaderProto.RpcStatusProto.SUCCESS, response.getStatus());
+            ObjectWritable value = new ObjectWritable();
+            value.readFields(in);
+            assertEquals(3, value.get());
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * 请求和响应超过 chunk 大小时分为多个 frame 发送，多个线程的大调用和小调用共享同一个连接
+     */
+    @Test(timeout = 60000)
+    public void testStreaming() throws Exception {
+        checkStreaming();
+    }
+
+    /**
+     * 分块与压缩同时使用时每个 frame 单独压缩，响应从接收缓冲区直接解析
+     */
+    @Test(timeout = 60000)
+    public void testStreamingCompression() throws Exception {
+        conf.set(CommonConfigurationKeysPublic.IPC_COMPRESSION_CODEC_KEY, "deflate");
+        conf.setInt(CommonConfigurationKeysPublic.IPC_COMPRESSION_THRESHOLD_KEY, 512);
+        conf.setBoolean(CommonConfigurationKeysPublic.IPC_CLIENT_RESPONSE_ZEROCOPY_KEY, true);
+        checkStreaming();
+    }
+
+    private void checkStreaming() throws Exception {
+        conf.setInt(CommonConfigurationKeysPublic.IPC_STREAM_CHUNK_SIZE_KEY, 1024);
+        RPC.Server streamServer = new RPC.Builder(conf).setProtocol(TestProtocol.class)
+                .setInstance(new TestImpl()).setBindAddress("localhost")
+                .setNumHandlers(4).build();
+        streamServer.start();
+        final TestProtocol proxy = RPC.getProtocolProxy(TestProtocol.class, TestProtocol.versionID,
+                streamServer.getListenerAddress(), conf, SocketFactory.getDefault(), RPC_TIMEOUT);
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 20000; i++) {
+                sb.append(i);
+            }
+            final String value = sb.toString();
+            final List<Throwable> errors = new ArrayList<>();
+            List<Thread> callers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final boolean large = t % 2 == 0;
+                Thread caller = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < 20; i++) {
+                                if (large) {
+                                    assertEquals(value, proxy.echo(value));
+                                } else {
+                                    assertEquals(2 * i, proxy.add(i, i));
+                                }
+                            }
+                        } catch (Throwable e) {
+                            synchronized (errors) {
+                                errors.add(e);
+                            }
+                        }
+                    }
+                };
+                callers.add(caller);
+                caller.start();
+            }
+            for (Thread caller : callers) {
+                caller.join();
+            }
+            assertTrue("Unexpected errors: " + errors, errors.isEmpty());
+            assertEquals(1, streamServer.getNumOpenConnections());
+        } finally {
+            RPC.stopProxy(proxy);
+            streamServer.stop();
+        }
+    }
+
+    /**
+     * 一个请求的 RPC_CONTINUATION_PACKET 与 RPC_FINAL_PACKET 之间可以插入其他请求
+     */
+    @Test(timeout = 60000)
+    public void testInterleavedContinuationPacket() throws Exception {
+        Socket socket = new Socket(address.getAddress(), address.getPort());
+        try {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write(RpcConstants.HEADER.array());
+            out.write(new byte[]{RpcConstants.CURRENT_VERSION, 0, 0});
+            DataOutputBuffer context = new DataOutputBuffer();
+            ProtoUtil.makeIpcConnectionContext(
+                    RPC.getProtocolName(TestProtocol.class), ClientId.getClientId(),
+                    TestProtocol.versionID).writeDelimitedTo(context);
+            writeFrame(out, RpcConstants.CONNECTION_CONTEXT_CALL_ID, OperationProto.RPC_FINAL_PACKET,
+                    context.getData(), 0, context.getLength());
+
+            DataOutputBuffer large = new DataOutputBuffer();
+            new SerializableRpcEngine.Invocation(
+                    TestProtocol.class.getMethod("add", int.class, int.class),
+                    new Object[]{3, 4}, TestProtocol.versionID).write(large);
+            DataOutputBuffer small = new DataOutputBuffer();
+            new SerializableRpcEngine.Invocation(
+                    TestProtocol.class.getMethod("add", int.class, int.class),
+                    new Object[]{1, 2}, TestProtocol.versionID).write(small);
+            int half = large.getLength() / 2;
+            writeFrame(out, 7, OperationProto.RPC_CONTINUATION_PACKET, large.getData(), 0, half);
+            writeFrame(out, 8, OperationProto.RPC_FINAL_PACKET, small.getData(), 0, small.getLength());
+            writeFrame(out, 7, OperationProto.RPC_FINAL_PACKET, large.getData(), half,
+                    large.getLength() - half);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            int[] results = new int[2];
+            for (int i = 0; i < 2; i++) {
+                in.readInt();
+                RpcResponseHeaderProto response = RpcResponseHeaderProto.parseDelimitedFrom(in);
+                assertEquals(RpcResponseHeaderProto.RpcStatusProto.SUCCESS, response.getStatus());
+                ObjectWritable value = new ObjectWritable();
+                value.readFields(in);
+                results[response.getCallId() - 7] = (Integer) value.get();
+            }
+            assertArrayEquals(new int[]{7, 3}, results);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void writeFrame(DataOutputStream out, int callId, OperationProto rpcOp,
+                                   byte[] data, int offset, int length) throws IOException {
+        RpcRequestHeader header = new RpcRequestHeader(
+                RpcKindProto.RPC_SERIALIZABLE, rpcOp, callId,
+                RpcConstants.INVALID_RETRY_COUNT, 0);
+        out.writeInt(header.getLength() + length);
+        header.write(out);
+        out.write(data, offset, length);
+    }
+}
@@ -0,0 +1,60 @@
+package com.rchen102.ipc.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestLatencyHistogram {
+
+    /**
+     * 每个值都落在 [lowerBound(index), lowerBound(index + 1)) 中，且桶的宽度不超过下界的 1/8
+     */
+    @Test
+    public void testBuckets() {
+        for (long value = 0; value < 100000; value++) {
+            checkBucket(value);
+        }
+        for (int shift = 17; shift < 40; shift++) {
+            checkBucket((1L << shift) - 1);
+            checkBucket(1L << shift);
+            checkBucket((1L << shift) + 12345);
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketIndex(1L << 40));
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1,
+                LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    private void checkBucket(long value) {
+        int index = LatencyHistogram.bucketIndex(value);
+        long lower = LatencyHistogram.lowerBound(index);
+        long upper = LatencyHistogram.lowerBound(index + 1);
+        assertTrue(value + " below bucket " + index, value >= lower);
+        assertTrue(value + " above bucket " + index, value < upper);
+        assertTrue("bucket " + index + " too wide", (upper - lower) * 8 <= Math.max(lower, 8));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1000000, snapshot.getMax());
+        assertEquals(500500.0, snapshot.getMean(), 0.001);
+        assertWithin(500000, snapshot.getPercentile(50));
+        assertWithin(990000, snapshot.getPercentile(99));
+        assertEquals(1000000, snapshot.getPercentile(100));
+        assertEquals(0, new LatencyHistogram().snapshot().getPercentile(99));
+    }
+
+    /**
+     * 百分位数为桶的上界，相对误差不超过 1/8
+     */
+    private void assertWithin(long expected, long actual) {
+        assertTrue("expected " + expected + " got " + actual,
+                actual >= expected && actual <= expected + expected / 8);
+    }
+}
@@ -0,0 +1,84 @@
+package com.rchen102.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestConcurrentIntHashMap {
+
+    /**
+     * 随机的 put / remove 与 HashMap 的结果对比，覆盖扩容和删除时的元素移动
+     */
+    @Test
+    public void testRandomOperations() {
+        ConcurrentIntHashMap<Integer> map = new ConcurrentIntHashMap<>(2);
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            int key = random.nextInt(2000) - 1000;
+            if (random.nextBoolean()) {
+                Assert.assertEquals(expected.put(key, i), map.put(key, i));
+            } else {
+                Assert.assertEquals(expected.remove(key), map.remove(key));
+            }
+            Assert.assertEquals(expected.size(), map.size());
+        }
+        for (int key = -1000; key < 1000; key++) {
+            Assert.assertEquals(expected.get(key), map.get(key));
+        }
+
+        List<Integer> removed = map.removeAll();
+        Assert.assertEquals(expected.size(), removed.size());
+        Assert.assertTrue(removed.containsAll(expected.values()));
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertNull(map.get(expected.keySet().iterator().next()));
+    }
+
+    /**
+     * 多个线程并发地 put / remove 各自的 key，与 Client 中多个调用者并发地增删 call 相同
+     */
+    @Test
+    public void testConcurrentPutRemove() throws Exception {
+        final ConcurrentIntHashMap<Integer> map = new ConcurrentIntHashMap<>();
+        final int threadCount = 8;
+        final int perThread = 20000;
+        // 工作线程中断言失败只会结束该线程，记录下来由主线程检查
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int base = t * perThread;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = base; i < base + perThread; i++) {
+                            map.put(i, i);
+                        }
+                        for (int i = base; i < base + perThread; i += 2) {
+                            Assert.assertEquals(Integer.valueOf(i), map.remove(i));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError("Worker thread failed: " + failure.get(), failure.get());
+        }
+
+        Assert.assertEquals(threadCount * perThread / 2, map.size());
+        for (int i = 0; i < threadCount * perThread; i++) {
+            Assert.assertEquals(i % 2 == 0 ? null : Integer.valueOf(i), map.get(i));
+        }
+    }
+}